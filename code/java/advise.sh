@@ -0,0 +1,9 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+shift 3
+
+# Example: source ./advise.sh flightDB 5432 user --dataset ../data --dataset /tmp/gen/sf10 --baseline ../sql/plans
+# Add --update to record the plans of this run as the new baselines.
+java -cp lib/*:bin/ IndexAdvisor $DBNAME $PORT $USER "$@"
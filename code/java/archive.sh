@@ -0,0 +1,9 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+shift 3
+
+# Example: source ./archive.sh flightDB 5432 user --before 2017-01 --dir ../archive
+# Needs the partitioned tables of ../sql/partition.sql.
+java -cp lib/*:bin/ Archiver $DBNAME $PORT $USER "$@"
@@ -0,0 +1,9 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+FILE=$4
+TXSIZE=${5:-500}
+
+# Example: source ./batch.sh flightDB 5432 user walkins.txt 500
+java -cp lib/*:bin/ MechanicShop $DBNAME $PORT $USER --batch $FILE --tx-size $TXSIZE
@@ -0,0 +1,18 @@
+#! /bin/bash
+# Starts a throwaway Postgres with the scripts in ../postgresql, seeds it
+# from ../data, runs the JMH benchmarks and stops the server again.
+# Any arguments are passed to JMH, for example a dataset list:
+#   ./bench.sh -p dataset=../data,sf10,/tmp/gen/sf100 -rf json -rff bench.json
+
+cd ../postgresql
+source ./startPostgreSQL.sh
+sleep 3
+source ./createPostgreDB.sh
+cd ../java
+
+mvn -B -q -Pbench package -DskipTests
+java -Dbench.db=$USER"_DB" -Dbench.port=$PGPORT -Dbench.user=$USER -jar target/benchmarks.jar "$@"
+
+cd ../postgresql
+source ./stopPostgreDB.sh
+cd ../java
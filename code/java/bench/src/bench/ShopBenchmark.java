@@ -0,0 +1,356 @@
+/*
+ * JMH benchmarks for the MechanicShop client
+ * ==========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+package bench;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.ResultSet;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * One benchmark per menu operation, issuing the same SQL templates with the
+ * same helpers the menu uses, minus the prompts. Throughput and sampled
+ * latency (p50/p99 in the JMH report) are measured for every dataset given
+ * in the dataset parameter; each dataset is bulk loaded before its trial,
+ * after every table has been truncated, and a failed load fails the trial.
+ * A dataset is either a CSV directory or "sf<scale>", which is generated
+ * with DataGenerator (seed 166) under the temporary directory on first use.
+ *
+ * The client classes live in the default package, which Java code in a
+ * named package cannot import and JMH does not accept for benchmarks, so
+ * they are reached through reflection that is resolved once per trial.
+ *
+ * Connection settings come from -Dbench.db, -Dbench.port and -Dbench.user.
+ *
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ShopBenchmark{
+	/** CSV directories or generated scales to load before each trial. */
+	@Param({ "../data", "sf10", "sf50" })
+	public String dataset;
+
+	@Param({ "10" })
+	public int k;
+
+	Shop shop;
+	int maxCustomerId, maxMechanicId;
+	List<List<String>> lastNames;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		String db = System.getProperty("bench.db", System.getProperty("user.name") + "_DB");
+		String port = System.getProperty("bench.port", "9997");
+		String user = System.getProperty("bench.user", System.getProperty("user.name"));
+
+		load(db, port, user, dataDir(dataset));
+
+		shop = new Shop(db, port, user);
+		maxCustomerId = shop.queryForInt("SELECT MAX(id) FROM Customer");
+		maxMechanicId = shop.queryForInt("SELECT MAX(id) FROM Mechanic");
+		lastNames = shop.rows("SELECT DISTINCT lname FROM Customer LIMIT 1000");
+	}
+
+	// the directory of a dataset, generating "sf<scale>" datasets on first use
+	static Path dataDir(String dataset) throws Exception {
+		if (!dataset.matches("sf[0-9.]+")) return Paths.get(dataset);
+		Path dir = Paths.get(System.getProperty("java.io.tmpdir"), "mechanicshop-bench", dataset);
+		if (Files.exists(dir.resolve("closed_request.csv"))) return dir;
+		Class<?> type = Class.forName("DataGenerator");
+		Object generator = type.getConstructor(Path.class, double.class, long.class, int.class, double.class, double.class, double.class)
+			.newInstance(dir, Double.parseDouble(dataset.substring(2)), 166L, Runtime.getRuntime().availableProcessors(), 0.05, 1.0, 0.95);
+		try{
+			call(type.getMethod("generateAll"), generator);
+		}finally{
+			call(type.getMethod("shutdown"), generator);
+		}
+		return dir;
+	}
+
+	// truncates every table and loads the dataset; throws when the load fails
+	static void load(String db, String port, String user, Path dir) throws Exception {
+		int workers = Runtime.getRuntime().availableProcessors();
+		Class<?> poolType = Class.forName("ConnectionPool"), loaderType = Class.forName("BulkLoader");
+		Object pool = poolType.getConstructor(String.class, String.class, String.class, int.class, int.class)
+			.newInstance("jdbc:postgresql://localhost:" + port + "/" + db, user, "", workers, 4);
+		Object loader = loaderType.getConstructor(poolType, Path.class, int.class, int.class).newInstance(pool, dir, workers, 20000);
+		try{
+			call(loaderType.getMethod("truncate"), loader);
+			call(loaderType.getMethod("loadAll"), loader);
+		}finally{
+			call(loaderType.getMethod("shutdown"), loader);
+			call(poolType.getMethod("close"), pool);
+		}
+	}
+
+	// invokes a client method, rethrowing what it threw
+	static Object call(Method method, Object target, Object... args) throws Exception {
+		try{
+			return method.invoke(target, args);
+		}catch (InvocationTargetException e){
+			if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+			throw e;
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		shop.cleanup();
+	}
+
+	/**
+	 * An open service request for every CloseServiceRequest invocation.
+	 */
+	@State(Scope.Thread)
+	public static class OpenRequest{
+		int rid;
+
+		@Setup(Level.Invocation)
+		public void open(ShopBenchmark b) throws Exception {
+			int customer = b.randomCustomer();
+			List<List<String>> cars = b.shop.rows(b.shop.sql("CARS_BY_OWNER"), customer);
+			if (cars.isEmpty()){
+				cars = b.shop.rows("SELECT car_vin FROM Owns LIMIT 1");
+				customer = b.shop.queryForInt("SELECT customer_id FROM Owns WHERE car_vin = ?", cars.get(0).get(0));
+			}
+			rid = b.shop.nextId("rid_seq");
+			b.shop.update(b.shop.sql("INSERT_REQUEST"), rid, customer, cars.get(0).get(0), today(), 1000, "benchmark");
+		}
+	}
+
+	@Benchmark
+	public int addCustomer() throws Exception {
+		String phone = randomPhone();
+		int match = shop.queryForInt(shop.sql("CHECK_CUSTOMER"), "Bench", "Mark", "1 Benchmark Way", phone);
+		if (match >= 0) return match;
+		return shop.update(shop.sql("INSERT_CUSTOMER"), shop.nextId("customer_id_seq"), "Bench", "Mark", phone, "1 Benchmark Way");
+	}
+
+	@Benchmark
+	public int addMechanic() throws Exception {
+		String lname = "Mark" + ThreadLocalRandom.current().nextInt(1 << 30);
+		if (shop.exists("Mechanic", new String[]{ "fname", "lname", "experience" }, "Bench", lname, 5)) return 0;
+		return shop.update(shop.sql("INSERT_MECHANIC"), shop.nextId("mechanic_id_seq"), "Bench", lname, 5);
+	}
+
+	@Benchmark
+	public int addCar() throws Exception {
+		int customer = randomCustomer();
+		String vin = randomVin();
+		if (!shop.customerExists(customer)) return 0;
+		if (shop.carExists(vin)) return 0;
+		shop.update(shop.sql("INSERT_CAR"), vin, "Bench", "Mark", 2010);
+		int n = shop.update(shop.sql("INSERT_OWNS"), shop.nextId("owns_id_seq"), customer, vin);
+		shop.invalidate("car:owner:" + customer);
+		shop.invalidate("car:vin:" + vin);
+		return n;
+	}
+
+	@Benchmark
+	public int insertServiceRequest() throws Exception {
+		String lname = lastNames.get(ThreadLocalRandom.current().nextInt(lastNames.size())).get(0);
+		Object customers = shop.lookup(shop.lnameKey(lname), shop.sql("CUSTOMERS_BY_LNAME"), lname);
+		if (shop.rowCount(customers) == 0) return 0;
+		int customer = shop.getInt(customers, 0, 0);
+		Object cars = shop.lookup("car:owner:" + customer, shop.sql("CARS_BY_OWNER"), customer);
+		if (shop.rowCount(cars) == 0) return 0;
+		return shop.update(shop.sql("INSERT_REQUEST"), shop.nextId("rid_seq"), customer, shop.getString(cars, 0, 0), today(), 1000, "benchmark");
+	}
+
+	@Benchmark
+	public int closeServiceRequest(OpenRequest open) throws Exception {
+		int mechanic = 1 + ThreadLocalRandom.current().nextInt(Math.max(1, maxMechanicId));
+		return shop.rows(shop.sql("CLOSE_REQUEST"), open.rid, mechanic, "benchmark", 99).size();
+	}
+
+	@Benchmark
+	public int listCustomersWithBillLessThan100(Blackhole bh) throws Exception {
+		return shop.stream(bh, shop.sql("BILL_LESS_THAN_100"));
+	}
+
+	@Benchmark
+	public int listCustomersWithMoreThan20Cars(Blackhole bh) throws Exception {
+		return shop.stream(bh, shop.sql("MORE_THAN_20_CARS"));
+	}
+
+	@Benchmark
+	public int listCarsBefore1995With50000Milles(Blackhole bh) throws Exception {
+		return shop.stream(bh, shop.sql("CARS_BEFORE_1995"));
+	}
+
+	@Benchmark
+	public int listKCarsWithTheMostServices(Blackhole bh) throws Exception {
+		return shop.stream(bh, shop.sql("K_CARS_MOST_SERVICES"), k);
+	}
+
+	@Benchmark
+	public int listCustomersInDescendingOrderOfTheirTotalBill(Blackhole bh) throws Exception {
+		return shop.stream(bh, shop.sql("TOTAL_BILL_DESC"));
+	}
+
+	int randomCustomer(){
+		return ThreadLocalRandom.current().nextInt(maxCustomerId + 1);
+	}
+
+	static java.sql.Date today(){
+		return new java.sql.Date(System.currentTimeMillis());
+	}
+
+	static String randomPhone(){
+		ThreadLocalRandom r = ThreadLocalRandom.current();
+		return String.format("(%03d)%03d-%04d", r.nextInt(1000), r.nextInt(1000), r.nextInt(10000));
+	}
+
+	static String randomVin(){
+		ThreadLocalRandom r = ThreadLocalRandom.current();
+		StringBuilder vin = new StringBuilder(16);
+		for (int i = 0; i < 6; ++i) vin.append((char) ('A' + r.nextInt(26)));
+		for (int i = 0; i < 10; ++i) vin.append((char) ('0' + r.nextInt(10)));
+		return vin.toString();
+	}
+
+	/**
+	 * Reflective handle on a connected MechanicShop.
+	 */
+	static class Shop{
+		final Class<?> type;
+		final Object esql;
+		final Class<?> rowHandler, typedResult;
+		final Method update, rows, queryForInt, exists, nextId, stream, cleanup;
+		final Method lookup, lnameKey, invalidate, customerExists, carExists, rowCount, getInt, getString;
+
+		Shop(String db, String port, String user) throws Exception {
+			type = Class.forName("MechanicShop");
+			rowHandler = Class.forName("MechanicShop$RowHandler");
+			esql = type.getConstructor(String.class, String.class, String.class, String.class).newInstance(db, port, user, "");
+			update = type.getMethod("executeUpdate", String.class, Object[].class);
+			rows = type.getMethod("executeQueryAndReturnResult", String.class, Object[].class);
+			queryForInt = type.getMethod("queryForInt", String.class, Object[].class);
+			exists = type.getMethod("exists", String.class, String[].class, Object[].class);
+			nextId = type.getMethod("nextId", String.class);
+			stream = type.getMethod("executeQueryAndStreamResult", String.class, rowHandler, Object[].class);
+			cleanup = type.getMethod("cleanup");
+			lookup = type.getMethod("lookup", String.class, String.class, Object[].class);
+			lnameKey = type.getDeclaredMethod("lnameKey", String.class);
+			lnameKey.setAccessible(true);
+			invalidate = type.getMethod("invalidate", String.class);
+			customerExists = type.getMethod("customerExists", int.class);
+			carExists = type.getMethod("carExists", String.class);
+			typedResult = Class.forName("TypedResult");
+			rowCount = typedResult.getMethod("rowCount");
+			getInt = typedResult.getMethod("getInt", int.class, int.class);
+			getString = typedResult.getMethod("getString", int.class, int.class);
+		}
+
+		String sql(String name) throws Exception {
+			Field field = type.getDeclaredField(name);
+			field.setAccessible(true);
+			return (String) field.get(null);
+		}
+
+		int update(String sql, Object... params) throws Exception {
+			return (Integer) update.invoke(esql, sql, params);
+		}
+
+		@SuppressWarnings("unchecked")
+		List<List<String>> rows(String sql, Object... params) throws Exception {
+			return (List<List<String>>) rows.invoke(esql, sql, params);
+		}
+
+		int queryForInt(String sql, Object... params) throws Exception {
+			return (Integer) queryForInt.invoke(esql, sql, params);
+		}
+
+		boolean exists(String table, String[] columns, Object... values) throws Exception {
+			return (Boolean) exists.invoke(esql, table, columns, values);
+		}
+
+		// a TypedResult from the lookup cache
+		Object lookup(String key, String sql, Object... params) throws Exception {
+			return lookup.invoke(esql, key, sql, params);
+		}
+
+		String lnameKey(String lname) throws Exception {
+			return (String) lnameKey.invoke(null, lname);
+		}
+
+		void invalidate(String key) throws Exception {
+			invalidate.invoke(esql, key);
+		}
+
+		boolean customerExists(int id) throws Exception {
+			return (Boolean) customerExists.invoke(esql, id);
+		}
+
+		boolean carExists(String vin) throws Exception {
+			return (Boolean) carExists.invoke(esql, vin);
+		}
+
+		int rowCount(Object result) throws Exception {
+			return (Integer) rowCount.invoke(result);
+		}
+
+		int getInt(Object result, int row, int column) throws Exception {
+			return (Integer) getInt.invoke(result, row, column);
+		}
+
+		String getString(Object result, int row, int column) throws Exception {
+			return (String) getString.invoke(result, row, column);
+		}
+
+		int nextId(String sequence) throws Exception {
+			return (Integer) nextId.invoke(esql, sequence);
+		}
+
+		// reads every column of every row into the blackhole
+		int stream(final Blackhole bh, String sql, Object... params) throws Exception {
+			Object handler = Proxy.newProxyInstance(rowHandler.getClassLoader(), new Class<?>[]{ rowHandler }, new InvocationHandler(){
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					if (!method.getName().equals("row")) return method.invoke(this, args);
+					ResultSet rs = (ResultSet) args[0];
+					int numCol = rs.getMetaData().getColumnCount();
+					for (int i = 1; i <= numCol; ++i) bh.consume(rs.getString(i));
+					return null;
+				}
+			});
+			return (Integer) stream.invoke(esql, sql, handler, params);
+		}
+
+		void cleanup() throws Exception {
+			cleanup.invoke(esql);
+		}
+	}
+}
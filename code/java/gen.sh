@@ -0,0 +1,6 @@
+#! /bin/bash
+OUTDIR=$1
+shift 1
+
+# Example: source ./gen.sh /tmp/gen/sf100 --scale 100 --seed 166
+java -cp lib/*:bin/ DataGenerator $OUTDIR "$@"
@@ -0,0 +1,8 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+shift 3
+
+# Example: source ./load.sh flightDB 5432 user ../data --truncate
+java -cp lib/*:bin/ BulkLoader $DBNAME $PORT $USER "$@"
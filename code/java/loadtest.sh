@@ -0,0 +1,7 @@
+#! /bin/bash
+URL=${1:-http://localhost:8080}
+USERS=${2:-200}
+DURATION=${3:-60}
+
+# Example: source ./loadtest.sh http://localhost:8080 200 60
+java -cp lib/*:bin/ LoadClient $URL --users $USERS --seconds $DURATION
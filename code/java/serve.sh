@@ -0,0 +1,8 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+HTTPPORT=${4:-8080}
+
+# Example: source ./serve.sh flightDB 5432 user 8080
+java -cp lib/*:bin/ MechanicShop $DBNAME $PORT $USER --serve $HTTPPORT
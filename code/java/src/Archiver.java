@@ -0,0 +1,228 @@
+/*
+ * Partition archiver for the MechanicShop database
+ * ================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.YearMonth;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.postgresql.PGConnection;
+
+/**
+ * Moves whole months of Service_Request and Closed_Request out of the
+ * database once they are partitioned by partition.sql. Every monthly
+ * partition older than the cutoff is copied to a gzip compressed CSV file
+ * (with a header line) under the archive directory, then detached and
+ * dropped in one short transaction, so the live tables, their indexes and
+ * vacuum only cover the active months. The file is synced before the
+ * partition is dropped and renamed into place once the drop is committed.
+ *
+ * Detaching fires no row triggers: Car_Service_Count and
+ * Customer_Bill_Summary keep counting the archived history, and Closed_Rid
+ * keeps archived requests from being closed again. A month of requests
+ * that still has open requests is skipped unless --force is given, and one
+ * whose requests were closed in a month that is kept is always skipped.
+ *
+ * Each run also creates the partitions of the coming months, so inserts
+ * do not fall into the DEFAULT partition.
+ *
+ *   java Archiver <db> <port> <user> [--before yyyy-mm] [--dir archive] [--ahead months] [--force]
+ *
+ */
+
+public class Archiver{
+	static final String[] TABLES = { "Closed_Request", "Service_Request" };
+
+	private static final String PARTITIONS = // monthly partitions are named <table>_yyyy_mm by create_month_partitions
+		"SELECT C.relname FROM pg_inherits I JOIN pg_class C ON C.oid = I.inhrelid " +
+		"WHERE I.inhparent = to_regclass(?) AND C.relname ~ '_[0-9]{4}_[0-9]{2}$' ORDER BY C.relname";
+
+	private final MechanicShop _esql;
+	private final Path _dir;
+	private final boolean _force;
+
+	public Archiver(MechanicShop esql, Path dir, boolean force){
+		this._esql = esql;
+		this._dir = dir;
+		this._force = force;
+	}
+
+	/**
+	 * Creates the partitions of both tables from this month to the given
+	 * number of months ahead.
+	 *
+	 * @throws java.sql.SQLException when the tables are not partitioned
+	 */
+	public void createAhead(int months) throws SQLException {
+		for (String table : TABLES){
+			int created = _esql.queryForInt("SELECT create_month_partitions(?, CURRENT_DATE, (CURRENT_DATE + make_interval(months => ?))::date)", table, months);
+			if (created > 0) System.out.println(table + ": " + created + " partition(s) created");
+		}
+	}
+
+	/**
+	 * Archives every monthly partition of both tables before a month.
+	 *
+	 * @param before the first month kept
+	 * @return the number of partitions archived
+	 */
+	public int archiveBefore(YearMonth before) throws SQLException, IOException {
+		Files.createDirectories(_dir);
+		int archived = 0;
+		for (String table : TABLES){
+			for (List<String> row : _esql.executeQueryAndReturnResult(PARTITIONS, table)){
+				String partition = row.get(0);
+				String suffix = partition.substring(partition.length() - 7);
+				YearMonth month = YearMonth.of(Integer.parseInt(suffix.substring(0, 4)), Integer.parseInt(suffix.substring(5)));
+				if (!month.isBefore(before)) continue;
+				if (archive(table, partition)) archived++;
+			}
+		}
+		return archived;
+	}//end archiveBefore
+
+	/**
+	 * Copies one partition to its file, then detaches and drops it.
+	 *
+	 * @return false when the partition was skipped
+	 */
+	boolean archive(String table, String partition) throws SQLException, IOException {
+		long start = System.nanoTime();
+		Path file = _dir.resolve(partition + ".csv.gz");
+		Path part = _dir.resolve(partition + ".csv.gz.part");
+		boolean committed = false;
+		Connection conn = _esql.acquireConnection();
+		try{
+			if (table.equals("Service_Request") && !_force){
+				long open = count(conn, "SELECT COUNT(*) FROM " + partition + " S WHERE NOT EXISTS (SELECT 1 FROM Closed_Rid C WHERE C.rid = S.rid)");
+				if (open > 0){
+					System.out.println(partition + ": skipped, " + open + " open request(s)");
+					return false;
+				}
+			}
+			if (table.equals("Service_Request")){
+				long closed = count(conn, closesOf(partition));
+				if (closed > 0){
+					System.out.println(partition + ": skipped, " + closed + " close(s) in months still kept");
+					return false;
+				}
+			}
+
+			// copied while still attached, so readers of the parent are not blocked meanwhile
+			long rows;
+			FileOutputStream out = new FileOutputStream(part.toFile());
+			try{
+				GZIPOutputStream gzip = new GZIPOutputStream(out, 1 << 16);
+				rows = ((PGConnection) conn).getCopyAPI().copyOut("COPY " + partition + " TO STDOUT WITH (FORMAT csv, HEADER)", gzip);
+				gzip.finish();
+				out.getChannel().force(true);
+			}finally{
+				out.close();
+			}
+
+			conn.setAutoCommit(false);
+			try{
+				Statement stmt = conn.createStatement();
+				stmt.executeUpdate("ALTER TABLE " + table + " DETACH PARTITION " + partition);
+				long now = count(conn, "SELECT COUNT(*) FROM " + partition);
+				if (now != rows) throw new SQLException(partition + " changed while being copied (" + rows + " rows copied, " + now + " now), run again");
+				// a close committed since the check above; the detach keeps new ones out now
+				if (table.equals("Service_Request") && count(conn, closesOf(partition)) > 0)
+					throw new SQLException(partition + " got a close while being copied, run again");
+				stmt.executeUpdate("DROP TABLE " + partition);
+				// with --force, open requests of the month leave the work queue with it
+				if (table.equals("Service_Request"))
+					stmt.executeUpdate("DELETE FROM Open_Request O WHERE NOT EXISTS (SELECT 1 FROM Service_Request S WHERE S.rid = O.rid)");
+				// detaching fires no triggers, so the report caches of the clients are told here; sent at commit
+				stmt.execute("SELECT pg_notify('" + ReportCache.CHANNEL + "', '" + table.toLowerCase() + "')");
+				stmt.close();
+				conn.commit();
+				committed = true;
+			}catch (SQLException e){
+				conn.rollback();
+				throw e;
+			}finally{
+				conn.setAutoCommit(true);
+			}
+			// only a dropped partition gets its file; the synced .part stays behind if the rename fails
+			Files.move(part, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			System.out.printf("%s: %d rows, %d bytes to %s in %.2f s%n", partition, rows, Files.size(file), file, (System.nanoTime() - start) / 1e9);
+			return true;
+		}finally{
+			if (!committed) Files.deleteIfExists(part);
+			_esql.releaseConnection(conn);
+		}
+	}//end archive
+
+	/*
+	 * The closes still in Closed_Request of the requests of a partition.
+	 * Closes from the Closed_Request months archived first are gone, and
+	 * any left would be orphaned by dropping their requests: the report
+	 * joins on rid would silently leave them out.
+	 */
+	private static String closesOf(String partition){
+		return "SELECT COUNT(*) FROM Closed_Request C WHERE C.rid IN (SELECT S.rid FROM " + partition + " S)";
+	}
+
+	/*
+	 * Counts rows of one partition. The text names the partition, so it is
+	 * run outside the client's metrics, which keep one entry per SQL text.
+	 */
+	private static long count(Connection conn, String query) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try{
+			ResultSet rs = stmt.executeQuery(query);
+			rs.next();
+			return rs.getLong(1);
+		}finally{
+			stmt.close();
+		}
+	}
+
+	public static void main(String[] args){
+		if (args.length < 3){
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + Archiver.class.getName () +
+				" <dbname> <port> <user> [--before yyyy-mm] [--dir archive] [--ahead months] [--force]");
+			return;
+		}
+		YearMonth before = null;
+		Path dir = Paths.get("archive");
+		int ahead = 3;
+		boolean force = false;
+		for (int i = 3; i < args.length; ++i){
+			if (args[i].equals("--before")) before = YearMonth.parse(args[++i]);
+			else if (args[i].equals("--dir")) dir = Paths.get(args[++i]);
+			else if (args[i].equals("--ahead")) ahead = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--force")) force = true;
+		}
+
+		MechanicShop esql = null;
+		try{
+			Class.forName("org.postgresql.Driver");
+			esql = new MechanicShop(args[0], args[1], args[2], "");
+			Archiver archiver = new Archiver(esql, dir, force);
+			archiver.createAhead(ahead);
+			if (before != null) System.out.println(archiver.archiveBefore(before) + " partition(s) archived to " + dir);
+		}catch (Exception e){
+			System.err.println(e.getMessage());
+		}finally{
+			if (esql != null) esql.cleanup();
+		}
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Batch mode for the MechanicShop client
+ * ======================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * Runs a file of write operations without prompting. Records are grouped
+ * into transactions of a configurable size and each kind of insert is sent
+ * with addBatch/executeBatch, so a transaction costs one round trip per
+ * statement kind instead of several per record. When a transaction fails,
+ * it is replayed record by record under savepoints so every bad record is
+ * reported with its line number and the good ones are still stored.
+ *
+ * One operation per line, fields separated by commas, the free text field
+ * last so it may contain commas. Lines starting with # are ignored.
+ *
+ *   customer,<fname>,<lname>,<phone>,<address>
+ *   car,<customer id>,<vin>,<make>,<model>,<year>
+ *   request,<customer id>,<vin>,<odometer>,<date or empty for today>,<complaint>
+ *   close,<rid>,<mid>,<bill>,<date or empty for today>,<comment>
+ *
+ */
+
+public class BatchRunner{
+	// batches run in this order so rows of one transaction can reference each other
+	static final String[] ORDER = { MechanicShop.INSERT_CUSTOMER, MechanicShop.INSERT_CAR, MechanicShop.INSERT_OWNS, MechanicShop.INSERT_REQUEST, MechanicShop.INSERT_CLOSED };
+
+	/**
+	 * One operation of the input file and the statements it turns into.
+	 */
+	static class Record{
+		final int lineNo;
+		final String line;
+		final List<String> sqls = new ArrayList<String>();
+		final List<Object[]> params = new ArrayList<Object[]>();
+		// lookup cache keys its statements change
+		final List<String> keys = new ArrayList<String>();
+
+		Record(int lineNo, String line){
+			this.lineNo = lineNo;
+			this.line = line;
+		}
+
+		void add(String sql, Object... values){
+			sqls.add(sql);
+			params.add(values);
+		}
+	}
+
+	private final MechanicShop _esql;
+	private final int _txSize;
+	private int _ok = 0, _failed = 0;
+
+	/**
+	 * @param esql the connected client
+	 * @param txSize number of records committed per transaction
+	 */
+	public BatchRunner(MechanicShop esql, int txSize){
+		this._esql = esql;
+		this._txSize = Math.max(1, txSize);
+	}
+
+	/**
+	 * Runs every operation of a batch file and prints a summary.
+	 *
+	 * @param file the batch file
+	 * @return the number of records that failed
+	 * @throws java.io.IOException when the file cannot be read
+	 * @throws java.sql.SQLException when no connection can be obtained
+	 */
+	public int run(Path file) throws IOException, SQLException {
+		long start = System.nanoTime();
+		List<Record> tx = new ArrayList<Record>(_txSize);
+
+		BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+		try{
+			String line;
+			int lineNo = 0;
+			while ((line = reader.readLine()) != null){
+				++lineNo;
+				if (line.trim().isEmpty() || line.trim().startsWith("#")) continue;
+
+				Record record = new Record(lineNo, line);
+				try{
+					parse(record);
+				}catch (Exception e){
+					fail(record, e.getMessage());
+					continue;
+				}
+				tx.add(record);
+				if (tx.size() == _txSize){
+					commit(tx);
+					tx.clear();
+				}
+			}
+			if (!tx.isEmpty()) commit(tx);
+		}finally{
+			reader.close();
+		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%d record(s) stored, %d failed in %.2f s (%.0f records/sec)%n",
+			_ok, _failed, seconds, seconds > 0 ? (_ok + _failed) / seconds : 0.0);
+		return _failed;
+	}//end run
+
+	// turns one line into its insert statements, allocating the new keys
+	private void parse(Record record) throws SQLException {
+		String kind = record.line.substring(0, Math.max(0, record.line.indexOf(','))).trim();
+		if (kind.equals("customer")){
+			String[] f = fields(record.line, 5);
+			int id = _esql.nextId("customer_id_seq");
+			record.add(MechanicShop.INSERT_CUSTOMER, id, f[1], f[2], f[3], f[4]);
+			record.keys.add(MechanicShop.lnameKey(f[2]));
+			record.keys.add("customer:id:" + id);
+		}else if (kind.equals("car")){
+			String[] f = fields(record.line, 6);
+			int own_id = _esql.nextId("owns_id_seq");
+			record.add(MechanicShop.INSERT_CAR, f[2], f[3], f[4], Integer.parseInt(f[5]));
+			record.add(MechanicShop.INSERT_OWNS, own_id, Integer.parseInt(f[1]), f[2]);
+			record.keys.add("car:owner:" + Integer.parseInt(f[1]));
+			record.keys.add("car:vin:" + f[2]);
+		}else if (kind.equals("request")){
+			String[] f = fields(record.line, 6);
+			int rid = _esql.nextId("rid_seq");
+			record.add(MechanicShop.INSERT_REQUEST, rid, Integer.parseInt(f[1]), f[2], date(f[4]), Integer.parseInt(f[3]), f[5]);
+		}else if (kind.equals("close")){
+			String[] f = fields(record.line, 6);
+			int wid = _esql.nextId("wid_seq");
+			record.add(MechanicShop.INSERT_CLOSED, wid, Integer.parseInt(f[1]), Integer.parseInt(f[2]), date(f[4]), f[5], Integer.parseInt(f[3]));
+		}else{
+			throw new IllegalArgumentException("unknown operation '" + kind + "'");
+		}
+	}
+
+	// sends a transaction with one executeBatch per statement kind
+	private void commit(List<Record> tx) throws SQLException {
+		Connection conn = _esql.acquireConnection();
+		try{
+			conn.setAutoCommit(false);
+			try{
+				for (String sql : ORDER){
+					PreparedStatement stmt = null;
+					for (Record record : tx){
+						for (int i = 0; i < record.sqls.size(); ++i){
+							if (!record.sqls.get(i).equals(sql)) continue;
+							if (stmt == null){
+								stmt = _esql.prepare(conn, sql);
+								stmt.clearBatch();
+							}
+							MechanicShop.bind(stmt, record.params.get(i));
+							stmt.addBatch();
+						}
+					}
+					if (stmt != null) stmt.executeBatch();
+				}
+				conn.commit();
+				_ok += tx.size();
+			}catch (SQLException e){
+				conn.rollback();
+				replay(conn, tx);
+			}
+		}finally{
+			_esql.releaseConnection(conn);
+			for (Record record : tx)
+				for (String key : record.keys) _esql.invalidate(key);
+		}
+	}
+
+	// one record at a time under a savepoint, to find the records that fail
+	private void replay(Connection conn, List<Record> tx) throws SQLException {
+		for (Record record : tx){
+			Savepoint savepoint = conn.setSavepoint();
+			try{
+				for (int i = 0; i < record.sqls.size(); ++i){
+					PreparedStatement stmt = _esql.prepare(conn, record.sqls.get(i));
+					MechanicShop.bind(stmt, record.params.get(i));
+					stmt.executeUpdate();
+				}
+				conn.releaseSavepoint(savepoint);
+				_ok++;
+			}catch (SQLException e){
+				conn.rollback(savepoint);
+				fail(record, e.getMessage());
+			}
+		}
+		conn.commit();
+	}
+
+	private void fail(Record record, String message){
+		_failed++;
+		System.err.println("line " + record.lineNo + ": " + message);
+	}
+
+	// splits into exactly n fields, the last one keeps any further commas
+	private static String[] fields(String line, int n){
+		String[] f = line.split(",", n);
+		if (f.length != n) throw new IllegalArgumentException("expected " + n + " fields, found " + f.length);
+		for (int i = 0; i < f.length; ++i) f[i] = f[i].trim();
+		return f;
+	}
+
+	// the line number is reported by the caller
+	private static java.sql.Date date(String value) throws IllegalArgumentException {
+		if (value.isEmpty()) return new java.sql.Date(System.currentTimeMillis());
+		try{
+			return java.sql.Date.valueOf(BulkLoader.isoDate(value, "", 0));
+		}catch (IOException | IllegalArgumentException e){
+			throw new IllegalArgumentException("cannot read date " + value);
+		}
+	}
+}
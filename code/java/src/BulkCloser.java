@@ -0,0 +1,207 @@
+/*
+ * Bulk close of service requests for the MechanicShop client
+ * ==========================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Closes many service requests at once, either from a list of
+ * (rid, mid, bill, comment) entries or every open request older than a
+ * number of days on behalf of one mechanic (requests another mechanic
+ * has claimed from the open-work queue are left to them, and requests
+ * locked by a concurrent claim or close are skipped). Entries are sent a
+ * transaction's worth at a time as arrays and validated by the server in
+ * one set-wise statement: unknown requests and mechanics, bills that are
+ * not positive and requests that are already closed are reported back per
+ * entry, and the rest are inserted by the same statement.
+ *
+ */
+
+public class BulkCloser{
+	static final String CLOSE_LIST = // one statement per transaction: validates every entry and inserts the valid ones
+		"WITH input AS (SELECT * FROM unnest(?::int[], ?::int[], ?::int[], ?::text[]) WITH ORDINALITY AS t(rid, mid, bill, comment, ord)), " +
+		"valid AS (SELECT DISTINCT ON (i.rid) i.* FROM input i JOIN Service_Request S ON S.rid = i.rid JOIN Mechanic M ON M.id = i.mid " +
+			"WHERE i.bill > 0 AND NOT EXISTS (SELECT 1 FROM Closed_Request C WHERE C.rid = i.rid) ORDER BY i.rid, i.ord), " +
+		"ins AS (INSERT INTO Closed_Request (wid, rid, mid, date, comment, bill) " +
+			"SELECT nextval('wid_seq'), rid, mid, CURRENT_DATE, comment, bill FROM valid ORDER BY ord " +
+			"ON CONFLICT DO NOTHING RETURNING rid) " +
+		"SELECT i.ord, i.rid, CASE WHEN ins.rid IS NOT NULL THEN NULL " +
+			"WHEN S.rid IS NULL THEN 'no such service request' WHEN M.id IS NULL THEN 'no such mechanic' " +
+			"WHEN i.bill IS NULL OR i.bill <= 0 THEN 'bill must be greater than 0' ELSE 'already closed or listed twice' END AS error " +
+		"FROM input i LEFT JOIN valid v ON v.ord = i.ord LEFT JOIN ins ON ins.rid = v.rid " +
+			"LEFT JOIN Service_Request S ON S.rid = i.rid LEFT JOIN Mechanic M ON M.id = i.mid ORDER BY i.ord";
+	static final String CLOSE_OLDER_THAN = // closes the oldest open requests not claimed by another mechanic up to the batch size, one transaction per call
+		"INSERT INTO Closed_Request (wid, rid, mid, date, comment, bill) " +
+		"SELECT nextval('wid_seq'), O.rid, ?, CURRENT_DATE, ?, ? FROM (SELECT rid FROM Open_Request " +
+		"WHERE date < CURRENT_DATE - ?::integer AND (claimed_by IS NULL OR claimed_by = ?) " +
+		"ORDER BY date, rid LIMIT ? FOR UPDATE SKIP LOCKED) O ON CONFLICT DO NOTHING";
+
+	/**
+	 * One close to perform.
+	 */
+	public static class Entry{
+		final int rid, mid, bill;
+		final String comment;
+
+		public Entry(int rid, int mid, int bill, String comment){
+			this.rid = rid;
+			this.mid = mid;
+			this.bill = bill;
+			this.comment = comment;
+		}
+	}
+
+	private final MechanicShop _esql;
+	private final int _txSize;
+	private final ShopMetrics _metrics = ShopMetrics.get();
+	private int _closed = 0, _failed = 0;
+
+	/**
+	 * @param esql the connected client
+	 * @param txSize number of closes committed per transaction
+	 */
+	public BulkCloser(MechanicShop esql, int txSize){
+		this._esql = esql;
+		this._txSize = Math.max(1, txSize);
+	}
+
+	/**
+	 * Closes every entry of the list that is valid and prints the entries
+	 * that are not, then a summary. A transaction the server rejects, such
+	 * as when another client closed one of its requests at the same time,
+	 * is run again one entry at a time so only the entries at fault fail.
+	 *
+	 * @return the number of entries that failed
+	 * @throws java.sql.SQLException when the connection to the server is lost
+	 */
+	public int closeAll(List<Entry> entries) throws SQLException {
+		long start = System.nanoTime();
+		Connection conn = _esql.acquireConnection();
+		try{
+			for (int from = 0; from < entries.size(); from += _txSize){
+				List<Entry> tx = entries.subList(from, Math.min(entries.size(), from + _txSize));
+				try{
+					close(conn, tx, from);
+				}catch (SQLException e){
+					if (lost(e)) throw e;
+					for (int i = 0; i < tx.size(); ++i){
+						try{
+							close(conn, tx.subList(i, i + 1), from + i);
+						}catch (SQLException f){
+							if (lost(f)) throw f;
+							_failed++;
+							System.err.println("entry " + (from + i + 1) + " (request " + tx.get(i).rid + "): " + f.getMessage());
+						}
+					}
+				}
+			}
+		}finally{
+			_esql.releaseConnection(conn);
+			report(start);
+		}
+		return _failed;
+	}//end closeAll
+
+	// runs one transaction's worth of entries, the first being entry from + 1
+	private void close(Connection conn, List<Entry> tx, int from) throws SQLException {
+		Integer[] rids = new Integer[tx.size()], mids = new Integer[tx.size()], bills = new Integer[tx.size()];
+		String[] comments = new String[tx.size()];
+		for (int i = 0; i < tx.size(); ++i){
+			rids[i] = tx.get(i).rid;
+			mids[i] = tx.get(i).mid;
+			bills[i] = tx.get(i).bill;
+			comments[i] = tx.get(i).comment;
+		}
+
+		PreparedStatement stmt = _esql.prepare(conn, CLOSE_LIST);
+		Array[] arrays = { conn.createArrayOf("int4", rids), conn.createArrayOf("int4", mids),
+			conn.createArrayOf("int4", bills), conn.createArrayOf("text", comments) };
+		try{
+			for (int i = 0; i < arrays.length; ++i) stmt.setArray(i + 1, arrays[i]);
+
+			long sent = System.nanoTime();
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()){
+				String error = rs.getString(3);
+				if (error == null){
+					_closed++;
+				}else{
+					_failed++;
+					System.err.println("entry " + (from + rs.getInt(1)) + " (request " + rs.getInt(2) + "): " + error);
+				}
+			}
+			rs.close();
+			_metrics.query(CLOSE_LIST, System.nanoTime() - sent, tx.size(), 0);
+		}finally{
+			for (Array array : arrays) array.free();
+		}
+	}
+
+	// connection exceptions (SQLSTATE class 08): retrying entry by entry cannot help
+	private static boolean lost(SQLException e){
+		return e.getSQLState() != null && e.getSQLState().startsWith("08");
+	}
+
+	/**
+	 * Closes every open service request filed more than the given number of
+	 * days ago in the name of one mechanic, with the same comment and bill.
+	 *
+	 * @return the number of requests closed
+	 * @throws java.sql.SQLException when a transaction cannot be run
+	 */
+	public int closeOlderThan(int days, int mid, int bill, String comment) throws SQLException {
+		if (bill <= 0) throw new IllegalArgumentException("bill must be greater than 0");
+		if (!_esql.exists("Mechanic", new String[]{ "id" }, mid))
+			throw new IllegalArgumentException("mechanic " + mid + " does not exist");
+
+		long start = System.nanoTime();
+		try{
+			int n;
+			do{
+				n = _esql.executeUpdate(CLOSE_OLDER_THAN, mid, comment, bill, days, mid, _txSize);
+				_closed += n;
+			}while (n == _txSize);
+		}finally{
+			report(start);
+		}
+		return _closed;
+	}//end closeOlderThan
+
+	private void report(long start){
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%d request(s) closed, %d failed in %.2f s (%.0f closes/sec)%n",
+			_closed, _failed, seconds, seconds > 0 ? _closed / seconds : 0.0);
+	}
+
+	/**
+	 * Parses "rid,mid,bill,comment" lines; the comment may contain commas.
+	 *
+	 * @return the entries, with a message printed for every line that cannot be parsed
+	 */
+	public static List<Entry> parse(List<String> lines){
+		List<Entry> entries = new ArrayList<Entry>();
+		for (int lineNo = 1; lineNo <= lines.size(); ++lineNo){
+			String line = lines.get(lineNo - 1).trim();
+			if (line.isEmpty() || line.startsWith("#")) continue;
+			String[] f = line.split(",", 4);
+			try{
+				entries.add(new Entry(Integer.parseInt(f[0].trim()), Integer.parseInt(f[1].trim()),
+					Integer.parseInt(f[2].trim()), f.length > 3 ? f[3].trim() : ""));
+			}catch (RuntimeException e){
+				System.err.println("line " + lineNo + ": expected rid,mid,bill,comment");
+			}
+		}
+		return entries;
+	}
+}
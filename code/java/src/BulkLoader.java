@@ -0,0 +1,718 @@
+/*
+ * Bulk CSV loader for the MechanicShop database
+ * =============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.postgresql.PGConnection;
+
+/**
+ * Loads the code/data CSV files through the JDBC driver with
+ * COPY ... FROM STDIN, so the files do not have to be on the DB host.
+ * Fields are trimmed and dates such as 10/22/2016 00:00 are rewritten
+ * to ISO form while streaming. Every file is cut into chunks that are
+ * parsed and copied in parallel over separate connections, and tables
+ * are loaded phase by phase so foreign keys are always satisfied.
+ *
+ * The row triggers that keep the summary tables of triggers.sql and
+ * partition.sql must not fire for the load, since every chunk would
+ * otherwise update the same few summary rows once per row. The chunks of
+ * the summarized tables are copied with session_replication_role set to
+ * replica for their own transaction only, so the triggers stay on for
+ * every other session and nothing is left switched off when the loader is
+ * killed. That also skips the foreign key checks of those chunks, which
+ * are checked over the whole tables afterwards. A user that may not set
+ * session_replication_role loads each summarized table in one transaction
+ * that switches its row triggers off until it commits, holding writers
+ * off the table meanwhile. The summaries are then rebuilt from the loaded
+ * tables while writers are held off, and the key sequences are moved past
+ * the loaded keys.
+ *
+ * Triggers of the summarized tables found switched off when a load starts,
+ * as an earlier loader that disabled them with ALTER TABLE may have left
+ * them, are switched on again with a warning.
+ *
+ */
+
+public class BulkLoader{
+	/**
+	 * A target table, the CSV file it is loaded from and the positions of
+	 * its DATE columns.
+	 */
+	static class Table{
+		final String name;
+		final String file;
+		final String[] columns;
+		final int[] dateColumns;
+
+		Table(String name, String file, String[] columns, int... dateColumns){
+			this.name = name;
+			this.file = file;
+			this.columns = columns;
+			this.dateColumns = dateColumns;
+		}
+	}
+
+	static final Table CUSTOMER = new Table("Customer", "customer.csv", new String[]{ "id", "fname", "lname", "phone", "address" });
+	static final Table MECHANIC = new Table("Mechanic", "mechanic.csv", new String[]{ "id", "fname", "lname", "experience" });
+	static final Table CAR = new Table("Car", "car.csv", new String[]{ "vin", "make", "model", "year" });
+	static final Table OWNS = new Table("Owns", "owns.csv", new String[]{ "ownership_id", "customer_id", "car_vin" });
+	static final Table SERVICE_REQUEST = new Table("Service_Request", "service_request.csv", new String[]{ "rid", "customer_id", "car_vin", "date", "odometer", "complain" }, 3);
+	static final Table CLOSED_REQUEST = new Table("Closed_Request", "closed_request.csv", new String[]{ "wid", "rid", "mid", "date", "comment", "bill" }, 3);
+
+	// tables of one phase only reference tables of earlier phases
+	static final Table[][] PHASES = {
+		{ CUSTOMER, MECHANIC, CAR },
+		{ OWNS, SERVICE_REQUEST },
+		{ CLOSED_REQUEST }
+	};
+
+	// the tables whose row triggers maintain the summaries
+	static final Table[] SUMMARIZED = { SERVICE_REQUEST, CLOSED_REQUEST };
+
+	/*
+	 * The foreign keys of the summarized tables, checked after a load since
+	 * their chunks are copied without the checks.
+	 */
+	static final String[][] REFERENCES = {
+		{ "Service_Request", "customer_id", "Customer", "id" },
+		{ "Service_Request", "car_vin", "Car", "vin" },
+		{ "Closed_Request", "rid", "Service_Request", "rid" },
+		{ "Closed_Request", "mid", "Mechanic", "id" }
+	};
+
+	// the user triggers of a table and of its partitions that are switched off
+	static final String DISABLED_TRIGGERS =
+		"SELECT t.tgrelid::regclass::text, t.tgname FROM pg_trigger AS t WHERE NOT t.tgisinternal AND t.tgenabled = 'D' " +
+		"AND (t.tgrelid = to_regclass(?) OR t.tgrelid IN (SELECT inhrelid FROM pg_inherits WHERE inhparent = to_regclass(?)))";
+
+	/*
+	 * Tables kept up to date by the row triggers in triggers.sql and
+	 * partition.sql, emptied together with the base tables, and the
+	 * statements that rebuild them after a load. The claims of requests
+	 * that are still open are kept.
+	 */
+	static final String[][] SUMMARIES = {
+		{ "Car_Service_Count",
+			"TRUNCATE Car_Service_Count",
+			"INSERT INTO Car_Service_Count (make, model, service_count) " +
+			"SELECT C.make, C.model, COUNT(*) FROM Service_Request AS S, Car AS C WHERE S.car_vin = C.vin GROUP BY C.make, C.model" },
+		{ "Customer_Bill_Summary",
+			"TRUNCATE Customer_Bill_Summary",
+			"INSERT INTO Customer_Bill_Summary (customer_id, total_bill, bill_count, min_bill) " +
+			"SELECT SR.customer_id, SUM(CR.bill), COUNT(*), MIN(CR.bill) FROM Closed_Request AS CR, Service_Request AS SR WHERE CR.rid = SR.rid GROUP BY SR.customer_id" },
+		{ "Closed_Rid",
+			"TRUNCATE Closed_Rid",
+			// a request closed twice fails here with unique_violation, as it would in the trigger
+			"INSERT INTO Closed_Rid (rid, wid) SELECT rid, wid FROM Closed_Request",
+			// and a close of a request that does not exist, which the trigger checks on partitioned tables
+			"DO $$ BEGIN IF EXISTS (SELECT 1 FROM Closed_Rid AS C WHERE NOT EXISTS (SELECT 1 FROM Service_Request AS S WHERE S.rid = C.rid)) " +
+			"THEN RAISE foreign_key_violation USING MESSAGE = 'closed requests of service requests that do not exist'; END IF; END $$" },
+		{ "Open_Request",
+			"DELETE FROM Open_Request AS O WHERE NOT EXISTS (SELECT 1 FROM Service_Request AS S WHERE S.rid = O.rid) " +
+			"OR EXISTS (SELECT 1 FROM Closed_Request AS C WHERE C.rid = O.rid)",
+			"INSERT INTO Open_Request (rid, customer_id, car_vin, date) " +
+			"SELECT S.rid, S.customer_id, S.car_vin, S.date FROM Service_Request AS S " +
+			"WHERE NOT EXISTS (SELECT 1 FROM Closed_Request AS C WHERE C.rid = S.rid) ON CONFLICT (rid) DO NOTHING" }
+	};
+
+	private final ConnectionPool _pool;
+	private final Path _dataDir;
+	private final int _chunkSize;
+	private final ExecutorService _workers;
+	private final Semaphore _inFlight;
+	// whether chunks of the summarized tables are copied as replica, see loadAll
+	private volatile boolean _replica = true;
+
+	public BulkLoader(ConnectionPool pool, Path dataDir, int workers, int chunkSize){
+		this._pool = pool;
+		this._dataDir = dataDir;
+		this._chunkSize = chunkSize;
+		this._workers = Executors.newFixedThreadPool(workers);
+		// bounds the number of chunks held in memory at once
+		this._inFlight = new Semaphore(workers * 2);
+	}
+
+	/**
+	 * Empties every table this loader fills, along with the trigger
+	 * maintained summaries that exist in this database.
+	 *
+	 * @throws java.sql.SQLException when the tables cannot be truncated
+	 */
+	public void truncate() throws SQLException {
+		StringBuilder sql = new StringBuilder("TRUNCATE ");
+		for (int p = PHASES.length - 1; p >= 0; --p){
+			for (Table table : PHASES[p]){
+				sql.append(table.name).append(", ");
+			}
+		}
+		Connection conn = _pool.acquire();
+		try{
+			Statement stmt = conn.createStatement();
+			for (String[] summary : SUMMARIES){
+				if (exists(conn, summary[0])) sql.append(summary[0]).append(", ");
+			}
+			sql.setLength(sql.length() - 2);
+			stmt.executeUpdate(sql.toString());
+			stmt.close();
+		}finally{
+			_pool.release(conn);
+		}
+	}//end truncate
+
+	/**
+	 * Loads all tables, phase by phase. The tables of one phase are loaded
+	 * at the same time. The summary triggers do not fire for the load and
+	 * the summaries are rebuilt at the end, also when the load failed; the
+	 * foreign keys the load skipped are checked after that.
+	 *
+	 * @return the total number of rows loaded
+	 * @throws Exception when a file cannot be read or a chunk is rejected;
+	 *         the rows copied before are committed and the message says how many
+	 */
+	public long loadAll() throws Exception {
+		long total = 0;
+		long start = System.nanoTime();
+		for (Table[] phase : PHASES){
+			for (Table table : phase) createPartitions(table);
+		}
+		enableLeftoverTriggers();
+		_replica = replicaAllowed();
+		if (!_replica) System.out.println("session_replication_role cannot be set, summarized tables are loaded one transaction each");
+		Exception failure = null;
+		ExecutorService readers = Executors.newCachedThreadPool();
+		try{
+			for (Table[] phase : PHASES){
+				List<Future<Long>> loads = new ArrayList<Future<Long>>();
+				for (final Table table : phase){
+					loads.add(readers.submit(new Callable<Long>(){
+						public Long call() throws Exception { return load(table); }
+					}));
+				}
+				total += await(loads);
+			}
+		}catch (Failure e){
+			total += e.committed;
+			failure = new Exception(e.getMessage() + "; " + total + " rows in all were committed, load again with --truncate", e.getCause());
+		}catch (Exception e){
+			failure = e;
+		}finally{
+			readers.shutdown();
+		}
+
+		try{
+			rebuildSummaries();
+			resyncSequences();
+			checkReferences();
+		}catch (SQLException e){
+			if (failure == null) throw e;
+			failure.addSuppressed(e);
+		}
+		if (failure != null) throw failure;
+		report("all tables", total, System.nanoTime() - start);
+		return total;
+	}//end loadAll
+
+	/**
+	 * Reads one CSV file and copies it into its table chunk by chunk. Each
+	 * chunk is committed on its own. The partitions the file needs are
+	 * expected to exist, see createPartitions.
+	 *
+	 * @param table the table to fill
+	 * @return the number of rows loaded
+	 * @throws Exception when the file cannot be read or a chunk is rejected
+	 */
+	public long load(Table table) throws Exception {
+		if (!_replica && summarized(table)) return loadInOneTransaction(table);
+		long start = System.nanoTime();
+		List<Future<Integer>> chunks = new ArrayList<Future<Integer>>();
+
+		BufferedReader reader = Files.newBufferedReader(_dataDir.resolve(table.file), StandardCharsets.UTF_8);
+		try{
+			List<String> lines = new ArrayList<String>(_chunkSize);
+			int firstLine = 1, lineNo = 0;
+			String line;
+			while ((line = reader.readLine()) != null){
+				++lineNo;
+				lines.add(line);
+				if (lines.size() == _chunkSize){
+					chunks.add(submit(table, lines, firstLine));
+					lines = new ArrayList<String>(_chunkSize);
+					firstLine = lineNo + 1;
+				}
+			}
+			if (!lines.isEmpty()) chunks.add(submit(table, lines, firstLine));
+		}catch (IOException e){
+			// the chunks already submitted still run
+			await(chunks);
+			throw e;
+		}finally{
+			reader.close();
+		}
+
+		long rows = await(chunks);
+		report(table.name, rows, System.nanoTime() - start);
+		return rows;
+	}//end load
+
+	/*
+	 * A load that failed after other rows were committed: the message
+	 * of the first failure and the rows the other tasks committed.
+	 */
+	private static class Failure extends Exception{
+		private static final long serialVersionUID = 1L;
+		final long committed;
+
+		Failure(String message, long committed, Throwable cause){
+			super(message, cause);
+			this.committed = committed;
+		}
+	}
+
+	/*
+	 * Waits for every task, so none is still copying when a failure is
+	 * reported, and adds up the rows of those that succeeded.
+	 */
+	private static long await(List<? extends Future<? extends Number>> tasks) throws Failure, InterruptedException {
+		long rows = 0, failed = 0;
+		Throwable first = null;
+		for (Future<? extends Number> task : tasks){
+			try{
+				rows += task.get().longValue();
+			}catch (ExecutionException e){
+				Throwable cause = e.getCause();
+				if (cause instanceof Failure) rows += ((Failure) cause).committed;
+				if (first == null) first = cause instanceof Failure ? cause.getCause() : cause;
+				++failed;
+			}
+		}
+		if (first == null) return rows;
+		String message = tasks.size() == 1 ? first.getMessage() : first.getMessage() + " (" + failed + " of " + tasks.size() + " failed)";
+		throw new Failure(message, rows, first);
+	}
+
+	/*
+	 * Loads a summarized table in one transaction on one connection with
+	 * its row triggers and those of its partitions switched off. ALTER
+	 * TABLE is transactional: the triggers are only off for this
+	 * transaction, which holds every writer off the table until it ends,
+	 * and a rollback or a killed loader leaves them on.
+	 */
+	private long loadInOneTransaction(Table table) throws Exception {
+		long start = System.nanoTime();
+		long rows = 0;
+		Connection conn = _pool.acquire();
+		try{
+			conn.setAutoCommit(false);
+			// tgtype bit 0 marks a row trigger; partitions share the trigger names of their parent
+			PreparedStatement stmt = conn.prepareStatement(
+				"SELECT r.oid::regclass::text, t.tgname FROM pg_trigger AS t, pg_class AS r " +
+				"WHERE t.tgrelid = to_regclass(?) AND NOT t.tgisinternal AND t.tgtype & 1 = 1 " +
+				"AND (r.oid = t.tgrelid OR r.oid IN (SELECT inhrelid FROM pg_inherits WHERE inhparent = t.tgrelid))");
+			stmt.setString(1, table.name);
+			List<String> triggers = new ArrayList<String>();
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()) triggers.add(rs.getString(1) + " %s TRIGGER " + rs.getString(2));
+			rs.close();
+			stmt.close();
+			Statement alter = conn.createStatement();
+			for (String trigger : triggers) alter.executeUpdate("ALTER TABLE " + String.format(trigger, "DISABLE"));
+
+			BufferedReader reader = Files.newBufferedReader(_dataDir.resolve(table.file), StandardCharsets.UTF_8);
+			try{
+				List<String> lines = new ArrayList<String>(_chunkSize);
+				int firstLine = 1, lineNo = 0;
+				String line;
+				while ((line = reader.readLine()) != null){
+					++lineNo;
+					lines.add(line);
+					if (lines.size() == _chunkSize){
+						rows += copy(conn, table, lines, firstLine);
+						lines.clear();
+						firstLine = lineNo + 1;
+					}
+				}
+				if (!lines.isEmpty()) rows += copy(conn, table, lines, firstLine);
+			}finally{
+				reader.close();
+			}
+
+			for (String trigger : triggers) alter.executeUpdate("ALTER TABLE " + String.format(trigger, "ENABLE"));
+			alter.close();
+			conn.commit();
+		}finally{
+			// rolls back what was not committed
+			_pool.release(conn);
+		}
+		report(table.name, rows, System.nanoTime() - start);
+		return rows;
+	}//end loadInOneTransaction
+
+	// whether this user may set session_replication_role, which takes a superuser
+	private boolean replicaAllowed() throws SQLException {
+		Connection conn = _pool.acquire();
+		try{
+			conn.setAutoCommit(false);
+			Statement stmt = conn.createStatement();
+			stmt.execute("SET LOCAL session_replication_role = replica");
+			stmt.close();
+			return true;
+		}catch (SQLException e){
+			// insufficient_privilege
+			if (!"42501".equals(e.getSQLState())) throw e;
+			return false;
+		}finally{
+			_pool.release(conn);
+		}
+	}
+
+	/*
+	 * Switches on the triggers of the summarized tables and their
+	 * partitions that are off, which an earlier loader killed while it had
+	 * them switched off with ALTER TABLE would have left behind.
+	 */
+	void enableLeftoverTriggers() throws SQLException {
+		Connection conn = _pool.acquire();
+		try{
+			PreparedStatement stmt = conn.prepareStatement(DISABLED_TRIGGERS);
+			Statement alter = conn.createStatement();
+			for (Table table : SUMMARIZED){
+				stmt.setString(1, table.name);
+				stmt.setString(2, table.name);
+				ResultSet rs = stmt.executeQuery();
+				while (rs.next()){
+					System.err.println("warning: trigger " + rs.getString(2) + " on " + rs.getString(1) + " was switched off, switching it on");
+					alter.executeUpdate("ALTER TABLE " + rs.getString(1) + " ENABLE TRIGGER " + rs.getString(2));
+				}
+				rs.close();
+			}
+			alter.close();
+			stmt.close();
+		}finally{
+			_pool.release(conn);
+		}
+	}//end enableLeftoverTriggers
+
+	/**
+	 * Checks the foreign keys of the summarized tables over the whole
+	 * tables, since their chunks may have been copied without the checks.
+	 *
+	 * @throws java.sql.SQLException with foreign_key_violation when a row references a row that does not exist
+	 */
+	public void checkReferences() throws SQLException {
+		Connection conn = _pool.acquire();
+		try{
+			Statement stmt = conn.createStatement();
+			for (String[] ref : REFERENCES){
+				ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + ref[0] + " AS R WHERE NOT EXISTS (SELECT 1 FROM " +
+					ref[2] + " AS P WHERE P." + ref[3] + " = R." + ref[1] + ")");
+				rs.next();
+				long orphans = rs.getLong(1);
+				rs.close();
+				if (orphans > 0){
+					stmt.close();
+					throw new SQLException(orphans + " " + ref[0] + " row(s) reference a " + ref[2] + " that does not exist (" + ref[1] + ")", "23503");
+				}
+			}
+			stmt.close();
+		}finally{
+			_pool.release(conn);
+		}
+	}//end checkReferences
+
+	static boolean summarized(Table table){
+		for (Table t : SUMMARIZED){
+			if (t == table) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Recomputes the summaries that exist in this database from the base
+	 * tables, in one transaction, with one grouped query each. Writers of
+	 * the summarized tables wait until it commits, and readers of the
+	 * report cache are told the tables changed.
+	 *
+	 * @throws java.sql.SQLException when a summary cannot be rebuilt, such as for a request closed twice
+	 */
+	public void rebuildSummaries() throws SQLException {
+		long start = System.nanoTime();
+		Connection conn = _pool.acquire();
+		try{
+			conn.setAutoCommit(false);
+			Statement stmt = conn.createStatement();
+			stmt.execute("LOCK TABLE Service_Request, Closed_Request IN SHARE MODE");
+			for (String[] summary : SUMMARIES){
+				if (!exists(conn, summary[0])) continue;
+				for (int i = 1; i < summary.length; ++i) stmt.executeUpdate(summary[i]);
+			}
+			// the statement triggers that notify do not fire for chunks copied as replica
+			stmt.execute("SELECT pg_notify('table_changed', 'service_request'), pg_notify('table_changed', 'closed_request')");
+			stmt.close();
+			conn.commit();
+		}finally{
+			_pool.release(conn);
+		}
+		System.out.printf("%-16s rebuilt in %8.2f s%n", "summaries", (System.nanoTime() - start) / 1e9);
+	}//end rebuildSummaries
+
+	/**
+	 * Moves the key sequences of triggers.sql past the loaded keys, see
+	 * IdAllocator.resync.
+	 *
+	 * @throws java.sql.SQLException when a sequence cannot be set
+	 */
+	public void resyncSequences() throws SQLException {
+		Connection conn = _pool.acquire();
+		try{
+			if (!exists(conn, IdAllocator.SEQUENCES[0][0])) return;
+			Statement stmt = conn.createStatement();
+			stmt.execute(IdAllocator.resyncStatement());
+			stmt.close();
+		}finally{
+			_pool.release(conn);
+		}
+	}
+
+	private static boolean exists(Connection conn, String table) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement("SELECT to_regclass(?) IS NOT NULL");
+		stmt.setString(1, table);
+		ResultSet rs = stmt.executeQuery();
+		boolean exists = rs.next() && rs.getBoolean(1);
+		rs.close();
+		stmt.close();
+		return exists;
+	}
+
+	/**
+	 * Creates the monthly partitions a partitioned table (see partition.sql)
+	 * needs for the dates of its file, so COPY routes every row to its month
+	 * rather than to the DEFAULT partition. Other tables are left alone.
+	 *
+	 * @throws Exception when the file cannot be read or the partitions cannot be created
+	 */
+	void createPartitions(Table table) throws Exception {
+		if (table.dateColumns.length == 0) return;
+		Connection conn = _pool.acquire();
+		try{
+			PreparedStatement stmt = conn.prepareStatement("SELECT relkind = 'p' FROM pg_class WHERE oid = to_regclass(?)");
+			stmt.setString(1, table.name);
+			ResultSet rs = stmt.executeQuery();
+			boolean partitioned = rs.next() && rs.getBoolean(1);
+			rs.close();
+			stmt.close();
+			if (!partitioned) return;
+
+			// ISO dates compare as strings
+			String min = null, max = null;
+			BufferedReader reader = Files.newBufferedReader(_dataDir.resolve(table.file), StandardCharsets.UTF_8);
+			try{
+				String line;
+				int lineNo = 0, d = table.dateColumns[0];
+				while ((line = reader.readLine()) != null){
+					++lineNo;
+					String[] fields = line.split(",", -1);
+					// malformed lines are reported by the copy itself
+					if (fields.length != table.columns.length) continue;
+					String date = isoDate(fields[d].trim(), table.file, lineNo);
+					if (date.isEmpty()) continue;
+					if (min == null || date.compareTo(min) < 0) min = date;
+					if (max == null || date.compareTo(max) > 0) max = date;
+				}
+			}finally{
+				reader.close();
+			}
+			if (min == null) return;
+
+			stmt = conn.prepareStatement("SELECT create_month_partitions(?, ?::date, ?::date)");
+			stmt.setString(1, table.name);
+			stmt.setString(2, min);
+			stmt.setString(3, max);
+			rs = stmt.executeQuery();
+			if (rs.next() && rs.getInt(1) > 0) System.out.println(table.name + ": " + rs.getInt(1) + " monthly partition(s) created for " + min + " .. " + max);
+			rs.close();
+			stmt.close();
+		}finally{
+			_pool.release(conn);
+		}
+	}//end createPartitions
+
+	public void shutdown(){
+		_workers.shutdown();
+	}
+
+	private Future<Integer> submit(final Table table, final List<String> lines, final int firstLine) throws InterruptedException {
+		_inFlight.acquire();
+		return _workers.submit(new Callable<Integer>(){
+			public Integer call() throws Exception {
+				try{
+					return copyChunk(table, lines, firstLine);
+				}finally{
+					_inFlight.release();
+				}
+			}
+		});
+	}
+
+	// sends a chunk with one COPY in its own transaction on its own connection, as replica for the summarized tables
+	private int copyChunk(Table table, List<String> lines, int firstLine) throws IOException, SQLException {
+		Connection conn = _pool.acquire();
+		try{
+			conn.setAutoCommit(false);
+			if (summarized(table)){
+				Statement stmt = conn.createStatement();
+				stmt.execute("SET LOCAL session_replication_role = replica");
+				stmt.close();
+			}
+			int rows = copy(conn, table, lines, firstLine);
+			conn.commit();
+			return rows;
+		}finally{
+			// rolls back what was not committed, with the setting
+			_pool.release(conn);
+		}
+	}
+
+	// normalizes a chunk into CSV text and sends it with one COPY
+	private static int copy(Connection conn, Table table, List<String> lines, int firstLine) throws IOException, SQLException {
+		StringBuilder csv = new StringBuilder(lines.size() * 64);
+		int rows = 0;
+		for (int i = 0; i < lines.size(); ++i){
+			if (appendRow(csv, table, lines.get(i), firstLine + i)) ++rows;
+		}
+
+		String sql = "COPY " + table.name + " (" + String.join(", ", table.columns) + ") FROM STDIN WITH (FORMAT csv)";
+		try{
+			((PGConnection) conn).getCopyAPI().copyIn(sql, new StringReader(csv.toString()));
+		}catch (SQLException e){
+			throw new SQLException(table.file + " lines " + firstLine + "-" + (firstLine + lines.size() - 1) + ": " + e.getMessage(), e);
+		}
+		return rows;
+	}
+
+	/**
+	 * Appends one input line as a CSV record, trimming every field and
+	 * rewriting the date columns. Blank lines are skipped.
+	 *
+	 * @return true when a record was appended
+	 */
+	static boolean appendRow(StringBuilder csv, Table table, String line, int lineNo) throws IOException {
+		if (line.trim().isEmpty()) return false;
+
+		String[] fields = line.split(",", -1);
+		if (fields.length != table.columns.length){
+			throw new IOException(table.file + " line " + lineNo + ": expected " + table.columns.length + " fields, found " + fields.length);
+		}
+		for (int i = 0; i < fields.length; ++i){
+			String field = fields[i].trim();
+			for (int d : table.dateColumns){
+				if (d == i) field = isoDate(field, table.file, lineNo);
+			}
+			if (i > 0) csv.append(',');
+			appendField(csv, field);
+		}
+		csv.append('\n');
+		return true;
+	}
+
+	/**
+	 * Rewrites M/d/yyyy [HH:mm] as yyyy-MM-dd. ISO dates are passed through.
+	 */
+	static String isoDate(String value, String file, int lineNo) throws IOException {
+		if (value.isEmpty() || value.indexOf('/') < 0) return value;
+
+		int space = value.indexOf(' ');
+		String[] parts = (space < 0 ? value : value.substring(0, space)).split("/");
+		if (parts.length != 3){
+			throw new IOException(file + " line " + lineNo + ": cannot read date " + value);
+		}
+		StringBuilder iso = new StringBuilder(10);
+		iso.append(parts[2]).append('-');
+		if (parts[0].length() == 1) iso.append('0');
+		iso.append(parts[0]).append('-');
+		if (parts[1].length() == 1) iso.append('0');
+		iso.append(parts[1]);
+		return iso.toString();
+	}
+
+	// empty unquoted fields are read as NULL by COPY
+	static void appendField(StringBuilder csv, String field){
+		boolean quote = false;
+		for (int i = 0; i < field.length() && !quote; ++i){
+			char c = field.charAt(i);
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+		if (!quote){
+			csv.append(field);
+			return;
+		}
+		csv.append('"').append(field.replace("\"", "\"\"")).append('"');
+	}
+
+	static void report(String what, long rows, long nanos){
+		double seconds = nanos / 1e9;
+		System.out.printf("%-16s %10d rows in %8.2f s  (%.0f rows/sec)%n", what, rows, seconds, seconds > 0 ? rows / seconds : 0.0);
+	}
+
+	/**
+	 * The bulk loader entry point
+	 *
+	 * @param args <dbname> <port> <user> [data dir] [--truncate] [--workers n] [--chunk n]
+	 */
+	public static void main(String[] args){
+		if (args.length < 3){
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + BulkLoader.class.getName () +
+				" <dbname> <port> <user> [data dir] [--truncate] [--workers n] [--chunk n]");
+			return;
+		}//end if
+
+		Path dataDir = Paths.get("../data");
+		boolean truncate = false;
+		int workers = Runtime.getRuntime().availableProcessors();
+		int chunkSize = 20000;
+		for (int i = 3; i < args.length; ++i){
+			if (args[i].equals("--truncate")) truncate = true;
+			else if (args[i].equals("--workers")) workers = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--chunk")) chunkSize = Integer.parseInt(args[++i]);
+			else dataDir = Paths.get(args[i]);
+		}
+
+		String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+		ConnectionPool pool = new ConnectionPool(url, args[2], "", workers, 4);
+		BulkLoader loader = new BulkLoader(pool, dataDir, workers, chunkSize);
+		try{
+			if (truncate) loader.truncate();
+			loader.loadAll();
+		}catch (Exception e){
+			System.err.println ("error: " + e.getMessage());
+		}finally{
+			loader.shutdown();
+			pool.close();
+		}
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ * Connection pool for the MechanicShop client
+ * ===========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small bounded pool of physical connections. Every pooled connection
+ * keeps its own cache of prepared statements keyed by the SQL template, so
+ * a statement is parsed and planned by the server once per connection
+ * instead of once per call.
+ *
+ */
+
+public class ConnectionPool{
+	private final String _url;
+	private final Properties _props;
+	private final int _maxSize;
+	private final int _statementCacheSize;
+
+	// idle connections, most recently used first so the warm statement cache is reused
+	private final LinkedBlockingDeque<Connection> _idle = new LinkedBlockingDeque<Connection>();
+	private final Map<Connection, Map<String, PreparedStatement>> _statements = new ConcurrentHashMap<Connection, Map<String, PreparedStatement>>();
+	private final AtomicInteger _created = new AtomicInteger();
+	private volatile boolean _closed = false;
+
+	/**
+	 * @param url the JDBC connection URL
+	 * @param user the database user
+	 * @param passwd the database password
+	 * @param maxSize the maximum number of physical connections
+	 * @param statementCacheSize the maximum number of cached statements per connection
+	 */
+	public ConnectionPool(String url, String user, String passwd, int maxSize, int statementCacheSize){
+		this._url = url;
+		this._props = new Properties();
+		this._props.setProperty("user", user);
+		this._props.setProperty("password", passwd);
+		// use server-side prepared statements from the first execution on
+		this._props.setProperty("prepareThreshold", System.getProperty("mechanicshop.prepareThreshold", "1"));
+		// send executeBatch inserts as multi-row statements
+		this._props.setProperty("reWriteBatchedInserts", "true");
+		this._maxSize = Math.max(1, maxSize);
+		this._statementCacheSize = Math.max(1, statementCacheSize);
+	}
+
+	/**
+	 * Takes a connection out of the pool, opening a new one if the pool is
+	 * not yet at its maximum size, otherwise waiting for one to be released.
+	 *
+	 * @return a connection that must be handed back with release()
+	 * @throws java.sql.SQLException when no connection could be obtained
+	 */
+	public Connection acquire() throws SQLException {
+		if (_closed) throw new SQLException("connection pool is closed");
+
+		Connection conn = _idle.pollFirst();
+		if (conn != null) return conn;
+
+		// grow the pool while below the bound
+		while (true){
+			int n = _created.get();
+			if (n >= _maxSize) break;
+			if (_created.compareAndSet(n, n + 1)){
+				try{
+					return open();
+				}catch (SQLException e){
+					_created.decrementAndGet();
+					throw e;
+				}
+			}
+		}
+
+		try{
+			conn = _idle.pollFirst(30, TimeUnit.SECONDS);
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("interrupted while waiting for a connection");
+		}
+		if (conn == null) throw new SQLException("timed out waiting for a database connection");
+		return conn;
+	}//end acquire
+
+	/**
+	 * Hands a connection back to the pool. Broken connections are discarded
+	 * and the transaction state is reset before the connection is reused.
+	 *
+	 * @param conn a connection obtained from acquire()
+	 */
+	public void release(Connection conn){
+		if (conn == null) return;
+		try{
+			if (_closed || conn.isClosed()){
+				discard(conn);
+				return;
+			}
+			if (!conn.getAutoCommit()){
+				conn.rollback();
+				conn.setAutoCommit(true);
+			}
+			_idle.offerFirst(conn);
+		}catch (SQLException e){
+			discard(conn);
+		}
+	}//end release
+
+	/**
+	 * Returns the cached prepared statement for the given SQL template on
+	 * this connection, preparing it on first use.
+	 *
+	 * @param conn a connection obtained from acquire()
+	 * @param sql the SQL template with ? placeholders
+	 * @return the prepared statement, owned by the pool
+	 * @throws java.sql.SQLException when the statement cannot be prepared
+	 */
+	public PreparedStatement prepare(Connection conn, String sql) throws SQLException {
+		Map<String, PreparedStatement> cache = _statements.get(conn);
+		if (cache == null){
+			cache = newStatementCache();
+			_statements.put(conn, cache);
+		}
+		PreparedStatement stmt = cache.get(sql);
+		if (stmt == null || stmt.isClosed()){
+			stmt = conn.prepareStatement(sql);
+			cache.put(sql, stmt);
+		}
+		return stmt;
+	}//end prepare
+
+	/**
+	 * Closes every pooled connection and its cached statements.
+	 */
+	public void close(){
+		_closed = true;
+		Connection conn;
+		while ((conn = _idle.pollFirst()) != null){
+			discard(conn);
+		}
+	}//end close
+
+	/**
+	 * Opens a connection outside the pool, for a session kept open for the
+	 * life of the client such as the LISTEN of the ReportCache.
+	 *
+	 * @return a connection the caller closes
+	 * @throws java.sql.SQLException when the connection cannot be opened
+	 */
+	public Connection openDedicated() throws SQLException {
+		return DriverManager.getConnection(_url, _props);
+	}
+
+	private Connection open() throws SQLException {
+		Connection conn = DriverManager.getConnection(_url, _props);
+		_statements.put(conn, newStatementCache());
+		return conn;
+	}
+
+	private void discard(Connection conn){
+		Map<String, PreparedStatement> cache = _statements.remove(conn);
+		if (cache != null){
+			for (PreparedStatement stmt : cache.values()) closeQuietly(stmt);
+		}
+		try{
+			conn.close();
+		}catch (SQLException e){
+			// ignored.
+		}
+		_created.decrementAndGet();
+	}
+
+	// a connection is used by one thread at a time, so the cache itself needs no locking
+	private Map<String, PreparedStatement> newStatementCache(){
+		return new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true){
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest){
+				if (size() > _statementCacheSize){
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	private static void closeQuietly(PreparedStatement stmt){
+		try{
+			stmt.close();
+		}catch (SQLException e){
+			// ignored.
+		}
+	}
+}
@@ -0,0 +1,309 @@
+/*
+ * Synthetic dataset generator for the MechanicShop database
+ * =========================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes customer.csv, mechanic.csv, car.csv, owns.csv, service_request.csv
+ * and closed_request.csv in the layout of code/data at a chosen scale
+ * factor. Scale 1 matches the shipped dataset (500 customers, 250 mechanics,
+ * 5,000 cars, 30,000 requests).
+ *
+ * Every row is drawn from its own random generator seeded by the run seed
+ * and the row number, so the output is identical for a given seed no matter
+ * how many workers write it. Workers write numbered part files that are
+ * concatenated in order at the end.
+ *
+ * The values respect the create.sql domains (_YEAR >= 1970, _PINTEGER > 0,
+ * 0 <= _YEARS < 100) and foreign keys: every car has exactly one owner and a
+ * service request is always made by the owner of its car. Skew is
+ * configurable: a few fleet customers own more than 20 cars each and
+ * make/model popularity follows a Zipf distribution.
+ *
+ */
+
+public class DataGenerator{
+	static final String[] FIRST_NAMES = { "Armand", "Alberto", "Wyatt", "Alexandria", "Rory", "Blythe", "Maria", "James",
+		"Linda", "Robert", "Patricia", "Michael", "Barbara", "William", "Elizabeth", "David", "Jennifer", "Richard",
+		"Susan", "Joseph", "Jessica", "Thomas", "Sarah", "Charles", "Karen", "Daniel", "Nancy", "Matthew", "Lisa", "Anthony" };
+	static final String[] LAST_NAMES = { "Enderle", "Scarlett", "Ruoff", "Cuyler", "Berner", "Santacruz", "Smith", "Johnson",
+		"Williams", "Brown", "Jones", "Garcia", "Miller", "Davis", "Rodriguez", "Martinez", "Hernandez", "Lopez", "Gonzalez",
+		"Wilson", "Anderson", "Thomas", "Taylor", "Moore", "Jackson", "Martin", "Lee", "Perez", "Thompson", "White",
+		"Harris", "Sanchez", "Clark", "Ramirez", "Lewis", "Robinson", "Walker", "Young", "Allen", "King" };
+	static final String[] STREETS = { "Chapel Drive", "Bald Hill Street", "Campfire Ave.", "Oak Street", "Pine Road",
+		"Maple Ave.", "Cedar Lane", "Elm Street", "Lakeview Drive", "Sunset Blvd." };
+	static final String[] CITIES = { "Melbourne", "Baton Rouge", "Cockeysville", "Riverside", "Fresno", "Tucson",
+		"Omaha", "Raleigh", "Boise", "Spokane" };
+	// ordered by popularity
+	static final String[][] MODELS = {
+		{ "Toyota", "Prius" }, { "Honda", "Civic" }, { "Ford", "F-150" }, { "Toyota", "Camry" }, { "Honda", "Accord" },
+		{ "Chevrolet", "Silverado" }, { "Nissan", "Altima" }, { "Ford", "Focus" }, { "Hyundai", "Elantra" },
+		{ "Toyota", "Corolla" }, { "Subaru", "Outback" }, { "Mazda", "3" }, { "Kia", "Soul" }, { "BMW", "328i" },
+		{ "Volkswagen", "Jetta" }, { "Jeep", "Wrangler" }, { "Dodge", "Charger" }, { "Audi", "A4" },
+		{ "Mercedes", "C300" }, { "Tesla", "Model S" }, { "Volvo", "XC90" }, { "Lexus", "RX350" },
+		{ "Ford", "Sunny" }, { "Lamborghini", "M1" }, { "Porsche", "911" } };
+	static final String[] COMPLAINTS = { "No brakes", "The wheel does not turn right", "Burns too much gas",
+		"I cannot hear the horn", "Strange noise from the engine", "Check engine light is on", "Flat tire",
+		"Air conditioning is not working", "Battery keeps dying", "Transmission slips" };
+	static final String[] COMMENTS = { "We lost your car", "We changed the color", "This is a bicycle",
+		"Replaced the brake pads", "Rotated the tires", "Changed the oil", "Replaced the battery",
+		"Fixed the transmission", "Nothing wrong with it", "Replaced the horn" };
+
+	static final long FIRST_DAY = LocalDate.of(2010, 1, 1).toEpochDay();
+	static final int DAYS = (int) (LocalDate.of(2018, 1, 1).toEpochDay() - FIRST_DAY);
+
+	/**
+	 * Writes one row of each output file for row number i.
+	 */
+	interface Rows{
+		void write(int i, SplittableRandom rng, Writer[] out) throws IOException;
+	}
+
+	private final Path _outDir;
+	private final long _seed;
+	private final int _customers, _mechanics, _cars, _requests;
+	private final double _fleetShare;
+	private final double _zipf;
+	private final double _closedShare;
+	private final int _chunkSize;
+	private final ExecutorService _workers;
+	private final double[] _modelCdf;
+
+	public DataGenerator(Path outDir, double scale, long seed, int workers, double fleetShare, double zipf, double closedShare){
+		this._outDir = outDir;
+		this._seed = seed;
+		this._customers = Math.max(1, (int) Math.round(500 * scale));
+		this._mechanics = Math.max(1, (int) Math.round(250 * scale));
+		this._cars = Math.max(1, (int) Math.round(5000 * scale));
+		this._requests = (int) Math.min(Integer.MAX_VALUE - 1, Math.round(30000 * scale));
+		this._fleetShare = fleetShare;
+		this._zipf = zipf;
+		this._closedShare = closedShare;
+		this._chunkSize = 250000;
+		this._workers = Executors.newFixedThreadPool(workers);
+
+		// cumulative Zipf weights over the make/model list
+		this._modelCdf = new double[MODELS.length];
+		double sum = 0;
+		for (int r = 0; r < MODELS.length; ++r){
+			sum += 1.0 / Math.pow(r + 1, zipf);
+			_modelCdf[r] = sum;
+		}
+		for (int r = 0; r < MODELS.length; ++r) _modelCdf[r] /= sum;
+	}
+
+	/**
+	 * Generates all six files.
+	 *
+	 * @throws Exception when a file cannot be written
+	 */
+	public void generateAll() throws Exception {
+		Files.createDirectories(_outDir);
+		long start = System.nanoTime();
+
+		generate(new String[]{ "customer.csv" }, _customers, 1, new Rows(){
+			public void write(int i, SplittableRandom rng, Writer[] out) throws IOException {
+				out[0].write(i + "," + pick(rng, FIRST_NAMES) + "," + pick(rng, LAST_NAMES) + "," + phone(rng) + ","
+					+ (1000 + rng.nextInt(9000)) + " " + pick(rng, STREETS) + " " + pick(rng, CITIES) + "\n");
+			}
+		});
+		generate(new String[]{ "mechanic.csv" }, _mechanics, 2, new Rows(){
+			public void write(int i, SplittableRandom rng, Writer[] out) throws IOException {
+				out[0].write(i + "," + pick(rng, FIRST_NAMES) + "," + pick(rng, LAST_NAMES) + "," + rng.nextInt(41) + "\n");
+			}
+		});
+		generate(new String[]{ "car.csv", "owns.csv" }, _cars, 3, new Rows(){
+			public void write(int i, SplittableRandom rng, Writer[] out) throws IOException {
+				String[] model = MODELS[model(rng)];
+				String vin = vin(i);
+				out[0].write(vin + "," + model[0] + "," + model[1] + "," + (1970 + rng.nextInt(48)) + "\n");
+				out[1].write(i + "," + owner(i) + "," + vin + "\n");
+			}
+		});
+		generate(new String[]{ "service_request.csv", "closed_request.csv" }, _requests, 4, new Rows(){
+			public void write(int i, SplittableRandom rng, Writer[] out) throws IOException {
+				int car = rng.nextInt(_cars);
+				long day = FIRST_DAY + rng.nextInt(DAYS);
+				out[0].write(i + "," + owner(car) + "," + vin(car) + "," + date(day) + "," + (1 + rng.nextInt(300000))
+					+ "," + pick(rng, COMPLAINTS) + "\n");
+				if (rng.nextDouble() < _closedShare){
+					// most bills are small, a few are large
+					int bill = rng.nextDouble() < 0.2 ? 1 + rng.nextInt(99) : 100 + rng.nextInt(1900);
+					out[1].write((i + 1) + "," + i + "," + rng.nextInt(_mechanics) + "," + date(day + rng.nextInt(31))
+						+ "," + pick(rng, COMMENTS) + "," + bill + "\n");
+				}
+			}
+		});
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("generated %d customers, %d mechanics, %d cars, %d requests in %.2f s%n",
+			_customers, _mechanics, _cars, _requests, seconds);
+	}//end generateAll
+
+	public void shutdown(){
+		_workers.shutdown();
+	}
+
+	// writes count rows in parallel chunks, then joins the part files in order
+	private void generate(final String[] files, int count, final long salt, final Rows rows) throws Exception {
+		List<Future<Void>> parts = new ArrayList<Future<Void>>();
+		final int chunks = (int) ((count + (long) _chunkSize - 1) / _chunkSize);
+		for (int c = 0; c < chunks; ++c){
+			final int part = c;
+			final int from = c * _chunkSize;
+			final int to = (int) Math.min(count, (long) from + _chunkSize);
+			parts.add(_workers.submit(new Callable<Void>(){
+				public Void call() throws Exception {
+					Writer[] out = new Writer[files.length];
+					try{
+						for (int f = 0; f < files.length; ++f){
+							out[f] = new BufferedWriter(Files.newBufferedWriter(partFile(files[f], part), StandardCharsets.UTF_8), 1 << 16);
+						}
+						for (int i = from; i < to; ++i){
+							rows.write(i, new SplittableRandom(mix(_seed, salt, i)), out);
+						}
+					}finally{
+						for (Writer w : out) if (w != null) w.close();
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> part : parts){
+			try{
+				part.get();
+			}catch (ExecutionException e){
+				throw (Exception) e.getCause();
+			}
+		}
+
+		for (String file : files){
+			FileChannel target = FileChannel.open(_outDir.resolve(file), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			try{
+				for (int c = 0; c < chunks; ++c){
+					Path part = partFile(file, c);
+					FileChannel source = FileChannel.open(part, StandardOpenOption.READ);
+					try{
+						long pos = 0, size = source.size();
+						while (pos < size) pos += source.transferTo(pos, size - pos, target);
+					}finally{
+						source.close();
+					}
+					Files.delete(part);
+				}
+			}finally{
+				target.close();
+			}
+		}
+	}
+
+	private Path partFile(String file, int part){
+		return _outDir.resolve(file + ".part" + part);
+	}
+
+	// owner of car i: fleet customers (the first 1%) receive a share of all cars
+	int owner(int car){
+		SplittableRandom rng = new SplittableRandom(mix(_seed, 5, car));
+		int fleet = Math.max(1, _customers / 100);
+		if (rng.nextDouble() < _fleetShare) return rng.nextInt(fleet);
+		return rng.nextInt(_customers);
+	}
+
+	int model(SplittableRandom rng){
+		double u = rng.nextDouble();
+		for (int r = 0; r < _modelCdf.length; ++r){
+			if (u < _modelCdf[r]) return r;
+		}
+		return _modelCdf.length - 1;
+	}
+
+	// unique per car: six letters, then the car number in ten digits
+	static String vin(int car){
+		SplittableRandom rng = new SplittableRandom(car * 0x9E3779B97F4A7C15L);
+		StringBuilder vin = new StringBuilder(16);
+		for (int i = 0; i < 6; ++i) vin.append((char) ('A' + rng.nextInt(26)));
+		String digits = Long.toString(car);
+		for (int i = digits.length(); i < 10; ++i) vin.append('0');
+		return vin.append(digits).toString();
+	}
+
+	// same form as code/data, e.g. 10/22/2016 00:00
+	static String date(long epochDay){
+		LocalDate d = LocalDate.ofEpochDay(epochDay);
+		return d.getMonthValue() + "/" + d.getDayOfMonth() + "/" + d.getYear() + " 00:00";
+	}
+
+	static String phone(SplittableRandom rng){
+		return "(" + (200 + rng.nextInt(800)) + ")" + (100 + rng.nextInt(900)) + "-" + (1000 + rng.nextInt(9000));
+	}
+
+	static String pick(SplittableRandom rng, String[] values){
+		return values[rng.nextInt(values.length)];
+	}
+
+	static long mix(long seed, long salt, long i){
+		long z = seed * 0x9E3779B97F4A7C15L + salt * 0xBF58476D1CE4E5B9L + i * 0x94D049BB133111EBL;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * The generator entry point
+	 *
+	 * @param args <out dir> [--scale f] [--seed n] [--workers n] [--fleet share] [--zipf s] [--closed share]
+	 */
+	public static void main(String[] args){
+		if (args.length < 1){
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + DataGenerator.class.getName () +
+				" <out dir> [--scale f] [--seed n] [--workers n] [--fleet share] [--zipf s] [--closed share]");
+			return;
+		}//end if
+
+		double scale = 1, fleet = 0.05, zipf = 1.0, closed = 0.95;
+		long seed = 166;
+		int workers = Runtime.getRuntime().availableProcessors();
+		for (int i = 1; i < args.length; ++i){
+			if (args[i].equals("--scale")) scale = Double.parseDouble(args[++i]);
+			else if (args[i].equals("--seed")) seed = Long.parseLong(args[++i]);
+			else if (args[i].equals("--workers")) workers = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--fleet")) fleet = Double.parseDouble(args[++i]);
+			else if (args[i].equals("--zipf")) zipf = Double.parseDouble(args[++i]);
+			else if (args[i].equals("--closed")) closed = Double.parseDouble(args[++i]);
+		}
+
+		DataGenerator generator = new DataGenerator(Paths.get(args[0]), scale, seed, workers, fleet, zipf, closed);
+		try{
+			generator.generateAll();
+		}catch (Exception e){
+			System.err.println ("error: " + e.getMessage());
+		}finally{
+			generator.shutdown();
+		}
+	}
+}
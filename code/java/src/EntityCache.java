@@ -0,0 +1,97 @@
+/*
+ * Lookup cache for the MechanicShop client
+ * ========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, least recently used cache of entity lookups (customers by
+ * last name or id, cars by owner or VIN). Entries are keyed by a short string such as
+ * "customer:lname:Smith" and hold the rows returned by
+ * executeQueryAndReturnTypedResult. The client invalidates the
+ * keys its own writes touch; entries also expire after a time to live so
+ * rows written by other desks show up.
+ *
+ */
+
+public class EntityCache{
+	private final int _maxEntries;
+	private final long _ttlNanos;
+	private final AtomicLong _hits = new AtomicLong();
+	private final AtomicLong _misses = new AtomicLong();
+
+	private final LinkedHashMap<String, Cached> _entries;
+
+	private static class Cached{
+		final TypedResult rows;
+		final long expires;
+
+		Cached(TypedResult rows, long expires){
+			this.rows = rows;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * @param maxEntries the number of lookups kept before the least recently used is evicted
+	 * @param ttlMillis how long an entry may be served, 0 to keep it until evicted
+	 */
+	public EntityCache(final int maxEntries, long ttlMillis){
+		this._maxEntries = Math.max(1, maxEntries);
+		this._ttlNanos = ttlMillis * 1000000L;
+		this._entries = new LinkedHashMap<String, Cached>(64, 0.75f, true){
+			protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest){
+				return size() > _maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * @param key the lookup key
+	 * @return the cached rows, or null when the key is not cached or expired
+	 */
+	public synchronized TypedResult get(String key){
+		Cached entry = _entries.get(key);
+		if (entry != null && _ttlNanos > 0 && System.nanoTime() - entry.expires > 0){
+			_entries.remove(key);
+			entry = null;
+		}
+		if (entry == null){
+			_misses.incrementAndGet();
+			return null;
+		}
+		_hits.incrementAndGet();
+		return entry.rows;
+	}
+
+	public synchronized void put(String key, TypedResult rows){
+		_entries.put(key, new Cached(rows, System.nanoTime() + _ttlNanos));
+	}
+
+	public synchronized void invalidate(String key){
+		_entries.remove(key);
+	}
+
+	public long hits(){
+		return _hits.get();
+	}
+
+	public long misses(){
+		return _misses.get();
+	}
+
+	public synchronized int size(){
+		return _entries.size();
+	}
+
+	public String toString(){
+		return "lookup cache: " + size() + " entries, " + hits() + " hits, " + misses() + " misses";
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Key allocator for the MechanicShop client
+ * =========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
+
+/**
+ * Hands out primary keys from the DB sequences created in triggers.sql.
+ * Keys are reserved from the server a block at a time with nextval, so each
+ * value is unique across threads and client processes, and most inserts take
+ * their key from memory without a round trip. Unused keys of a block are
+ * simply skipped when the client exits.
+ *
+ */
+
+public class IdAllocator{
+	/*
+	 * sequence name, owning table, key column. The names are fixed here and
+	 * never come from user input, so they are safe to format into SQL.
+	 */
+	static final String[][] SEQUENCES = {
+		{ "customer_id_seq", "Customer", "id" },
+		{ "mechanic_id_seq", "Mechanic", "id" },
+		{ "owns_id_seq", "Owns", "ownership_id" },
+		{ "rid_seq", "Service_Request", "rid" },
+		{ "wid_seq", "Closed_Request", "wid" }
+	};
+
+	private final MechanicShop _esql;
+	private final int _blockSize;
+	private final Map<String, Block> _blocks = new HashMap<String, Block>();
+
+	/**
+	 * @param esql the connected client
+	 * @param blockSize number of keys reserved per round trip
+	 */
+	public IdAllocator(MechanicShop esql, int blockSize){
+		this._esql = esql;
+		this._blockSize = Math.max(1, blockSize);
+		for (String[] seq : SEQUENCES){
+			_blocks.put(seq[0], new Block());
+		}
+	}
+
+	/**
+	 * Moves every sequence past the largest key already in its table, so keys
+	 * loaded with COPY or inserted by hand are never handed out again. Called
+	 * once at startup; the schema script and the BulkLoader run the same
+	 * statement after they load rows.
+	 *
+	 * @throws java.sql.SQLException when a sequence cannot be read or set
+	 */
+	public void resync() throws SQLException {
+		_esql.executeUpdate(resyncStatement());
+	}//end resync
+
+	/*
+	 * One statement, so one transaction, for all sequences. A sequence is
+	 * only set when its table already holds the value it would hand out
+	 * next: setting it otherwise could move it back behind a block another
+	 * client reserved since it was read. The advisory lock keeps two
+	 * resyncs from racing each other.
+	 */
+	static String resyncStatement(){
+		StringBuilder sql = new StringBuilder("DO $$ BEGIN PERFORM pg_advisory_xact_lock(hashtext('IdAllocator.resync'));");
+		for (String[] seq : SEQUENCES){
+			sql.append(String.format(
+				" PERFORM setval('%1$s', T.max + 1, false) FROM (SELECT COALESCE(MAX(%3$s), 0) AS max FROM %2$s) AS T, %1$s AS S" +
+				" WHERE T.max >= CASE WHEN S.is_called THEN S.last_value + 1 ELSE S.last_value END;",
+				seq[0], seq[1], seq[2]));
+		}
+		return sql.append(" END $$").toString();
+	}
+
+	/**
+	 * Returns the next unused key of a sequence, reserving a new block from
+	 * the server when the current one is used up.
+	 *
+	 * @param sequence name of the DB sequence
+	 * @return a key no other caller will receive
+	 * @throws java.sql.SQLException when a block cannot be reserved
+	 */
+	public int next(String sequence) throws SQLException {
+		Block block = _blocks.get(sequence);
+		if (block == null) throw new SQLException("unknown sequence " + sequence);
+
+		synchronized (block){
+			if (block.pos == block.ids.length){
+				block.ids = reserve(sequence);
+				block.pos = 0;
+			}
+			return block.ids[block.pos++];
+		}
+	}//end next
+
+	/**
+	 * Reserves a block for every sequence whose block is used up, so the
+	 * next keys can be handed out while the server is unreachable. Called
+	 * at startup when writes may go to the WriteJournal.
+	 *
+	 * @throws java.sql.SQLException when a block cannot be reserved
+	 */
+	public void fill() throws SQLException {
+		for (String[] seq : SEQUENCES){
+			Block block = _blocks.get(seq[0]);
+			synchronized (block){
+				if (block.pos == block.ids.length){
+					block.ids = reserve(seq[0]);
+					block.pos = 0;
+				}
+			}
+		}
+	}//end fill
+
+	// one round trip; the values need not be contiguous when other clients allocate concurrently
+	private int[] reserve(String sequence) throws SQLException {
+		List<List<String>> rows = _esql.executeQueryAndReturnResult(
+			"SELECT nextval(?::regclass) FROM generate_series(1, ?)", sequence, _blockSize);
+		int[] ids = new int[rows.size()];
+		for (int i = 0; i < ids.length; ++i){
+			ids[i] = Integer.parseInt(rows.get(i).get(0));
+		}
+		return ids;
+	}
+
+	private static class Block{
+		int[] ids = new int[0];
+		int pos = 0;
+	}
+}
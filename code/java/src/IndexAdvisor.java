@@ -0,0 +1,398 @@
+/*
+ * Index advisor and plan regression check for the MechanicShop client
+ * ===================================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs every SQL template the client issues under EXPLAIN (ANALYZE,
+ * BUFFERS) against one or more datasets, reports sequential scans over
+ * large tables and sorts that spill to disk, proposes the indexes that
+ * would serve them, and compares each plan with a stored baseline.
+ *
+ * Statements that write are explained inside a transaction that is rolled
+ * back, so the tables are left as they were.
+ *
+ * A baseline file is kept per dataset label (the directory name of the
+ * dataset) and holds the shape of every plan (node types, relations and
+ * indexes, without numbers or month partition suffixes) and its estimated
+ * total cost. Without --update, a run fails when a shape differs from its
+ * baseline or a cost grew by more than the tolerance; with --update the
+ * baselines are rewritten from this run.
+ *
+ *   java IndexAdvisor <db> <port> <user> [--dataset dir]... [--baseline dir] [--update] [--tolerance f] [--min-rows n]
+ *
+ * Each --dataset directory is bulk loaded before its templates run, after
+ * every table has been truncated, so only point it at a scratch database;
+ * a load that fails ends the run before any baseline is compared or
+ * written. With no --dataset, the current contents are used under the
+ * label "current".
+ *
+ */
+
+public class IndexAdvisor{
+	private static final Pattern COST = Pattern.compile("\\(cost=[0-9.]+\\.\\.([0-9.]+) ");
+	private static final Pattern ACTUAL_ROWS = Pattern.compile("actual time=[0-9.]+\\.\\.[0-9.]+ rows=([0-9]+) loops=([0-9]+)");
+	private static final Pattern SEQ_SCAN = Pattern.compile("Seq Scan on (\\w+)(?: (\\w+))?");
+	private static final Pattern REMOVED = Pattern.compile("Rows Removed by Filter: ([0-9]+)");
+	private static final Pattern SPILL = Pattern.compile("Sort Method: external \\w+\\s+Disk: ([0-9]+)kB");
+	private static final Pattern CONDITION = Pattern.compile("^(Filter|Hash Cond|Merge Cond|Join Filter|Index Cond|Recheck Cond):");
+	private static final Pattern MONTH = Pattern.compile("_[0-9]{4}_[0-9]{2}(?![0-9])");
+	private static final Pattern PARTITION_ALIAS = Pattern.compile("((?:_yyyy_mm|_default)\\w*) (\\w+?)_[0-9]+\\b");
+
+	/**
+	 * A statement to explain with sample parameters.
+	 */
+	static class Template{
+		final String name, sql;
+		final Object[] params;
+		final boolean writes;
+
+		Template(String name, String sql, boolean writes, Object... params){
+			this.name = name;
+			this.sql = sql;
+			this.writes = writes;
+			this.params = params;
+		}
+	}
+
+	/**
+	 * The parts of an EXPLAIN ANALYZE output the advisor looks at.
+	 */
+	static class Plan{
+		final List<String> lines;
+		final String shape;
+		final double cost;
+		final double millis;
+
+		Plan(List<String> lines){
+			this.lines = lines;
+			StringBuilder shape = new StringBuilder();
+			double millis = 0;
+			String last = null;
+			for (String line : lines){
+				String node = node(line);
+				// one scan per month partition: as many as there are months, not a change of plan
+				if (node != null && !node.equals(last)) shape.append(shape.length() > 0 ? " | " : "").append(node);
+				if (node != null) last = node;
+				if (line.trim().startsWith("Execution Time:"))
+					millis = Double.parseDouble(line.trim().replaceAll("[^0-9.]", ""));
+			}
+			Matcher m = COST.matcher(lines.get(0));
+			this.cost = m.find() ? Double.parseDouble(m.group(1)) : 0;
+			this.shape = shape.toString();
+			this.millis = millis;
+		}
+
+		// "depth:node text" for plan node lines, null for detail lines
+		static String node(String line){
+			int cost = line.indexOf("  (cost=");
+			if (cost < 0) return null;
+			String text = line.substring(0, cost);
+			int arrow = text.indexOf("->");
+			int depth = arrow < 0 ? 0 : arrow;
+			String name = (arrow < 0 ? text : text.substring(arrow + 2)).trim();
+			// parallel plans vary their worker count between runs
+			name = name.replaceAll("\\(Workers \\w+\\)", "");
+			// month partitions (service_request_2024_05) and their indexes come and go with the data
+			name = MONTH.matcher(name).replaceAll("_yyyy_mm");
+			name = PARTITION_ALIAS.matcher(name).replaceAll("$1 $2");
+			return depth + ":" + name;
+		}
+	}
+
+	private final MechanicShop _esql;
+	private final long _minRows;
+
+	public IndexAdvisor(MechanicShop esql, long minRows){
+		this._esql = esql;
+		this._minRows = minRows;
+	}
+
+	/**
+	 * @return every template of the client with parameters drawn from the current data
+	 */
+	List<Template> templates() throws SQLException {
+		int customer = Math.max(0, _esql.queryForInt("SELECT MIN(id) FROM Customer"));
+		int mechanic = Math.max(0, _esql.queryForInt("SELECT MIN(id) FROM Mechanic"));
+		int openRid = Math.max(0, _esql.queryForInt("SELECT MIN(rid) FROM Open_Request"));
+		List<String[]> sample = _esql.executeQueryAndMapResult("SELECT C.fname, C.lname, C.address, C.phone, O.car_vin FROM Customer C, Owns O WHERE O.customer_id = C.id ORDER BY C.id LIMIT 1",
+			new MechanicShop.RowMapper<String[]>(){
+				public String[] map(ResultSet rs) throws SQLException {
+					return new String[]{ rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getString(5) };
+				}
+			});
+		String[] row = sample.isEmpty() ? new String[]{ "", "", "", "", "" } : sample.get(0);
+		String fname = row[0], lname = row[1], address = row[2], phone = row[3], vin = row[4];
+		int newId = Integer.MAX_VALUE - 1;
+		java.sql.Date today = new java.sql.Date(System.currentTimeMillis());
+
+		List<Template> t = new ArrayList<Template>();
+		t.add(new Template("CHECK_CUSTOMER", MechanicShop.CHECK_CUSTOMER, false, fname, lname, address, phone));
+		t.add(new Template("INSERT_CUSTOMER", MechanicShop.INSERT_CUSTOMER, true, newId, "Index", "Advisor", "(000)000-0000", "1 Plan Way"));
+		t.add(new Template("INSERT_MECHANIC", MechanicShop.INSERT_MECHANIC, true, newId, "Index", "Advisor", 1));
+		t.add(new Template("INSERT_CAR", MechanicShop.INSERT_CAR, true, "ADVISOR000000000", "Index", "Advisor", 2000));
+		t.add(new Template("INSERT_OWNS", MechanicShop.INSERT_OWNS, true, newId, customer, vin));
+		t.add(new Template("CUSTOMERS_BY_LNAME", MechanicShop.CUSTOMERS_BY_LNAME, false, lname));
+		t.add(new Template("CARS_BY_OWNER", MechanicShop.CARS_BY_OWNER, false, customer));
+		t.add(new Template("INSERT_REQUEST", MechanicShop.INSERT_REQUEST, true, newId, customer, vin, today, 1000, "advisor"));
+		t.add(new Template("CLOSE_REQUEST", MechanicShop.CLOSE_REQUEST, true, openRid, mechanic, "advisor", 100));
+		t.add(new Template("EXISTS_CUSTOMER", "SELECT 1 FROM Customer WHERE id = ? LIMIT 1", false, customer));
+		t.add(new Template("EXISTS_CAR", "SELECT 1 FROM Car WHERE vin = ? LIMIT 1", false, vin));
+		t.add(new Template("EXISTS_MECHANIC", "SELECT 1 FROM Mechanic WHERE fname = ? AND lname = ? AND experience = ? LIMIT 1", false, fname, lname, 1));
+		t.add(new Template("BILL_LESS_THAN_100", MechanicShop.BILL_LESS_THAN_100, false));
+		t.add(new Template("BILL_LESS_THAN_100_AFTER", MechanicShop.BILL_LESS_THAN_100_AFTER, false, 50, 0, 21));
+		t.add(new Template("MORE_THAN_20_CARS", MechanicShop.MORE_THAN_20_CARS, false));
+		t.add(new Template("CARS_BEFORE_1995", MechanicShop.CARS_BEFORE_1995, false));
+		t.add(new Template("CARS_BEFORE_1995_AFTER", MechanicShop.CARS_BEFORE_1995_AFTER, false, "M", "", 0, "M", "", 0, 0, 21));
+		t.add(new Template("K_CARS_MOST_SERVICES", MechanicShop.K_CARS_MOST_SERVICES, false, 10));
+		t.add(new Template("K_CARS_MOST_SERVICES_SUMMARY", MechanicShop.K_CARS_MOST_SERVICES_SUMMARY, false, 10));
+		t.add(new Template("TOTAL_BILL_DESC", MechanicShop.TOTAL_BILL_DESC, false));
+		t.add(new Template("TOTAL_BILL_DESC_PAGE", MechanicShop.TOTAL_BILL_DESC_PAGE, false, 21));
+		t.add(new Template("TOTAL_BILL_DESC_AFTER", MechanicShop.TOTAL_BILL_DESC_AFTER, false, 1000L, Integer.MAX_VALUE, 21));
+		java.sql.Date yearAgo = new java.sql.Date(System.currentTimeMillis() - 365L * 86400000L);
+		t.add(new Template("BILL_LESS_THAN_100_WINDOW", MechanicShop.BILL_LESS_THAN_100_WINDOW, false, yearAgo, today, today));
+		t.add(new Template("CARS_BEFORE_1995_WINDOW", MechanicShop.CARS_BEFORE_1995_WINDOW, false, yearAgo, today));
+		t.add(new Template("K_CARS_MOST_SERVICES_WINDOW", MechanicShop.K_CARS_MOST_SERVICES_WINDOW, false, yearAgo, today, 10));
+		t.add(new Template("TOTAL_BILL_DESC_WINDOW", MechanicShop.TOTAL_BILL_DESC_WINDOW, false, yearAgo, today, today));
+		t.add(new Template("CLAIM_NEXT", MechanicShop.CLAIM_NEXT, true, mechanic));
+		t.add(new Template("OPEN_BY_AGE", MechanicShop.OPEN_BY_AGE, false, 21));
+		t.add(new Template("OPEN_BY_AGE_AFTER", MechanicShop.OPEN_BY_AGE_AFTER, false, yearAgo, 0, 21));
+		t.add(new Template("OPEN_BY_CUSTOMER", MechanicShop.OPEN_BY_CUSTOMER, false, customer));
+		t.add(new Template("CLOSE_OLDER_THAN", BulkCloser.CLOSE_OLDER_THAN, true, mechanic, "advisor", 100, 30, 500));
+		return t;
+	}
+
+	/**
+	 * Explains one template, rolling back whatever it wrote.
+	 */
+	Plan explain(Template template) throws SQLException {
+		Connection conn = _esql.acquireConnection();
+		try{
+			conn.setAutoCommit(false);
+			PreparedStatement stmt = conn.prepareStatement("EXPLAIN (ANALYZE, BUFFERS) " + template.sql);
+			try{
+				for (int i = 0; i < template.params.length; ++i) stmt.setObject(i + 1, template.params[i]);
+				ResultSet rs = stmt.executeQuery();
+				List<String> lines = new ArrayList<String>();
+				while (rs.next()) lines.add(rs.getString(1));
+				rs.close();
+				return new Plan(lines);
+			}finally{
+				stmt.close();
+				conn.rollback();
+			}
+		}finally{
+			_esql.releaseConnection(conn);
+		}
+	}
+
+	/**
+	 * Finds sequential scans over more than minRows rows and sorts that
+	 * spilled to disk.
+	 *
+	 * @param proposals receives a CREATE INDEX statement for every column a
+	 *        flagged scan filters or joins on that no index leads with
+	 * @return one message per finding
+	 */
+	List<String> findings(Plan plan, Set<String> proposals) throws SQLException {
+		List<String> found = new ArrayList<String>();
+		for (int i = 0; i < plan.lines.size(); ++i){
+			String line = plan.lines.get(i);
+			Matcher spill = SPILL.matcher(line);
+			if (spill.find()) found.add("sort spilled " + spill.group(1) + " kB to disk");
+
+			Matcher scan = SEQ_SCAN.matcher(line);
+			if (!scan.find()) continue;
+			Matcher actual = ACTUAL_ROWS.matcher(line);
+			long rows = actual.find() ? Long.parseLong(actual.group(1)) * Long.parseLong(actual.group(2)) : 0;
+			String table = scan.group(1), alias = scan.group(2) != null && !scan.group(2).equals("using") ? scan.group(2) : table;
+			long scanned = rows;
+			// rows removed by the filter were read as well
+			for (int j = i + 1; j < plan.lines.size() && Plan.node(plan.lines.get(j)) == null; ++j){
+				Matcher removed = REMOVED.matcher(plan.lines.get(j));
+				if (removed.find()) scanned += Long.parseLong(removed.group(1));
+			}
+			if (scanned < _minRows) continue;
+			found.add("sequential scan of " + table + " reads " + scanned + " rows");
+
+			// columns of this relation used in filters and join conditions anywhere in the plan
+			Pattern column = Pattern.compile("\\b" + Pattern.quote(alias) + "\\.(\\w+)\\b");
+			for (String other : plan.lines){
+				String detail = other.trim();
+				if (!CONDITION.matcher(detail).find()) continue;
+				Matcher c = column.matcher(detail);
+				while (c.find()) propose(table, c.group(1), proposals);
+			}
+			// the scan's own filter names its columns unqualified
+			if (i + 1 < plan.lines.size() && plan.lines.get(i + 1).trim().startsWith("Filter:")){
+				Matcher bare = Pattern.compile("\\((\\w+) (?:=|<|>|<=|>=|~~) ").matcher(plan.lines.get(i + 1));
+				while (bare.find()) propose(table, bare.group(1), proposals);
+			}
+		}
+		return found;
+	}
+
+	private void propose(String table, String column, Set<String> proposals) throws SQLException {
+		// indexes whose first column is already this one
+		int covered = _esql.queryForInt(
+			"SELECT COUNT(*) FROM pg_index I JOIN pg_class T ON T.oid = I.indrelid JOIN pg_attribute A ON A.attrelid = T.oid AND A.attnum = I.indkey[0] " +
+			"WHERE T.relname = lower(?) AND A.attname = lower(?)", table, column);
+		if (covered == 0)
+			proposals.add("CREATE INDEX " + table.toLowerCase() + "_" + column.toLowerCase() + "_index ON " + table + " USING BTREE (" + column + ");");
+	}
+
+	/**
+	 * Explains every template on the current data and checks it against
+	 * the baseline of the label.
+	 *
+	 * @return the number of regressions
+	 */
+	int run(String label, Path baselines, boolean update, double tolerance) throws SQLException, IOException {
+		_esql.executeUpdate("ANALYZE");
+		Path file = baselines.resolve(label + ".plans");
+		Map<String, String[]> baseline = read(file);
+		Map<String, String[]> current = new LinkedHashMap<String, String[]>();
+		Set<String> proposals = new LinkedHashSet<String>();
+		int regressions = 0;
+
+		System.out.println("== " + label);
+		for (Template template : templates()){
+			Plan plan;
+			try{
+				plan = explain(template);
+			}catch (SQLException e){
+				System.out.println(template.name + ": " + e.getMessage());
+				regressions++;
+				continue;
+			}
+			current.put(template.name, new String[]{ String.valueOf(plan.cost), plan.shape });
+			System.out.printf("%-30s cost %12.2f  %9.3f ms%n", template.name, plan.cost, plan.millis);
+			for (String finding : findings(plan, proposals)) System.out.println("    " + finding);
+
+			String[] before = baseline.get(template.name);
+			if (update || before == null) continue;
+			if (!before[1].equals(plan.shape)){
+				System.out.println("    REGRESSION: plan changed");
+				System.out.println("      was: " + before[1]);
+				System.out.println("      now: " + plan.shape);
+				regressions++;
+			}else if (plan.cost > Double.parseDouble(before[0]) * tolerance){
+				System.out.printf("    REGRESSION: cost %.2f, baseline %.2f%n", plan.cost, Double.parseDouble(before[0]));
+				regressions++;
+			}
+		}
+
+		if (!proposals.isEmpty()){
+			System.out.println("-- proposed indexes");
+			for (String proposal : proposals) System.out.println(proposal);
+		}
+		if (update || baseline.isEmpty()){
+			write(file, current);
+			System.out.println("baseline written to " + file);
+		}
+		return regressions;
+	}//end run
+
+	// name -> { cost, shape }, one tab separated line per template
+	static Map<String, String[]> read(Path file) throws IOException {
+		Map<String, String[]> plans = new LinkedHashMap<String, String[]>();
+		if (!Files.exists(file)) return plans;
+		for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)){
+			String[] f = line.split("\t", 3);
+			if (f.length == 3) plans.put(f[0], new String[]{ f[1], f[2] });
+		}
+		return plans;
+	}
+
+	static void write(Path file, Map<String, String[]> plans) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		for (Map.Entry<String, String[]> e : plans.entrySet())
+			lines.add(e.getKey() + "\t" + e.getValue()[0] + "\t" + e.getValue()[1]);
+		Files.createDirectories(file.toAbsolutePath().getParent());
+		Files.write(file, lines, StandardCharsets.UTF_8);
+	}
+
+	// replaces the contents of the database with a dataset; a failed load ends the run
+	static void load(String dbname, String port, String user, Path dataset) throws Exception {
+		System.out.println("truncating every table of " + dbname + " to load " + dataset);
+		int workers = Runtime.getRuntime().availableProcessors();
+		ConnectionPool pool = new ConnectionPool("jdbc:postgresql://localhost:" + port + "/" + dbname, user, "", workers, 4);
+		BulkLoader loader = new BulkLoader(pool, dataset, workers, 20000);
+		try{
+			loader.truncate();
+			loader.loadAll();
+		}finally{
+			loader.shutdown();
+			pool.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3){
+			System.err.println("Usage: java IndexAdvisor <db> <port> <user> [--dataset dir]... [--baseline dir] [--update] [--tolerance f] [--min-rows n]");
+			System.err.println("  every --dataset truncates all tables of <db> before it is loaded");
+			return;
+		}
+		List<String> datasets = new ArrayList<String>();
+		Path baselines = Paths.get("plans");
+		boolean update = false;
+		double tolerance = 1.2;
+		long minRows = 1000;
+		for (int i = 3; i < args.length; ++i){
+			if (args[i].equals("--dataset")) datasets.add(args[++i]);
+			else if (args[i].equals("--baseline")) baselines = Paths.get(args[++i]);
+			else if (args[i].equals("--update")) update = true;
+			else if (args[i].equals("--tolerance")) tolerance = Double.parseDouble(args[++i]);
+			else if (args[i].equals("--min-rows")) minRows = Long.parseLong(args[++i]);
+		}
+
+		Class.forName("org.postgresql.Driver");
+		int regressions = 0;
+		if (datasets.isEmpty()){
+			MechanicShop esql = new MechanicShop(args[0], args[1], args[2], "");
+			try{
+				regressions += new IndexAdvisor(esql, minRows).run("current", baselines, update, tolerance);
+			}finally{
+				esql.cleanup();
+			}
+		}
+		for (String dataset : datasets){
+			load(args[0], args[1], args[2], Paths.get(dataset));
+			// a new client so the key allocator resyncs with the loaded rows
+			MechanicShop esql = new MechanicShop(args[0], args[1], args[2], "");
+			try{
+				String label = Paths.get(dataset).toAbsolutePath().normalize().getFileName().toString();
+				regressions += new IndexAdvisor(esql, minRows).run(label, baselines, update, tolerance);
+			}finally{
+				esql.cleanup();
+			}
+		}
+
+		if (regressions > 0){
+			System.out.println(regressions + " regression(s)");
+			System.exit(1);
+		}
+	}
+}
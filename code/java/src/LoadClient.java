@@ -0,0 +1,264 @@
+/*
+ * Load test client for the MechanicShop server mode
+ * =================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Replays a mix of desk and shop-floor operations against a running
+ * ShopServer from many concurrent simulated users, then prints the
+ * throughput and latency percentiles of every operation.
+ *
+ * Each user loops: pick an operation by weight, send it, wait for the
+ * answer, repeat. Service requests opened by the users are queued and
+ * closed later by other users, the way the front desk and the mechanics
+ * share the real workload. With claim in the mix, mechanics instead pull
+ * the oldest open request from the server's work queue and close it. The
+ * default mix leans on opening and closing requests; --mix replaces it, e.g.
+ *
+ *   --mix request=30,close=25,search=15,customer=5,car=5,mechanic=1,top-cars=8,total-bill=5,bill-less-than-100=3,more-than-20-cars=2,cars-before-1995=1
+ *
+ */
+
+public class LoadClient{
+	static final String DEFAULT_MIX =
+		"request=30,close=25,search=15,customer=5,car=5,mechanic=1,top-cars=8,total-bill=5,bill-less-than-100=3,more-than-20-cars=2,cars-before-1995=1";
+
+	private final String _base;
+	private final HttpClient _http;
+	private final String[] _ops;
+	private final int[] _cumulative;
+
+	// rows created by the run that later operations refer to
+	private final List<Integer> _customers = new CopyOnWriteArrayList<Integer>();
+	private final List<Integer> _mechanics = new CopyOnWriteArrayList<Integer>();
+	private final List<Object[]> _cars = new CopyOnWriteArrayList<Object[]>();
+	private final ConcurrentLinkedQueue<Integer> _open = new ConcurrentLinkedQueue<Integer>();
+	private final ConcurrentLinkedQueue<Integer> _claimed = new ConcurrentLinkedQueue<Integer>();
+	// with claim in the mix new requests are left to the server's queue, so no request is closed twice
+	private final boolean _claiming;
+
+	private final Map<String, ShopMetrics.Histogram> _latency = new ConcurrentHashMap<String, ShopMetrics.Histogram>();
+	private final Map<String, LongAdder> _errors = new ConcurrentHashMap<String, LongAdder>();
+
+	public LoadClient(String base, String mix){
+		this._base = base.endsWith("/") ? base.substring(0, base.length() - 1) : base;
+		this._http = HttpClient.newBuilder().executor(ShopServer.newRequestExecutor()).connectTimeout(Duration.ofSeconds(10)).build();
+
+		String[] parts = mix.split(",");
+		this._ops = new String[parts.length];
+		this._cumulative = new int[parts.length];
+		int total = 0;
+		for (int i = 0; i < parts.length; ++i){
+			String[] kv = parts[i].trim().split("=");
+			_ops[i] = kv[0];
+			total += Integer.parseInt(kv[1]);
+			_cumulative[i] = total;
+		}
+		this._claiming = java.util.Arrays.asList(_ops).contains("claim");
+	}
+
+	/**
+	 * Runs the given number of users for the given time and prints a report.
+	 */
+	public void run(int users, int seconds) throws Exception {
+		// a few rows for the first requests and closes to refer to
+		for (int i = 0; i < Math.min(users, 20); ++i){
+			execute("mechanic");
+			execute("customer");
+		}
+		_latency.clear();
+		_errors.clear();
+
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		ExecutorService executor = ShopServer.newRequestExecutor();
+		long start = System.nanoTime();
+		for (int u = 0; u < users; ++u){
+			executor.execute(new Runnable(){
+				public void run(){
+					while (System.nanoTime() < deadline){
+						try{
+							execute(pick());
+						}catch (InterruptedException e){
+							return;
+						}
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+		double elapsed = (System.nanoTime() - start) / 1e9;
+
+		long total = 0;
+		System.out.println(String.format("%-20s %10s %10s %9s %9s %9s %9s %8s",
+			"operation", "requests", "req/s", "mean ms", "p50 ms", "p99 ms", "max ms", "errors"));
+		for (Map.Entry<String, ShopMetrics.Histogram> e : new TreeMap<String, ShopMetrics.Histogram>(_latency).entrySet()){
+			ShopMetrics.Histogram h = e.getValue();
+			long n = h.count();
+			total += n;
+			LongAdder errors = _errors.get(e.getKey());
+			System.out.println(String.format("%-20s %10d %10.1f %9.2f %9.2f %9.2f %9.2f %8d",
+				e.getKey(), n, n / elapsed, h.mean() / 1e6, h.percentile(0.50) / 1e6, h.percentile(0.99) / 1e6,
+				h.max() / 1e6, errors == null ? 0 : errors.sum()));
+		}
+		System.out.println(String.format("%d requests from %d users in %.1f s: %.1f req/s", total, users, elapsed, total / elapsed));
+	}//end run
+
+	String pick(){
+		int r = ThreadLocalRandom.current().nextInt(_cumulative[_cumulative.length - 1]);
+		for (int i = 0; i < _cumulative.length; ++i)
+			if (r < _cumulative[i]) return _ops[i];
+		return _ops[_ops.length - 1];
+	}
+
+	void execute(String op) throws InterruptedException {
+		ThreadLocalRandom r = ThreadLocalRandom.current();
+		String body = null, path;
+		if (op.equals("customer")){
+			path = "/customers";
+			body = "{\"fname\":\"Load\",\"lname\":\"Client" + r.nextInt(1000) + "\",\"phone\":" + ShopServer.quote(phone(r)) + ",\"address\":\"1 Load Test Way\"}";
+		}else if (op.equals("mechanic")){
+			path = "/mechanics";
+			body = "{\"fname\":\"Load\",\"lname\":\"Client" + r.nextInt(1 << 30) + "\",\"experience\":" + r.nextInt(30) + "}";
+		}else if (op.equals("car")){
+			if (_customers.isEmpty()){
+				execute("customer");
+				return;
+			}
+			path = "/cars";
+			body = "{\"customer_id\":" + _customers.get(r.nextInt(_customers.size())) + ",\"vin\":" + ShopServer.quote(vin(r)) + ",\"make\":\"Load\",\"model\":\"Client\",\"year\":" + (1980 + r.nextInt(40)) + "}";
+		}else if (op.equals("request")){
+			if (_cars.isEmpty()){
+				execute("customer");
+				return;
+			}
+			Object[] car = _cars.get(r.nextInt(_cars.size()));
+			path = "/requests";
+			body = "{\"customer_id\":" + car[0] + ",\"vin\":" + ShopServer.quote((String) car[1]) + ",\"odometer\":" + (1 + r.nextInt(200000)) + ",\"complain\":\"load test\"}";
+		}else if (op.equals("close")){
+			Integer rid = _claimed.poll();
+			if (rid == null) rid = _open.poll();
+			if (rid == null || _mechanics.isEmpty()){
+				execute("request");
+				return;
+			}
+			path = "/closed";
+			body = "{\"rid\":" + rid + ",\"mechanic_id\":" + _mechanics.get(r.nextInt(_mechanics.size())) + ",\"comment\":\"load test\",\"bill\":" + (1 + r.nextInt(500)) + "}";
+		}else if (op.equals("claim")){
+			// a mechanic pulls the next job from the queue and closes it
+			if (_mechanics.isEmpty()){
+				execute("mechanic");
+				return;
+			}
+			path = "/claims";
+			body = "{\"mechanic_id\":" + _mechanics.get(r.nextInt(_mechanics.size())) + "}";
+		}else if (op.equals("search")){
+			path = "/customers?q=Client" + r.nextInt(1000) + "&limit=10";
+		}else if (op.equals("top-cars")){
+			path = "/reports/top-cars?k=" + (1 + r.nextInt(20));
+		}else{
+			path = "/reports/" + op;
+		}
+
+		HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(_base + path)).timeout(Duration.ofSeconds(60));
+		if (body != null) request.header("Content-Type", "application/json").POST(HttpRequest.BodyPublishers.ofString(body));
+
+		long start = System.nanoTime();
+		String answer = null;
+		int status;
+		try{
+			HttpResponse<String> response = _http.send(request.build(), HttpResponse.BodyHandlers.ofString());
+			status = response.statusCode();
+			answer = response.body();
+		}catch (java.io.IOException e){
+			status = -1;
+		}
+		histogram(op).record(System.nanoTime() - start);
+		if (status >= 400 || status < 0){
+			LongAdder errors = _errors.get(op);
+			if (errors == null){
+				_errors.putIfAbsent(op, new LongAdder());
+				errors = _errors.get(op);
+			}
+			errors.increment();
+			return;
+		}
+
+		// remember what was created for later operations
+		if (op.equals("customer")){
+			// a new customer comes in with a car
+			_customers.add(id(answer));
+			execute("car");
+		}else if (op.equals("car")){
+			Map<String, String> car = ShopServer.parseObject(body);
+			_cars.add(new Object[]{ car.get("customer_id"), car.get("vin") });
+		}else if (op.equals("mechanic")){
+			_mechanics.add(id(answer));
+		}else if (op.equals("request")){
+			if (!_claiming) _open.add(id(answer));
+		}else if (op.equals("claim")){
+			_claimed.add(Integer.valueOf(ShopServer.parseObject(answer).get("rid")));
+			execute("close");
+		}
+	}//end execute
+
+	private ShopMetrics.Histogram histogram(String op){
+		ShopMetrics.Histogram h = _latency.get(op);
+		if (h == null){
+			_latency.putIfAbsent(op, new ShopMetrics.Histogram());
+			h = _latency.get(op);
+		}
+		return h;
+	}
+
+	// the single number of a {"id": n} style answer
+	static int id(String json){
+		return Integer.parseInt(json.substring(json.indexOf(':') + 1, json.lastIndexOf('}')).trim());
+	}
+
+	static String phone(ThreadLocalRandom r){
+		return String.format("(%03d)%03d-%04d", r.nextInt(1000), r.nextInt(1000), r.nextInt(10000));
+	}
+
+	static String vin(ThreadLocalRandom r){
+		StringBuilder vin = new StringBuilder(16);
+		for (int i = 0; i < 6; ++i) vin.append((char) ('A' + r.nextInt(26)));
+		for (int i = 0; i < 10; ++i) vin.append((char) ('0' + r.nextInt(10)));
+		return vin.toString();
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1){
+			System.err.println("Usage: java LoadClient <server url> [--users n] [--seconds n] [--mix op=weight,...]");
+			return;
+		}
+		int users = 200, seconds = 60;
+		String mix = DEFAULT_MIX;
+		for (int i = 1; i + 1 < args.length; i += 2){
+			if (args[i].equals("--users")) users = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("--seconds")) seconds = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("--mix")) mix = args[i + 1];
+		}
+		new LoadClient(args[0], mix).run(users, seconds);
+	}
+}
@@ -14,6 +14,7 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -21,8 +22,16 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.BufferedWriter;
+import java.io.PrintWriter;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.postgresql.jdbc.PgStatement;
 
 import java.util.Random; // to create random numbers for id (?)
 import java.util.Date;
@@ -36,9 +45,127 @@ import java.util.Calendar;
  */
 
 public class MechanicShop{
-	//reference to physical database connection
-	private Connection _connection = null;
+	//pool of physical database connections with their cached statements
+	private ConnectionPool _pool = null;
+	//block allocator for the primary key sequences
+	private IdAllocator _ids = null;
+	//recently looked up customers, cars, mechanics and service requests
+	private EntityCache _cache = null;
+	//columnar copy of the tables for reports 6 to 10, null unless enabled
+	private ShopAnalytics _analytics = null;
+	//results of reports 6 to 10, dropped when the tables they read change
+	private ReportCache _reports = null;
+	//local journal of the desk's writes while the database is unavailable, null unless enabled
+	private WriteJournal _journal = null;
+	//milliseconds a desk write may take before it goes to the journal instead
+	private int _journalTimeout = 0;
+	//latency, round trip and row counters, published over JMX
+	private final ShopMetrics _metrics = ShopMetrics.get();
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+
+	/*
+	 * SQL templates of the menu operations, shared with the batch mode and
+	 * the benchmarks so they all issue exactly the statements the menu does.
+	 */
+	static final String CHECK_CUSTOMER = // -1 = phone is free, 1 = phone taken, 2 = same customer already stored
+		"SELECT CASE WHEN fname = ? AND lname = ? AND address = ? THEN 2 ELSE 1 END AS matched FROM Customer WHERE phone = ? ORDER BY matched DESC LIMIT 1";
+	static final String INSERT_CUSTOMER =
+		"INSERT INTO Customer (id, fname, lname, phone, address) VALUES (?, ?, ?, ?, ?)";
+	static final String INSERT_MECHANIC =
+		"INSERT INTO Mechanic (id, fname, lname, experience) VALUES (?, ?, ?, ?)";
+	static final String INSERT_CAR =
+		"INSERT INTO Car (vin, make, model, year) VALUES (?, ?, ?, ?)";
+	static final String INSERT_OWNS =
+		"INSERT INTO Owns (ownership_id, customer_id, car_vin) VALUES (?, ?, ?)";
+	static final String CUSTOMERS_BY_LNAME =
+		"SELECT id, fname, lname, phone, address FROM Customer WHERE Customer.lname = ?";
+	static final String CARS_BY_OWNER =
+		"SELECT vin, make, model, year FROM Car C, Owns O WHERE O.car_vin = C.vin and O.customer_id = ?";
+	static final String CUSTOMER_BY_ID =
+		"SELECT id FROM Customer WHERE id = ?";
+	static final String CAR_BY_VIN =
+		"SELECT vin FROM Car WHERE vin = ?";
+	static final String INSERT_REQUEST =
+		"INSERT INTO Service_Request (rid, customer_id, car_vin, date, odometer, complain) VALUES (?, ?, ?, ?, ?, ?)";
+	static final String INSERT_CLOSED =
+		"INSERT INTO Closed_Request (wid, rid, mid, date, comment, bill) VALUES (?, ?, ?, ?, ?, ?)";
+	static final String CLOSE_REQUEST = // one statement: locks the request, checks it is open and the mechanic exists, inserts and returns the record
+		"WITH req AS (SELECT rid, customer_id, car_vin FROM Service_Request WHERE rid = ? FOR UPDATE), " +
+		"mech AS (SELECT id, fname, lname FROM Mechanic WHERE id = ?), " +
+		"ins AS (INSERT INTO Closed_Request (wid, rid, mid, date, comment, bill) " +
+			"SELECT nextval('wid_seq'), req.rid, mech.id, CURRENT_DATE, ?::text, ?::integer FROM req, mech " +
+			"WHERE NOT EXISTS (SELECT 1 FROM Closed_Request C WHERE C.rid = req.rid) " +
+			"ON CONFLICT DO NOTHING RETURNING wid, rid, mid, date, comment, bill) " +
+		"SELECT (SELECT COUNT(*) FROM req) AS request_found, (SELECT COUNT(*) FROM mech) AS mechanic_found, " +
+			"ins.wid, ins.rid, ins.mid, ins.date, ins.comment, ins.bill, req.customer_id, req.car_vin, mech.fname, mech.lname " +
+		"FROM (SELECT 1) AS one LEFT JOIN ins ON true LEFT JOIN req ON true LEFT JOIN mech ON true";
+	static final String[] CLOSED_COLUMNS = { "wid", "rid", "mid", "date", "comment", "bill", "customer_id", "car_vin", "fname", "lname" };
+	static final String BILL_LESS_THAN_100 = // range scan of the min_bill index on the summary kept by the trigger in triggers.sql
+		"SELECT B.customer_id, C.fname, C.lname, B.min_bill FROM Customer_Bill_Summary AS B, Customer AS C WHERE C.id = B.customer_id and B.min_bill < 100 ORDER BY B.min_bill, B.customer_id";
+	static final String BILL_LESS_THAN_100_AFTER = // the page after key (min_bill, customer_id)
+		"SELECT B.customer_id, C.fname, C.lname, B.min_bill FROM Customer_Bill_Summary AS B, Customer AS C WHERE C.id = B.customer_id and B.min_bill < 100 and (B.min_bill, B.customer_id) > (?, ?) ORDER BY B.min_bill, B.customer_id LIMIT ?";
+	static final String MORE_THAN_20_CARS =
+		"SELECT DISTINCT Customer.fname, Customer.lname FROM Customer WHERE Customer.id IN (SELECT Owns.customer_id FROM Owns GROUP by Owns.customer_id HAVING COUNT(car_vin) > 20)";
+	static final String CARS_BEFORE_1995 = // walks the partial car_before_1995_index in (make, model, year) order
+		"SELECT DISTINCT make, model, year, odometer FROM Car AS C, Service_Request AS S WHERE year < 1995 and S.car_vin = C.vin and S.odometer < 50000 ORDER BY make, model, year, odometer";
+	static final String CARS_BEFORE_1995_AFTER = // the page after key (make, model, year, odometer); the prefix bound lets the index seek
+		"SELECT DISTINCT make, model, year, odometer FROM Car AS C, Service_Request AS S WHERE year < 1995 and S.car_vin = C.vin and S.odometer < 50000 " +
+		"and (make, model, year) >= (?, ?, ?) and (make, model, year, odometer) > (?, ?, ?, ?) ORDER BY make, model, year, odometer LIMIT ?";
+	static final String K_CARS_MOST_SERVICES = // the server keeps only the top k groups while sorting (top-N heapsort)
+		"SELECT c.make, c.model, COUNT(*) AS count_vin FROM service_request s JOIN car c on s.car_vin = c.vin GROUP BY c.make, c.model ORDER BY count_vin DESC, c.make, c.model LIMIT ?";
+	static final String K_CARS_MOST_SERVICES_SUMMARY = // reads the per make/model counts kept up to date by the trigger in triggers.sql
+		"SELECT make, model, service_count AS count_vin FROM Car_Service_Count ORDER BY service_count DESC, make, model LIMIT ?";
+	static final String TOTAL_BILL_DESC = // reads the totals kept by the trigger in triggers.sql, scanning total_bill_index backward
+		"SELECT C.fname , C.lname, B.total_bill AS Total FROM Customer_Bill_Summary AS B, Customer AS C WHERE C.id = B.customer_id ORDER BY B.total_bill DESC, B.customer_id DESC";
+	static final String TOTAL_BILL_DESC_PAGE = // the first page, with the customer_id key selected after the shown columns
+		"SELECT C.fname , C.lname, B.total_bill AS Total, B.customer_id FROM Customer_Bill_Summary AS B, Customer AS C WHERE C.id = B.customer_id ORDER BY B.total_bill DESC, B.customer_id DESC LIMIT ?";
+	static final String TOTAL_BILL_DESC_AFTER = // the page after key (total_bill, customer_id)
+		"SELECT C.fname , C.lname, B.total_bill AS Total, B.customer_id FROM Customer_Bill_Summary AS B, Customer AS C WHERE C.id = B.customer_id and (B.total_bill, B.customer_id) < (?, ?) ORDER BY B.total_bill DESC, B.customer_id DESC LIMIT ?";
+	/*
+	 * Reports 6, 8, 9 and 10 over a date window [from, to]. With
+	 * Service_Request and Closed_Request partitioned by month (partition.sql)
+	 * only the partitions of the window are read; a request is never closed
+	 * before it is filed, so its date is bounded by the close date too.
+	 */
+	static final String BILL_LESS_THAN_100_WINDOW = // from, to, to
+		"SELECT SR.customer_id, C.fname, C.lname, MIN(CR.bill) AS min_bill FROM Closed_Request AS CR, Service_Request AS SR, Customer AS C " +
+		"WHERE CR.rid = SR.rid and C.id = SR.customer_id and CR.date BETWEEN ? AND ? and SR.date <= ? " +
+		"GROUP BY SR.customer_id, C.fname, C.lname HAVING MIN(CR.bill) < 100 ORDER BY min_bill, SR.customer_id";
+	static final String CARS_BEFORE_1995_WINDOW = // from, to
+		"SELECT DISTINCT make, model, year, odometer FROM Car AS C, Service_Request AS S WHERE year < 1995 and S.car_vin = C.vin and S.odometer < 50000 " +
+		"and S.date BETWEEN ? AND ? ORDER BY make, model, year, odometer";
+	static final String K_CARS_MOST_SERVICES_WINDOW = // from, to, k
+		"SELECT c.make, c.model, COUNT(*) AS count_vin FROM service_request s JOIN car c on s.car_vin = c.vin WHERE s.date BETWEEN ? AND ? " +
+		"GROUP BY c.make, c.model ORDER BY count_vin DESC, c.make, c.model LIMIT ?";
+	static final String TOTAL_BILL_DESC_WINDOW = // from, to, to
+		"SELECT C.fname , C.lname, SUM(CR.bill) AS Total FROM Closed_Request AS CR, Service_Request AS SR, Customer AS C " +
+		"WHERE CR.rid = SR.rid and C.id = SR.customer_id and CR.date BETWEEN ? AND ? and SR.date <= ? " +
+		"GROUP BY SR.customer_id, C.fname, C.lname ORDER BY Total DESC, SR.customer_id DESC";
+	/*
+	 * The open-work queue: Open_Request holds the requests that are not
+	 * closed yet and is kept in sync by the triggers in triggers.sql, so
+	 * finding work never touches the closed history.
+	 */
+	static final String CLAIM_NEXT = // the oldest unclaimed request; rows another mechanic is claiming are skipped, not waited for
+		"WITH job AS (UPDATE Open_Request SET claimed_by = ?, claimed_at = now() WHERE rid = " +
+			"(SELECT rid FROM Open_Request WHERE claimed_by IS NULL ORDER BY date, rid LIMIT 1 FOR UPDATE SKIP LOCKED) RETURNING rid, date) " +
+		"SELECT S.rid, S.customer_id, S.car_vin, S.date, S.odometer, S.complain FROM job JOIN Service_Request S ON S.rid = job.rid AND S.date = job.date";
+	static final String[] JOB_COLUMNS = { "rid", "customer_id", "car_vin", "date", "odometer", "complain" };
+	static final String RELEASE_CLAIM =
+		"UPDATE Open_Request SET claimed_by = NULL, claimed_at = NULL WHERE rid = ? AND claimed_by = ?";
+	static final String OPEN_BY_AGE = // oldest first; the page after key (date, rid) is OPEN_BY_AGE_AFTER
+		"SELECT rid, customer_id, car_vin, date, claimed_by FROM Open_Request ORDER BY date, rid LIMIT ?";
+	static final String OPEN_BY_AGE_AFTER =
+		"SELECT rid, customer_id, car_vin, date, claimed_by FROM Open_Request WHERE (date, rid) > (?, ?) ORDER BY date, rid LIMIT ?";
+	static final String OPEN_BY_CUSTOMER =
+		"SELECT rid, customer_id, car_vin, date, claimed_by FROM Open_Request WHERE customer_id = ? ORDER BY date, rid";
+
+	// menu items by number, as reported in the metrics
+	static final String[] OPERATIONS = {
+		"AddCustomer", "AddMechanic", "AddCar", "InsertServiceRequest", "CloseServiceRequest",
+		"ListCustomersWithBillLessThan100", "ListCustomersWithMoreThan20Cars", "ListCarsBefore1995With50000Milles",
+		"ListKCarsWithTheMostServices", "ListCustomersInDescendingOrderOfTheirTotalBill", "BulkCloseServiceRequests", "ExportReport",
+		"ClaimNextServiceRequest", "ListOpenServiceRequests" };
 	
 	public MechanicShop(String dbname, String dbport, String user, String passwd) throws SQLException {
 		System.out.print("Connecting to database...");
@@ -47,8 +174,35 @@ public class MechanicShop{
 			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
 			System.out.println ("Connection URL: " + url + "\n");
 			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
+			// set up the pool and obtain a first physical connection
+			int poolSize = Integer.getInteger("mechanicshop.pool.size", 4);
+			int cacheSize = Integer.getInteger("mechanicshop.statement.cache", 64);
+			this._pool = new ConnectionPool(url, user, passwd, poolSize, cacheSize);
+			this._pool.release(this._pool.acquire());
+
+			// move the key sequences past any rows loaded outside the client
+			this._ids = new IdAllocator(this, Integer.getInteger("mechanicshop.id.block", 20));
+			this._ids.resync();
+
+			this._cache = new EntityCache(Integer.getInteger("mechanicshop.cache.size", 1024), Long.getLong("mechanicshop.cache.ttl", 60000L));
+
+			int reports = Integer.getInteger("mechanicshop.reports.cache", 20000);
+			if (reports > 0) this._reports = new ReportCache(this._pool, reports, Integer.getInteger("mechanicshop.reports.entry", 1000), Long.getLong("mechanicshop.reports.ttl", 60000L));
+
+			if (Boolean.getBoolean("mechanicshop.analytics")) {
+				this._analytics = new ShopAnalytics(this, Integer.getInteger("mechanicshop.analytics.lag", 1000), Long.getLong("mechanicshop.analytics.refresh", 1000L), Long.getLong("mechanicshop.analytics.reload", 600000L));
+				this._analytics.refresh();
+				System.out.println(this._analytics);
+			}
+
+			// keys are reserved up front, so journaled writes can still be given theirs
+			String journal = System.getProperty("mechanicshop.journal");
+			if (journal != null) {
+				this._ids.fill();
+				this._journal = new WriteJournal(this, Paths.get(journal), Integer.getInteger("mechanicshop.journal.segment", 16 << 20), Integer.getInteger("mechanicshop.journal.batch", 100));
+				this._journalTimeout = Integer.getInteger("mechanicshop.journal.timeout", 2000);
+				System.out.println(this._journal);
+			}
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -56,66 +210,191 @@ public class MechanicShop{
 	        System.exit(-1);
 		}
 	}
+
+	/**
+	 * Binds the positional parameters of a prepared statement.
+	 * 
+	 * @param stmt the prepared statement
+	 * @param params the values for the ? placeholders, in order
+	 * @throws java.sql.SQLException when a value cannot be bound
+	 */
+	static void bind (PreparedStatement stmt, Object[] params) throws SQLException {
+		stmt.clearParameters ();
+		for (int i = 0; i < params.length; ++i)
+			stmt.setObject (i + 1, params[i]);
+	}
 	
 	/**
 	 * Method to execute an update SQL statement.  Update SQL instructions
 	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
 	 * 
-	 * @param sql the input SQL string
+	 * @param sql the input SQL string with ? placeholders
+	 * @param params the values bound to the placeholders
+	 * @return the number of rows affected
 	 * @throws java.sql.SQLException when update failed
 	 * */
-	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public int executeUpdate (String sql, Object... params) throws SQLException { 
+		return executeUpdate (0, sql, params);
+	}//end executeUpdate
 
-		// issues the update instruction
-		stmt.executeUpdate (sql);
+	// executeUpdate with a limit in milliseconds (0 = none), after which the server cancels the statement
+	private int executeUpdate (int timeout, String sql, Object... params) throws SQLException {
+		Connection conn = this._pool.acquire ();
+		try{
+			// looks up the cached statement object
+			PreparedStatement stmt = this._pool.prepare (conn, sql);
 
-		// close the instruction
-	    stmt.close ();
-	}//end executeUpdate
+			// issues the update instruction
+			bind (stmt, params);
+			if (timeout > 0) timeout (stmt, timeout);
+			try{
+				long start = System.nanoTime ();
+				int rowCount = stmt.executeUpdate ();
+				this._metrics.query (sql, System.nanoTime () - start, rowCount, 0);
+				if (this._reports != null) this._reports.changed (sql);
+				return rowCount;
+			}finally{
+				if (timeout > 0) timeout (stmt, 0);
+			}
+		}finally{
+			this._pool.release (conn);
+		}
+	}
+
+	// the statement is cached, so a limit set for one execution is cleared again after it
+	private static void timeout (PreparedStatement stmt, int millis) throws SQLException {
+		stmt.unwrap (PgStatement.class).setQueryTimeoutMs (millis);
+	}
+
+	/**
+	 * Callback receiving the rows of a streamed query one at a time. The
+	 * result set is positioned on the current row and must not be advanced.
+	 */
+	public interface RowHandler {
+		void row (ResultSet rs) throws SQLException;
+	}
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) and
+	 * push every returned row to a handler as it arrives.  The query runs
+	 * through a server-side cursor that is read a batch of rows at a time,
+	 * so memory use does not grow with the size of the result.
+	 * 
+	 * @param query the input query string with ? placeholders
+	 * @param handler receives each row
+	 * @param params the values bound to the placeholders
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndStreamResult (String query, RowHandler handler, Object... params) throws SQLException {
+		Connection conn = this._pool.acquire ();
+		try{
+			// the driver only uses a cursor inside a transaction
+			conn.setAutoCommit (false);
+
+			//looks up the cached statement object
+			PreparedStatement stmt = this._pool.prepare (conn, query);
+			stmt.setFetchSize (Integer.getInteger("mechanicshop.fetch.size", 1000));
+
+			//issues the query instruction
+			bind (stmt, params);
+			long start = System.nanoTime ();
+			ResultSet rs = stmt.executeQuery ();
+
+			int rowCount = 0;
+			while (rs.next()){
+				handler.row (rs);
+				++rowCount;
+			}//end while
+			rs.close ();
+			conn.commit ();
+			this._metrics.query (query, System.nanoTime () - start, rowCount, 0);
+			conn.setAutoCommit (true);
+			return rowCount;
+		}finally{
+			this._pool.release (conn);
+		}
+	}//end executeQueryAndStreamResult
 
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and outputs the results to
 	 * standard out.
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string with ? placeholders
+	 * @param params the values bound to the placeholders
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+		ResultPrinter printer = new ResultPrinter ();
+		try{
+			return executeQueryAndStreamResult (query, printer, params);
+		}finally{
+			printer.out.flush ();
+			this._metrics.bytes (query, printer.bytes);
+		}
+	}
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+	/**
+	 * Method to print a report to standard out in the same format as
+	 * executeQueryAndPrintResult, through the report cache, see
+	 * executeReport.
+	 * 
+	 * @param query the input query string with ? placeholders
+	 * @param params the values bound to the placeholders
+	 * @return the number of rows printed
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeReportAndPrintResult (String query, Object... params) throws SQLException {
+		ResultPrinter printer = new ResultPrinter ();
+		try{
+			return executeReport (query, printer, params);
+		}finally{
+			printer.out.flush ();
+			this._metrics.bytes (query, printer.bytes);
+		}
+	}
 
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
+	/*
+	 * Prints the rows of a query as they arrive, tab separated under a
+	 * header, or a whole cached report.
+	 */
+	private static class ResultPrinter implements ReportHandler {
+		// one buffered writer for the whole result instead of a print per cell
+		final PrintWriter out = new PrintWriter (new BufferedWriter (new OutputStreamWriter (System.out), 1 << 16));
+		long bytes = 0;
 		boolean outputHeader = true;
-		while (rs.next()){
+
+		public void row (ResultSet rs) throws SQLException {
+			/*
+			 *  obtains the metadata object for the returned result set.  The metadata
+			 *  contains row and column info.
+			 */
+			ResultSetMetaData rsmd = rs.getMetaData ();
+			int numCol = rsmd.getColumnCount ();
+
 			if(outputHeader){
 				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
+					out.print(rsmd.getColumnName(i));
+					out.print('\t');
 			    }
-			    System.out.println();
+			    out.println();
 			    outputHeader = false;
 			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
+			for (int i=1; i<=numCol; ++i){
+				String value = rs.getString (i);
+				if (value != null) bytes += value.length ();
+				out.print (value);
+				out.print ('\t');
+			}
+			out.println ();
+		}
+
+		public void result (TypedResult result){
+			out.flush ();
+			printResult (result);
+		}
 	}
 	
 	/**
@@ -123,63 +402,412 @@ public class MechanicShop{
 	 * method issues the query to the DBMS and returns the results as
 	 * a list of records. Each record in turn is a list of attribute values
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string with ? placeholders
+	 * @param params the values bound to the placeholders
 	 * @return the query result as a list of records
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
-		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
-	 
-		/*
-		 * obtains the metadata object for the returned result set.  The metadata 
-		 * contains row and column info. 
-		*/ 
-		ResultSetMetaData rsmd = rs.getMetaData (); 
-		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
-	 
-		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
-		List<List<String>> result  = new ArrayList<List<String>>(); 
-		while (rs.next()){
-			List<String> record = new ArrayList<String>(); 
-			for (int i=1; i<=numCol; ++i) 
-				record.add(rs.getString (i)); 
-			result.add(record); 
-		}//end while 
-		stmt.close (); 
-		return result; 
+	public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException { 
+		return executeQueryAndReturnResult (0, query, params);
+	}
+
+	// executeQueryAndReturnResult with a limit in milliseconds (0 = none), after which the server cancels the query
+	private List<List<String>> executeQueryAndReturnResult (int timeout, String query, Object... params) throws SQLException {
+		Connection conn = this._pool.acquire ();
+		try{
+			//looks up the cached statement object 
+			PreparedStatement stmt = this._pool.prepare (conn, query); 
+			stmt.setFetchSize (0);
+			
+			//issues the query instruction 
+			bind (stmt, params);
+			if (timeout > 0) timeout (stmt, timeout);
+			long start = System.nanoTime ();
+			ResultSet rs;
+			try{
+				rs = stmt.executeQuery ();
+			}finally{
+				if (timeout > 0) timeout (stmt, 0);
+			}
+		 
+			/*
+			 * obtains the metadata object for the returned result set.  The metadata 
+			 * contains row and column info. 
+			*/ 
+			ResultSetMetaData rsmd = rs.getMetaData (); 
+			int numCol = rsmd.getColumnCount (); 
+		 
+			//iterates through the result set and saves the data returned by the query. 
+			List<List<String>> result  = new ArrayList<List<String>>(); 
+			long bytes = 0;
+			while (rs.next()){
+				List<String> record = new ArrayList<String>(); 
+				for (int i=1; i<=numCol; ++i){
+					String value = rs.getString (i);
+					if (value != null) bytes += value.length ();
+					record.add(value); 
+				}
+				result.add(record); 
+			}//end while 
+			rs.close (); 
+			this._metrics.query (query, System.nanoTime () - start, result.size (), bytes);
+			return result; 
+		}finally{
+			this._pool.release (conn);
+		}
 	}//end executeQueryAndReturnResult
 	
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and returns the results decoded
+	 * by column into primitive arrays according to the column types, see
+	 * TypedResult.
+	 * 
+	 * @param query the input query string with ? placeholders
+	 * @param params the values bound to the placeholders
+	 * @return the query result
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public TypedResult executeQueryAndReturnTypedResult (String query, Object... params) throws SQLException {
+		Connection conn = this._pool.acquire ();
+		try{
+			PreparedStatement stmt = this._pool.prepare (conn, query);
+			stmt.setFetchSize (0);
+			bind (stmt, params);
+			long start = System.nanoTime ();
+			ResultSet rs = stmt.executeQuery ();
+			TypedResult result = TypedResult.read (rs);
+			rs.close ();
+			this._metrics.query (query, System.nanoTime () - start, result.rowCount (), result.bytes ());
+			return result;
+		}finally{
+			this._pool.release (conn);
+		}
+	}//end executeQueryAndReturnTypedResult
+
+	/**
+	 * Maps one row of a result set to an object.  The result set is
+	 * positioned on the row and must not be advanced.
+	 */
+	public interface RowMapper<T> {
+		T map (ResultSet rs) throws SQLException;
+	}
+
+	/**
+	 * Method to execute a small lookup query and map every row to an object
+	 * read with the typed getters of the result set.
+	 * 
+	 * @param query the input query string with ? placeholders
+	 * @param mapper builds the object of a row
+	 * @param params the values bound to the placeholders
+	 * @return the mapped rows
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public <T> List<T> executeQueryAndMapResult (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+		Connection conn = this._pool.acquire ();
+		try{
+			PreparedStatement stmt = this._pool.prepare (conn, query);
+			stmt.setFetchSize (0);
+			bind (stmt, params);
+			long start = System.nanoTime ();
+			ResultSet rs = stmt.executeQuery ();
+			List<T> result = new ArrayList<T>();
+			while (rs.next())
+				result.add (mapper.map (rs));
+			rs.close ();
+			this._metrics.query (query, System.nanoTime () - start, result.size (), 0);
+			return result;
+		}finally{
+			this._pool.release (conn);
+		}
+	}//end executeQueryAndMapResult
+
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the number of results
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string with ? placeholders
+	 * @param params the values bound to the placeholders
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public int executeQuery (String query, Object... params) throws SQLException {
+		Connection conn = this._pool.acquire ();
+		try{
+			//looks up the cached statement object
+			PreparedStatement stmt = this._pool.prepare (conn, query);
+
+			//issues the query instruction
+			bind (stmt, params);
+			long start = System.nanoTime ();
+			ResultSet rs = stmt.executeQuery ();
+
+			int rowCount = 0;
+
+			//iterates through the result set and count nuber of results.
+			if(rs.next()){
+				rowCount++;
+			}//end while
+			rs.close ();
+			this._metrics.query (query, System.nanoTime () - start, rowCount, 0);
+			return rowCount;
+		}finally{
+			this._pool.release (conn);
+		}
+	}
+
+	/**
+	 * Method to execute a query returning a single integer, such as a
+	 * sequence value or a count.
+	 * 
+	 * @param query the input query string with ? placeholders
+	 * @param params the values bound to the placeholders
+	 * @return the first column of the first row, or -1 when there is none
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int queryForInt (String query, Object... params) throws SQLException {
+		Connection conn = this._pool.acquire ();
+		try{
+			PreparedStatement stmt = this._pool.prepare (conn, query);
+			bind (stmt, params);
+			long start = System.nanoTime ();
+			ResultSet rs = stmt.executeQuery ();
+			int value = -1, rowCount = 0;
+			if (rs.next()){
+				value = rs.getInt(1);
+				rowCount = 1;
+			}
+			rs.close ();
+			this._metrics.query (query, System.nanoTime () - start, rowCount, 4 * rowCount);
+			return value;
+		}finally{
+			this._pool.release (conn);
+		}
+	}
+	
+	/**
+	 * Method to look up entity rows through the in-process cache.  The
+	 * query is only issued when the key is not cached, so showing a lookup
+	 * and then reading the chosen row costs one round trip.
+	 * 
+	 * @param key the cache key, such as "customer:lname:Smith"
+	 * @param query the input query string with ? placeholders
+	 * @param params the values bound to the placeholders
+	 * @return the query result
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public TypedResult lookup (String key, String query, Object... params) throws SQLException {
+		TypedResult result = this._cache.get (key);
+		if (result == null){
+			result = executeQueryAndReturnTypedResult (query, params);
+			this._cache.put (key, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Method to build the lookup key of the customers with a last name.
+	 * Customer.lname is blank padded, so names that differ only in
+	 * trailing blanks match the same rows and share one key.
+	 * 
+	 * @param lname the last name as entered
+	 * @return the cache key, such as "customer:lname:Smith"
+	 */
+	static String lnameKey (String lname){
+		return "customer:lname:" + lname.stripTrailing ();
+	}
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+	/**
+	 * Method to check through the lookup cache that a customer exists,
+	 * as adding a car does before every insert.
+	 * 
+	 * @param id the customer id
+	 * @return true when the customer is stored
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public boolean customerExists (int id) throws SQLException {
+		return lookup ("customer:id:" + id, CUSTOMER_BY_ID, id).rowCount () > 0;
+	}
 
-		int rowCount = 0;
+	/**
+	 * Method to check through the lookup cache that a car exists.  A car
+	 * added by another desk may be reported missing until the entry
+	 * expires; its insert then fails on the primary key.
+	 * 
+	 * @param vin the VIN
+	 * @return true when the car is stored
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public boolean carExists (String vin) throws SQLException {
+		return lookup ("car:vin:" + vin, CAR_BY_VIN, vin).rowCount () > 0;
+	}
 
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	/**
+	 * Callback receiving a report: the rows one at a time while its query
+	 * runs, or the whole result when it is served from the report cache.
+	 */
+	public interface ReportHandler extends RowHandler {
+		void result (TypedResult result) throws SQLException;
 	}
-	
+
+	/**
+	 * Method to run a report query through the report cache, see
+	 * ReportCache.  A cached result is handed over whole.  Otherwise the
+	 * rows are streamed to the handler from the cursor as in
+	 * executeQueryAndStreamResult, and kept for the next viewer only when
+	 * there are few of them.
+	 * 
+	 * @param query the input query string with ? placeholders
+	 * @param handler receives the rows or the cached result
+	 * @param params the values bound to the placeholders
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeReport (final String query, final ReportHandler handler, final Object... params) throws SQLException {
+		if (this._reports == null) return executeQueryAndStreamResult (query, handler, params);
+		final int[] streamed = { -1 };
+		TypedResult result = this._reports.get (query, new ReportCache.Loader(){
+			public TypedResult load (final int limit) throws SQLException {
+				final TypedResult[] kept = new TypedResult[1];
+				streamed[0] = executeQueryAndStreamResult (query, new RowHandler(){
+					boolean keep = limit > 0;
+
+					public void row (ResultSet rs) throws SQLException {
+						handler.row (rs);
+						if (!keep) return;
+						if (kept[0] == null) kept[0] = TypedResult.empty (rs.getMetaData ());
+						if (kept[0].rowCount () < limit) kept[0].addRow (rs);
+						else{
+							kept[0] = null;
+							keep = false;
+						}
+					}
+				}, params);
+				return kept[0];
+			}
+		}, params);
+		if (streamed[0] >= 0) return streamed[0];
+		handler.result (result);
+		return result.rowCount ();
+	}
+
+	/**
+	 * Method to run a report query through the report cache and return
+	 * all of its rows, for a caller that needs them typed, such as the
+	 * top k cars.  Viewers asking for the same report at the same time
+	 * share one query, and a small result is reused until a table it reads
+	 * changes or it expires.
+	 * 
+	 * @param query the input query string with ? placeholders
+	 * @param params the values bound to the placeholders
+	 * @return the query result, not to be changed
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public TypedResult report (final String query, final Object... params) throws SQLException {
+		if (this._reports == null) return executeQueryAndReturnTypedResult (query, params);
+		return this._reports.get (query, new ReportCache.Loader(){
+			public TypedResult load (int limit) throws SQLException {
+				return executeQueryAndReturnTypedResult (query, params);
+			}
+		}, params);
+	}
+
+	/**
+	 * Method to drop a cached lookup after a write that changes its result.
+	 * 
+	 * @param key the cache key
+	 */
+	public void invalidate (String key){
+		this._cache.invalidate (key);
+	}
+
+	/**
+	 * Method to output a list of records to standard out in the same
+	 * format as executeQueryAndPrintResult.
+	 * 
+	 * @param columns the column names
+	 * @param result the records to print
+	 * @return the number of rows printed
+	 */
+	public static int printResult (String[] columns, List<List<String>> result){
+		if (result.isEmpty()) return 0;
+		StringBuilder out = new StringBuilder ();
+		for (String column : columns)
+			out.append (column).append ('\t');
+		out.append ('\n');
+		for (List<String> record : result){
+			for (String value : record)
+				out.append (value).append ('\t');
+			out.append ('\n');
+		}
+		System.out.print (out);
+		return result.size ();
+	}
+
+	/**
+	 * Method to output a typed result to standard out under its own
+	 * column names.
+	 * 
+	 * @param result the records to print
+	 * @return the number of rows printed
+	 */
+	public static int printResult (TypedResult result){
+		return printResult (result.columnNames (), result.rows ());
+	}
+
+	/**
+	 * Method to search customers by name or phone, tolerating typos.  Names
+	 * are matched by prefix and by trigram similarity (pg_trgm) on first and
+	 * last name; a term made of digits is matched as a phone number prefix.
+	 * Results are ranked exact match first, then prefix, then similarity,
+	 * and returned a page at a time.  The matching indexes are created in
+	 * create_index.sql.
+	 * 
+	 * @param term the name or phone number the clerk typed
+	 * @param limit the page size
+	 * @param offset the number of matches to skip
+	 * @return id, fname, lname, phone, address of the matching customers
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> searchCustomers (String term, int limit, int offset) throws SQLException {
+		String name = term.trim ().toLowerCase ();
+		String digits = name.replaceAll ("[^0-9]", "");
+		if (!digits.isEmpty () && !name.matches (".*[a-z].*")){
+			String query = "SELECT id, fname, lname, phone, address FROM Customer WHERE regexp_replace(phone, '[^0-9]', '', 'g') LIKE ? ORDER BY id LIMIT ? OFFSET ?";
+			return executeQueryAndReturnResult (query, digits + "%", limit, offset);
+		}
+
+		String prefix = name.replace ("\\", "\\\\").replace ("%", "\\%").replace ("_", "\\_") + "%";
+		String query = "SELECT id, fname, lname, phone, address FROM Customer " +
+			"WHERE lower(rtrim(lname)) LIKE ? OR lower(rtrim(lname)) % ? OR lower(rtrim(fname)) % ? " +
+			"ORDER BY CASE WHEN lower(rtrim(lname)) = ? THEN 2 WHEN lower(rtrim(lname)) LIKE ? THEN 1 ELSE 0 END DESC, " +
+			"GREATEST(similarity(lower(rtrim(lname)), ?), similarity(lower(rtrim(fname)), ?)) DESC, id LIMIT ? OFFSET ?";
+		return executeQueryAndReturnResult (query, prefix, name, name, name, prefix, name, name, limit, offset);
+	}
+
+	/**
+	 * Method to check whether a row with the given key values exists.  Only
+	 * a boolean crosses the wire, no matter how wide the table is.
+	 * 
+	 * @param table the table to look in, never user input
+	 * @param keyColumns the columns to match, never user input
+	 * @param values the values the columns must equal, in order
+	 * @return true when at least one row matches
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public boolean exists (String table, String[] keyColumns, Object... values) throws SQLException {
+		if (keyColumns.length != values.length)
+			throw new IllegalArgumentException ("expected " + keyColumns.length + " values for " + table);
+
+		StringBuilder query = new StringBuilder ("SELECT 1 FROM ").append (table).append (" WHERE ");
+		for (int i = 0; i < keyColumns.length; ++i){
+			if (i > 0) query.append (" AND ");
+			query.append (keyColumns[i]).append (" = ?");
+		}
+		query.append (" LIMIT 1");
+		return queryForInt (query.toString (), values) == 1;
+	}
+
 	/**
 	 * Method to fetch the last value from sequence. This
 	 * method issues the query to the DBMS and returns the current 
@@ -191,24 +819,287 @@ public class MechanicShop{
 	 */
 	
 	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+		return queryForInt ("Select currval(?::regclass)", sequence);
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to obtain a new key from a sequence used for autogenerated
+	 * keys. Keys are reserved from the DBMS in blocks, so most calls do
+	 * not reach the database.
+	 * 
+	 * @param sequence name of the DB sequence
+	 * @return an unused key
+	 * @throws java.sql.SQLException when failed to reserve keys
 	 */
-	public void cleanup(){
+	public int nextId(String sequence) throws SQLException {
+		return this._ids.next(sequence);
+	}
+
+	/**
+	 * Method to borrow a pooled connection for work that spans several
+	 * statements, such as a transaction.  It must be handed back with
+	 * releaseConnection.
+	 * 
+	 * @return a physical connection
+	 * @throws java.sql.SQLException when no connection can be obtained
+	 */
+	public Connection acquireConnection() throws SQLException {
+		return this._pool.acquire ();
+	}
+
+	/**
+	 * Method to hand back a connection obtained from acquireConnection.
+	 * 
+	 * @param conn the borrowed connection
+	 */
+	public void releaseConnection(Connection conn){
+		this._pool.release (conn);
+	}
+
+	/**
+	 * Method to look up the cached prepared statement for a SQL template on
+	 * a borrowed connection.
+	 * 
+	 * @param conn a connection obtained from acquireConnection
+	 * @param sql the SQL template with ? placeholders
+	 * @return the prepared statement, owned by the pool
+	 * @throws java.sql.SQLException when the statement cannot be prepared
+	 */
+	public PreparedStatement prepare(Connection conn, String sql) throws SQLException {
+		return this._pool.prepare (conn, sql);
+	}
+
+	/*
+	 * Non-interactive versions of the write operations, used by the server
+	 * mode. They validate like the menu does, but report a bad input by
+	 * throwing instead of prompting again: IllegalArgumentException when a
+	 * referenced row does not exist or a value is out of range, and
+	 * IllegalStateException when the row to add already exists.
+	 */
+
+	/*
+	 * With a WriteJournal (-Dmechanicshop.journal=<dir>) the writes of
+	 * AddCustomer, InsertServiceRequest and CloseServiceRequest go to the
+	 * journal when the database cannot be reached or does not answer within
+	 * mechanicshop.journal.timeout milliseconds, and keep going there until
+	 * the replayer has drained it, so they reach the database in the order
+	 * they were made. Journaled writes skip the checks that read the
+	 * database; the constraints decide at replay, and rejected writes are
+	 * listed in the journal's rejected.log.
+	 */
+
+	/**
+	 * Runs one write of the desk, or appends it to the write journal.
+	 * 
+	 * @param sql the input SQL string with ? placeholders
+	 * @param params the values bound to the placeholders
+	 * @return true when the write was applied, false when it was journaled
+	 * @throws java.sql.SQLException when the write failed and was not journaled
+	 */
+	public boolean write (String sql, Object... params) throws SQLException {
+		if (this._journal == null){
+			executeUpdate (sql, params);
+			return true;
+		}
+		if (!journaling ()){
+			try{
+				executeUpdate (this._journalTimeout, sql, params);
+				return true;
+			}catch (SQLException e){
+				if (!WriteJournal.isTransient (e)) throw e;
+			}
+		}
+		journal (sql, params);
+		return false;
+	}
+
+	private void journal (String sql, Object... params) throws SQLException {
 		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
+			this._journal.append (sql, params);
+		}catch (IOException e){
+			throw new SQLException ("the database is unavailable and the write journal failed: " + e.getMessage (), e);
+		}
+	}
+
+	/**
+	 * @return true while earlier writes wait in the journal, so new ones must follow them there
+	 */
+	public boolean journaling (){
+		return this._journal != null && this._journal.backlog () > 0;
+	}
+
+	// a read made for a check failed in a way the journal can wait out
+	private boolean journaling (SQLException e){
+		return this._journal != null && WriteJournal.isTransient (e);
+	}
+
+	/**
+	 * Looks for a stored customer with the same phone number.
+	 * 
+	 * @return -1 when the phone number is free or the check has to be skipped for the journal,
+	 *         1 when it belongs to another customer, 2 when the same customer is already stored
+	 */
+	public int checkCustomer(String fname, String lname, String address, String phone) throws SQLException {
+		if (journaling ()) return -1;
+		try{
+			return queryForInt (CHECK_CUSTOMER, fname, lname, address, phone);
 		}catch (SQLException e){
-	         // ignored.
-		}//end try
+			if (!journaling (e)) throw e;
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the id of the new customer
+	 */
+	public int addCustomer(String fname, String lname, String phone, String address) throws SQLException {
+		int match = checkCustomer (fname, lname, address, phone);
+		if (match == 2) throw new IllegalStateException ("customer already exists");
+		if (match >= 0) throw new IllegalStateException ("phone number " + phone + " belongs to another customer");
+
+		int id = nextId ("customer_id_seq");
+		write (INSERT_CUSTOMER, id, fname, lname, phone, address);
+		invalidate (lnameKey (lname));
+		invalidate ("customer:id:" + id);
+		return id;
+	}
+
+	/**
+	 * @return the id of the new mechanic
+	 */
+	public int addMechanic(String fname, String lname, int experience) throws SQLException {
+		if (experience < 0) throw new IllegalArgumentException ("experience must not be negative");
+		if (exists ("Mechanic", new String[]{"fname", "lname", "experience"}, fname, lname, experience))
+			throw new IllegalStateException ("mechanic already exists");
+
+		int id = nextId ("mechanic_id_seq");
+		executeUpdate (INSERT_MECHANIC, id, fname, lname, experience);
+		return id;
+	}
+
+	/**
+	 * @return the id of the ownership record linking the car to its owner
+	 */
+	public int addCar(int customerId, String vin, String make, String model, int year) throws SQLException {
+		if (!customerExists (customerId))
+			throw new IllegalArgumentException ("customer " + customerId + " does not exist");
+		if (carExists (vin))
+			throw new IllegalStateException ("car " + vin + " already exists");
+
+		int ownsId = nextId ("owns_id_seq");
+		executeUpdate (INSERT_CAR, vin, make, model, year);
+		executeUpdate (INSERT_OWNS, ownsId, customerId, vin);
+		invalidate ("car:owner:" + customerId);
+		invalidate ("car:vin:" + vin);
+		return ownsId;
+	}
+
+	/**
+	 * @return the rid of the new service request
+	 */
+	public int insertServiceRequest(int customerId, String vin, int odometer, String complain) throws SQLException {
+		if (odometer <= 0) throw new IllegalArgumentException ("odometer must be greater than 0");
+		boolean owned = journaling ();
+		try{
+			TypedResult cars = owned ? null : lookup ("car:owner:" + customerId, CARS_BY_OWNER, customerId);
+			for (int i = 0; cars != null && i < cars.rowCount (); ++i)
+				if (cars.getString (i, 0).equals (vin)) owned = true;
+		}catch (SQLException e){
+			if (!journaling (e)) throw e;
+			owned = true;
+		}
+		if (!owned) throw new IllegalArgumentException ("customer " + customerId + " does not own car " + vin);
+
+		int rid = nextId ("rid_seq");
+		write (INSERT_REQUEST, rid, customerId, vin, new java.sql.Date (System.currentTimeMillis ()), odometer, complain);
+		return rid;
+	}
+
+	/**
+	 * Closes a service request in one round trip and one transaction. The
+	 * request row is locked while the statement runs, and the unique index
+	 * on Closed_Request.rid turns a concurrent second close into a no-op;
+	 * once the table is partitioned the Closed_Rid guard of partition.sql
+	 * rejects it with a unique violation instead.
+	 * 
+	 * A close that goes to the write journal is kept as a plain insert with
+	 * its wid and date taken at the desk; see journaled.
+	 * 
+	 * @return the closed record, in the order of CLOSED_COLUMNS
+	 */
+	public List<String> closeServiceRequest(int rid, int mechanicId, String comment, int bill) throws SQLException {
+		if (bill <= 0) throw new IllegalArgumentException ("bill must be greater than 0");
+		if (journaling ()) return journalClose (rid, mechanicId, comment, bill);
+		List<String> row;
+		try{
+			row = executeQueryAndReturnResult (this._journalTimeout, CLOSE_REQUEST, rid, mechanicId, comment, bill).get (0);
+		}catch (SQLException e){
+			if ("23505".equals (e.getSQLState ()))
+				throw new IllegalStateException ("service request " + rid + " is already closed");
+			if (journaling (e)) return journalClose (rid, mechanicId, comment, bill);
+			throw e;
+		}
+		if (this._reports != null) this._reports.changed (CLOSE_REQUEST);
+		if (row.get (0).equals ("0"))
+			throw new IllegalArgumentException ("service request " + rid + " does not exist");
+		if (row.get (1).equals ("0"))
+			throw new IllegalArgumentException ("mechanic " + mechanicId + " does not exist");
+		if (row.get (2) == null)
+			throw new IllegalStateException ("service request " + rid + " is already closed");
+		return row.subList (2, row.size ());
+	}
+
+	private List<String> journalClose(int rid, int mechanicId, String comment, int bill) throws SQLException {
+		int wid = nextId ("wid_seq");
+		java.sql.Date date = new java.sql.Date (System.currentTimeMillis ());
+		journal (INSERT_CLOSED, wid, rid, mechanicId, date, comment, bill);
+		return Arrays.asList (String.valueOf (wid), String.valueOf (rid), String.valueOf (mechanicId), date.toString (), comment, String.valueOf (bill), null, null, null, null);
+	}
+
+	/**
+	 * @return true when a record returned by closeServiceRequest is only in the
+	 *         write journal yet, so its customer and mechanic columns are unknown
+	 */
+	public static boolean journaled(List<String> closed){
+		return closed.get (6) == null;
+	}
+
+	/**
+	 * Claims the oldest open service request nobody has claimed for a
+	 * mechanic. Mechanics claiming at the same time each get a different
+	 * request without waiting on one another.
+	 * 
+	 * @return the request, in the order of JOB_COLUMNS, or null when every open request is claimed
+	 */
+	public List<String> claimNextServiceRequest(int mechanicId) throws SQLException {
+		if (!exists ("Mechanic", new String[]{"id"}, mechanicId))
+			throw new IllegalArgumentException ("mechanic " + mechanicId + " does not exist");
+		List<List<String>> job = executeQueryAndReturnResult (CLAIM_NEXT, mechanicId);
+		return job.isEmpty () ? null : job.get (0);
+	}
+
+	/**
+	 * Puts a claimed request back in the queue.
+	 * 
+	 * @return false when the request is not claimed by this mechanic
+	 */
+	public boolean releaseClaim(int rid, int mechanicId) throws SQLException {
+		return executeUpdate (RELEASE_CLAIM, rid, mechanicId) == 1;
+	}
+
+	/**
+	 * Method to close the pooled physical connections.
+	 */
+	public void cleanup(){
+		if (this._reports != null){
+			this._reports.close ();
+		}//end if
+		if (this._journal != null){
+			this._journal.close ();
+		}//end if
+		if (this._pool != null){
+			this._pool.close ();
+		}//end if
 	}//end cleanup
 
 	/**
@@ -217,10 +1108,10 @@ public class MechanicShop{
 	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
 	 */
 	public static void main (String[] args) {
-		if (args.length != 3) {
+		if (args.length != 3 && !(args.length >= 5 && (args[3].equals("--batch") || args[3].equals("--serve")))) {
 			System.err.println (
 				"Usage: " + "java [-classpath <classpath>] " + MechanicShop.class.getName () +
-		            " <dbname> <port> <user>");
+		            " <dbname> <port> <user> [--batch <file> [--tx-size <n>] | --serve <http port>]");
 			return;
 		}//end if
 		
@@ -243,7 +1134,25 @@ public class MechanicShop{
 			String dbport = args[1];
 			String user = args[2];
 			
+			// one process serves many desks, so give it a larger pool unless configured
+			if (args.length >= 5 && args[3].equals("--serve") && System.getProperty("mechanicshop.pool.size") == null)
+				System.setProperty("mechanicshop.pool.size", "16");
+
 			esql = new MechanicShop (dbname, dbport, user, "");
+
+			// server mode: serve the operations over HTTP until the process is stopped
+			if (args.length >= 5 && args[3].equals("--serve")) {
+				new ShopServer(esql, Integer.parseInt(args[4])).run();
+				return;
+			}
+
+			// non-interactive mode: run the operations of a file and exit
+			if (args.length >= 5) {
+				int txSize = 500;
+				if (args.length >= 7 && args[5].equals("--tx-size")) txSize = Integer.parseInt(args[6]);
+				new BatchRunner(esql, txSize).run(Paths.get(args[4]));
+				return;
+			}
 			
 			boolean keepon = true;
 			while(keepon){
@@ -259,12 +1168,18 @@ public class MechanicShop{
 				System.out.println("8. ListCarsBefore1995With50000Milles");
 				System.out.println("9. ListKCarsWithTheMostServices");
 				System.out.println("10. ListCustomersInDescendingOrderOfTheirTotalBill");
-				System.out.println("11. < EXIT");
+				System.out.println("11. BulkCloseServiceRequests");
+				System.out.println("12. ExportReport");
+				System.out.println("13. ClaimNextServiceRequest");
+				System.out.println("14. ListOpenServiceRequests");
+				System.out.println("15. < EXIT");
 				
 				/*
 				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
 				 */
-				switch (readChoice()){
+				int choice = readChoice();
+				esql._metrics.beginOperation();
+				switch (choice){
 					case 1: AddCustomer(esql); break;
 					case 2: AddMechanic(esql); break;
 					case 3: AddCar(esql); break;
@@ -275,14 +1190,23 @@ public class MechanicShop{
 					case 8: ListCarsBefore1995With50000Milles(esql); break;
 					case 9: ListKCarsWithTheMostServices(esql); break;
 					case 10: ListCustomersInDescendingOrderOfTheirTotalBill(esql); break;
-					case 11: keepon = false; break;
+					case 11: BulkCloseServiceRequests(esql); break;
+					case 12: ExportReport(esql); break;
+					case 13: ClaimNextServiceRequest(esql); break;
+					case 14: ListOpenServiceRequests(esql); break;
+					case 15: keepon = false; break;
 				}
+				esql._metrics.endOperation(choice >= 1 && choice <= OPERATIONS.length ? OPERATIONS[choice - 1] : null);
 			}
 		}catch(Exception e){
 			System.err.println (e.getMessage ());
 		}finally{
 			try{
 				if(esql != null) {
+					if (esql._cache != null) System.out.println(esql._cache);
+					if (esql._reports != null) System.out.println(esql._reports);
+					if (esql._journal != null) System.out.println(esql._journal);
+					if (Boolean.getBoolean("mechanicshop.metrics.print")) System.out.print(esql._metrics.report());
 					System.out.print("Disconnecting from database...");
 					esql.cleanup ();
 					System.out.println("Done\n\nBye !");
@@ -312,7 +1236,7 @@ public class MechanicShop{
 	
 	public static void AddCustomer(MechanicShop esql){//1
 		String fname, lname, address, phone;
-		int custExists = -1, custPhone = -1;
+		int custMatch = -1;
 
 		try{ 
 			while(true){
@@ -331,32 +1255,29 @@ public class MechanicShop{
 
 				System.out.println();
 
-				String checkPhone = "SELECT phone FROM Customer WHERE phone = '" + phone + "'";
-				custExists = esql.executeQuery(checkPhone);
-
-				String checkInfo = "SELECT * FROM Customer WHERE fname = '" + fname + "' AND lname = '" + lname + "' AND address = '" + address + "' AND phone = '" + phone + "'";
-				custExists = esql.executeQuery(checkInfo);
+				// one round trip for both the phone and the full identity check
+				custMatch = esql.checkCustomer(fname, lname, address, phone);
 
 
-				if((custPhone == 0) && (custExists == 0)) { break; }
+				if(custMatch < 0) { break; }
 
-				if(custPhone > 0 ){ 
-					System.out.print("Customer already exists from phone number. Enter new customer information: \n"); 
-				} else if(custExists > 0 ){ 
+				if(custMatch == 2 ){ 
 					System.out.println("Customer already exists. Enter new customer information: "); 
+				} else { 
+					System.out.print("Customer already exists from phone number. Enter new customer information: \n"); 
 				}
 
 			}
 
 
-			int dummyVar = esql.executeQuery("SELECT setval(\'customer_id_seq\', (SELECT MAX(id) FROM Customer));");
-			int id = esql.getCurrSeqVal("customer_id_seq") + 1;
-
+			int id = esql.nextId("customer_id_seq");
 
-			String insertCustomer = "INSERT INTO Customer (id, fname, lname, phone, address) VALUES ( \'" + id + "\', \'" + fname + "\', \'" + lname + "\', \'" + phone + "\', \'" + address + "\')";
 
-			esql.executeUpdate(insertCustomer);
-			System.out.println ("     Customer " + id + " has been added.\n");
+			boolean added = esql.write(INSERT_CUSTOMER, id, fname, lname, phone, address);
+			esql.invalidate(lnameKey(lname));
+			esql.invalidate("customer:id:" + id);
+			if (added) System.out.println ("     Customer " + id + " has been added.\n");
+			else System.out.println ("     Customer " + id + " is kept in the local journal and will be added when the database is back.\n");
 
 		} catch(Exception e){
 			System.err.println ("error: " + e.getMessage());
@@ -365,7 +1286,7 @@ public class MechanicShop{
 	
 	public static void AddMechanic(MechanicShop esql){//2 
 		String fname, lname;
-		int exp = -1, mechExists = -1;
+		int exp = -1;
 
 		try {
 			
@@ -388,22 +1309,18 @@ public class MechanicShop{
 
 				System.out.println();
 
-				String checkInfo = "SELECT * FROM Mechanic WHERE fname = '" + fname + "' AND lname = '" + lname + "' AND experience = '" + exp + "'";
-				mechExists = esql.executeQuery(checkInfo);
+				boolean mechExists = esql.exists("Mechanic", new String[]{"fname", "lname", "experience"}, fname, lname, exp);
 
-				if(mechExists > 0 ){ 
+				if(mechExists){ 
 					System.out.println("Mechanic already exists. Enter new mechanic information: ");
 				} else{ break; }
 
 
 			}
 
-        	int dummyVar = esql.executeQuery("SELECT setval(\'mechanic_id_seq\', (SELECT MAX(id) FROM Mechanic));");
-			int mech_id = esql.getCurrSeqVal("mechanic_id_seq") + 1;
-
-			String insertMechanic = "INSERT INTO Mechanic (id, fname, lname, experience) VALUES (\'" + mech_id + "\', \'" + fname + "\', \'" + lname + "\', \'" + exp + "\');";
+			int mech_id = esql.nextId("mechanic_id_seq");
 
-			esql.executeUpdate(insertMechanic);
+			esql.executeUpdate(INSERT_MECHANIC, mech_id, fname, lname, exp);
 			System.out.println ("     Mechanic " + mech_id + " has been added.\n");
 
 		}catch (Exception e){
@@ -417,22 +1334,22 @@ public class MechanicShop{
 			int cust_id = Integer.parseInt(in.readLine());
 
 			// if customer_id exists
-			int validId = esql.executeQuery("SELECT * FROM Customer WHERE id = " + cust_id);
-			while(validId < 1){
+			boolean validId = esql.customerExists(cust_id);
+			while(!validId){
 				System.out.print("Customer ID does not exists. Enter valid customer ID: ");
 				cust_id = Integer.parseInt(in.readLine());
-				validId = esql.executeQuery("SELECT * FROM Customer WHERE id = " + cust_id);
+				validId = esql.customerExists(cust_id);
 			}
 
 			System.out.print("\tEnter VIN number: ");
 			String vinNum = in.readLine();
 
 			// if VIN exists
-			int validVin = esql.executeQuery("SELECT * FROM Car WHERE vin = \'" + vinNum + "\'");
-			while(validVin > 0){
+			boolean validVin = esql.carExists(vinNum);
+			while(validVin){
 				System.out.print("Vin already exists. Enter new VIN: ");
 				vinNum = in.readLine();
-				validVin = esql.executeQuery("SELECT * FROM Car WHERE vin = \'" + vinNum + "\'");
+				validVin = esql.carExists(vinNum);
 			}			
 
 			System.out.print("\tEnter make of car: ");
@@ -442,21 +1359,17 @@ public class MechanicShop{
 			String carModel = in.readLine();
 
 			System.out.print("\tEnter year of car: ");
-			String carYear = in.readLine();
+			int carYear = Integer.parseInt(in.readLine());
 
 			
 
-			String insertCar = "INSERT INTO Car (vin, make, model, year) VALUES (\'" + vinNum + "\', \'" + carMake + "\', \'" + carModel + "\', \'" + carYear + "\');";
-
 			// update ownership of car
-			int dummyVar = esql.executeQuery("SELECT setval(\'owns_id_seq\', (SELECT MAX(ownership_id) FROM Owns));");
-
-			int own_id = esql.getCurrSeqVal("owns_id_seq") + 1;
-
-			String addToOwns = "INSERT INTO Owns (ownership_id, customer_id, car_vin) VALUES (\'" + own_id + "\', \'" + cust_id + "\', \'" + vinNum + "\');";
+			int own_id = esql.nextId("owns_id_seq");
 
-			esql.executeUpdate(insertCar);
-			esql.executeUpdate(addToOwns);
+			esql.executeUpdate(INSERT_CAR, vinNum, carMake, carModel, carYear);
+			esql.executeUpdate(INSERT_OWNS, own_id, cust_id, vinNum);
+			esql.invalidate("car:owner:" + cust_id);
+			esql.invalidate("car:vin:" + vinNum);
 			System.out.println ("     Customer " + cust_id + "\'s car has been added.\n");
 			
 		}catch (Exception e){
@@ -474,29 +1387,30 @@ public class MechanicShop{
 
 		try{
 			System.out.print("\tEnter your last name: ");
-			String userlname = in.readLine();
+			String userlname = in.readLine().trim();
 		
 			// searches Customer for matching entry	
-			String query = "SELECT id, fname, lname, phone, address FROM Customer WHERE Customer.lname = ('" + userlname  + "')";
-			
 			// assigns possible customers into searchResult
-			List<List<String>> searchResult = esql.executeQueryAndReturnResult(query);
+			TypedResult searchResult = esql.lookup(lnameKey(userlname), CUSTOMERS_BY_LNAME, userlname);
                 	
 			// check how many customers were returned
-			if (searchResult.size() == 1) { // one result returned, get ID
+			if (searchResult.rowCount() == 1) { // one result returned, get ID
 				//String custID  = "SELECT id FROM Customer WHERE Customer.lname = ('" +  userlname + "')";
 				//int cust1ID = esql.executeQueryAndPrintResult(custID);
-				id = Integer.parseInt(searchResult.get(0).get(0));
+				id = searchResult.getInt(0, 0);
 			}
-			else if (searchResult.size() > 1) { // more than one result returned
-				esql.executeQueryAndPrintResult(query);
+			else if (searchResult.rowCount() > 1) { // more than one result returned
+				printResult(searchResult);
 				System.out.print("\tWhich one? (1, 2, 3, etc.): ");
 				input = Integer.parseInt(in.readLine());
-				id = Integer.parseInt(searchResult.get(input - 1).get(0));
+				id = searchResult.getInt(input - 1, 0);
 				System.out.println("You chose customer #" + input);
 				System.out.println("Customer id is: " + id);
 			}
-			else { // no customer found, ask user to add customer
+			else { // no exact match, offer the closest customers
+				id = SearchCustomers(esql, userlname);
+			}
+			if (id < 0) { // no customer found, ask user to add customer
 				System.out.println("We couldn't find your customer, would you like to add one?: ");
 				System.out.println("1. Yes\n2. No");
 				int response = Integer.parseInt(in.readLine());
@@ -510,26 +1424,23 @@ public class MechanicShop{
 
 			// display cars that need to be serviced
 			
-			query = "SELECT vin, make, model, year FROM Car C, Owns O WHERE O.car_vin = C.vin and O.customer_id = '";
-			query += id + "'";
-			List<List<String>> customer_vins = esql.executeQueryAndReturnResult(query);
-			if (customer_vins.size() > 0) { 
+			TypedResult customer_vins = esql.lookup("car:owner:" + id, CARS_BY_OWNER, id);
+			if (customer_vins.rowCount() > 0) { 
 				System.out.println("Which car is yours? (1, 2, 3, etc.)");
-				int cars = esql.executeQueryAndPrintResult(query);
+				int cars = printResult(customer_vins);
 				input = Integer.parseInt(in.readLine()); // customer chooses car for service request
-				System.out.println("You chose the car: " + customer_vins.get(input - 1).get(1) + " " + customer_vins.get(input - 1).get(2));
-				vin = customer_vins.get(input - 1).get(0);
+				System.out.println("You chose the car: " + customer_vins.getString(input - 1, 1) + " " + customer_vins.getString(input - 1, 2));
+				vin = customer_vins.getString(input - 1, 0);
 			}
 			else { // add car
 				AddCar(esql);
 			}
 			
 			// get new request id
-			int dummyVar = esql.executeQuery("SELECT setval(\'rid_seq\', (SELECT MAX(rid) FROM Service_Request));");
-			rid = esql.getCurrSeqVal("rid_seq") + 1;
+			rid = esql.nextId("rid_seq");
 	
 			// get today's date
-			String date = new SimpleDateFormat("MM-dd-yyyy").format(new Date());
+			java.sql.Date date = new java.sql.Date(System.currentTimeMillis());
 		
 			// get odometer reading
 			System.out.println("How many miles are on the odometer? ");
@@ -548,66 +1459,69 @@ public class MechanicShop{
 			System.out.printf("%n");
 
 			// execute updates
-			String addRequest = "INSERT INTO Service_Request(rid, customer_id, car_vin, date, odometer, complain) VALUES (\'" + rid + "\', \'" + id + "\', \'" + vin + "\', \'" + date + "\', \'" + odometer_reading + "\', \'" + comments + "\');";
-			esql.executeUpdate(addRequest);
-			System.out.println ("Service request #" + rid + " has been added.\n");
+			if (esql.write(INSERT_REQUEST, rid, id, vin, date, odometer_reading, comments))
+				System.out.println ("Service request #" + rid + " has been added.\n");
+			else
+				System.out.println ("Service request #" + rid + " is kept in the local journal and will be added when the database is back.\n");
 		}catch (Exception e){
 			System.err.println (e.getMessage());
 		}		
 	}//end InsertServiceRequest
 	
+	/**
+	 * Shows the customers closest to a mistyped name or phone number a page
+	 * at a time and lets the clerk pick one.
+	 * 
+	 * @return the chosen customer id, or -1 when none was chosen
+	 */
+	public static int SearchCustomers(MechanicShop esql, String term) throws Exception {
+		int pageSize = Integer.getInteger("mechanicshop.search.page", 10);
+		int page = 0;
+		while (true) {
+			List<List<String>> matches = esql.searchCustomers(term, pageSize, page * pageSize);
+			if (matches.isEmpty()) {
+				if (page == 0) return -1;
+				System.out.println("No more matches.");
+				page--;
+				continue;
+			}
+
+			System.out.println("Closest matches for '" + term + "' (page " + (page + 1) + "):");
+			printResult(new String[]{"id", "fname", "lname", "phone", "address"}, matches);
+			System.out.print("\tWhich one? (1, 2, 3, etc., n = next page, p = previous page, 0 = none): ");
+			String answer = in.readLine().trim();
+			if (answer.equalsIgnoreCase("n")) { page++; continue; }
+			if (answer.equalsIgnoreCase("p")) { page = Math.max(0, page - 1); continue; }
+
+			int input = Integer.parseInt(answer);
+			if (input < 1 || input > matches.size()) return -1;
+			int id = Integer.parseInt(matches.get(input - 1).get(0));
+			System.out.println("Customer id is: " + id);
+			return id;
+		}
+	}//end SearchCustomers
+	
 	public static void CloseServiceRequest(MechanicShop esql) throws Exception{//5
 		int request_id = -1;
 		int mechanic_id = -1;
 		int bill = -1;	
 		String mech_comments = "";
-		int wid = -1; // primary key of closed requests
-
-		int dummyVar1 = esql.executeQuery("SELECT setval(\'rid_seq\', (SELECT MAX(rid) FROM Service_Request));");
-		int lastSRid = esql.getCurrSeqVal("rid_seq");
-		int dummyVar2 = esql.executeQuery("SELECT setval(\'mechanic_id_seq\', (SELECT MAX(id) FROM Mechanic));");
-		int lastMechId = esql.getCurrSeqVal("mechanic_id_seq");
 
 		try{
-			System.out.println("Enter the service request number (between 1 and "+ lastSRid + "): ");
+			System.out.println("Enter the service request number (14 in the main menu lists the open ones): ");
 			request_id = Integer.parseInt(in.readLine());
-			while(request_id > lastSRid || request_id < 1) {
+			while(request_id < 1) {
 				System.out.println("Number not valid, try again!");
 				request_id = Integer.parseInt(in.readLine());
 			}
 
-			// check if service request exists
-			String query = "SELECT rid, customer_id, car_vin, date, odometer, complain FROM Service_Request SR WHERE SR.rid = '";
-			query += request_id + "'";
-			List<List<String>> openRequest = esql.executeQueryAndReturnResult(query);
-			System.out.println("customer info for service request #" + request_id);
-			esql.executeQueryAndPrintResult(query);
-						
-		
-			System.out.println("Enter your mechanic id (between 1 and " + lastMechId + "): ");
+			System.out.println("Enter your mechanic id: ");
             mechanic_id = Integer.parseInt(in.readLine());
-
-            while (mechanic_id > lastMechId || mechanic_id < 1) {
+            while (mechanic_id < 1) {
        		 	System.out.println("Number not valid, try again!");
-				request_id = Integer.parseInt(in.readLine());
+				mechanic_id = Integer.parseInt(in.readLine());
             }
 
-	
-			// check if mechanic exists
-			query = "SELECT id, fname, lname FROM Mechanic M WHERE M.id = '";
-			query += mechanic_id + "'";
-			List<List<String>> mechInfo = esql.executeQueryAndReturnResult(query);
-			
-			System.out.println("Mechanic info for mechanic #" + mechInfo.get(0).get(0));
-			esql.executeQueryAndPrintResult(query);
-						
-			// check if proper date
-			String date = new SimpleDateFormat("MM-dd-yyyy").format(new Date());
-
-			// generate incremnted closed request id NOT service request id
-			int dummyVar = esql.executeQuery("SELECT setval(\'wid_seq\', (SELECT MAX(wid) FROM Closed_Request));");
-			wid = esql.getCurrSeqVal("wid_seq") + 1;
-			
 			//Mechanic enters comments
 			System.out.println("Enter your comments on the service request.\n");
 			mech_comments = in.readLine();
@@ -615,24 +1529,196 @@ public class MechanicShop{
 			//Mechanic enters bill
 			System.out.println("Enter the billing amount.\n");
 			bill = Integer.parseInt(in.readLine());
-			System.out.println("The customer will be charged $" + bill + ".");		
+			while (bill <= 0) {
+				System.out.println("Enter a number greater than 0. ");
+				bill = Integer.parseInt(in.readLine());
+			}
 
-			// add info to Closed_Requests
-			String addRequest = "INSERT INTO Closed_Request(wid, rid, mid, date, comment, bill) VALUES (\'" + wid + "\', \'" + request_id + "\', \'" + mechanic_id + "\', \'" + date + "\', \'" + mech_comments + "\', \'" + bill + "\');";
-			esql.executeUpdate(addRequest);
-			System.out.println ("Service request #" + wid + " has been added.\n");
+			// checks the request and the mechanic, allocates the wid and inserts in one statement
+			List<String> closed = esql.closeServiceRequest(request_id, mechanic_id, mech_comments, bill);
+			List<List<String>> record = new ArrayList<List<String>>();
+			record.add(closed);
+			printResult(CLOSED_COLUMNS, record);
+			System.out.println("The customer will be charged $" + bill + ".");		
+			if (journaled(closed))
+				System.out.println ("Service request #" + request_id + " is kept in the local journal and will be closed as #" + closed.get(0) + " when the database is back.\n");
+			else
+				System.out.println ("Service request #" + request_id + " has been closed as #" + closed.get(0) + ".\n");
 
 		}catch (Exception e){
 			System.err.println (e.getMessage());
 		}		
 	}
 	
+	public static void BulkCloseServiceRequests(MechanicShop esql){//11
+		try{
+			BulkCloser closer = new BulkCloser(esql, Integer.getInteger("mechanicshop.bulk.tx", 500));
+
+			System.out.println("1. Close the requests listed in a file");
+			System.out.println("2. Type the requests to close");
+			System.out.println("3. Close all open requests older than a number of days");
+			int choice = readChoice();
+
+			if (choice == 1 || choice == 2) {
+				List<String> lines;
+				if (choice == 1) {
+					System.out.print("\tEnter the file with one rid,mid,bill,comment per line: ");
+					lines = java.nio.file.Files.readAllLines(Paths.get(in.readLine().trim()));
+				}
+				else {
+					System.out.println("\tEnter one rid,mid,bill,comment per line, an empty line to finish: ");
+					lines = new ArrayList<String>();
+					String line;
+					while ((line = in.readLine()) != null && !line.trim().isEmpty()) lines.add(line);
+				}
+				closer.closeAll(BulkCloser.parse(lines));
+			}
+			else if (choice == 3) {
+				System.out.print("\tClose open requests older than how many days? ");
+				int days = Integer.parseInt(in.readLine());
+				System.out.print("\tEnter your mechanic id: ");
+				int mid = Integer.parseInt(in.readLine());
+				System.out.print("\tEnter the comment for every request: ");
+				String comment = in.readLine();
+				System.out.print("\tEnter the billing amount for every request: ");
+				int bill = Integer.parseInt(in.readLine());
+				closer.closeOlderThan(days, mid, bill, comment);
+			}
+			System.out.printf("%n");
+		}catch (Exception e){
+			System.err.println (e.getMessage());
+		}
+	}//end BulkCloseServiceRequests
+
+	public static void ClaimNextServiceRequest(MechanicShop esql){//13
+		try{
+			System.out.print("\tEnter your mechanic id: ");
+			int mid = Integer.parseInt(in.readLine());
+			List<String> job = esql.claimNextServiceRequest(mid);
+			if (job == null) {
+				System.out.println("No unclaimed service requests.\n");
+				return;
+			}
+			List<List<String>> record = new ArrayList<List<String>>();
+			record.add(job);
+			printResult(JOB_COLUMNS, record);
+			int rid = Integer.parseInt(job.get(0));
+
+			System.out.print("\tc = close it now, r = release it, anything else keeps it claimed: ");
+			String answer = in.readLine();
+			answer = answer == null ? "" : answer.trim();
+			if (answer.equalsIgnoreCase("c")) {
+				System.out.println("Enter your comments on the service request.");
+				String comment = in.readLine();
+				System.out.println("Enter the billing amount.");
+				int bill = Integer.parseInt(in.readLine());
+				List<String> closed = esql.closeServiceRequest(rid, mid, comment, bill);
+				System.out.println("Service request #" + rid + (journaled(closed) ? " is kept in the local journal to be closed as #" : " has been closed as #") + closed.get(0) + ".\n");
+			}
+			else if (answer.equalsIgnoreCase("r")) {
+				esql.releaseClaim(rid, mid);
+				System.out.println("Service request #" + rid + " is back in the queue.\n");
+			}
+			else {
+				System.out.println("Service request #" + rid + " is claimed by mechanic #" + mid + ".\n");
+			}
+		}catch (Exception e){
+			System.err.println (e.getMessage());
+		}
+	}//end ClaimNextServiceRequest
+
+	public static void ListOpenServiceRequests(MechanicShop esql){//14
+		try{
+			System.out.println("1. Oldest first");
+			System.out.println("2. Of one customer");
+			int choice = readChoice();
+			int rowCount;
+			if (choice == 2) {
+				System.out.print("\tEnter the customer id: ");
+				rowCount = esql.executeQueryAndPrintResult(OPEN_BY_CUSTOMER, Integer.parseInt(in.readLine()));
+			}
+			else {
+				rowCount = new ReportPager(esql, OPEN_BY_AGE, OPEN_BY_AGE_AFTER, new int[]{3, 0}, 5, pageSize()).browse();
+			}
+			System.out.println("total row(s): " + rowCount);
+			System.out.printf("%n");
+		}catch (Exception e){
+			System.err.println (e.getMessage());
+		}
+	}//end ListOpenServiceRequests
+	
+	/**
+	 * Asks whether to page through a report instead of printing all of it.
+	 */
+	static boolean askPaging() throws java.io.IOException {
+		System.out.print("\tPage through the result? (y/n): ");
+		String answer = in.readLine();
+		return answer != null && answer.trim().equalsIgnoreCase("y");
+	}
+
+	/**
+	 * Asks for an optional date window of a report.
+	 *
+	 * @return from and to, inclusive, or null for all history
+	 */
+	static java.sql.Date[] askWindow() throws java.io.IOException {
+		System.out.print("\tFrom date (yyyy-mm-dd, blank for all history): ");
+		String from = in.readLine();
+		if (from == null || from.trim().isEmpty()) return null;
+		System.out.print("\tTo date (yyyy-mm-dd, blank for today): ");
+		String to = in.readLine();
+		java.sql.Date end = to == null || to.trim().isEmpty() ? new java.sql.Date(System.currentTimeMillis()) : java.sql.Date.valueOf(to.trim());
+		return new java.sql.Date[]{ java.sql.Date.valueOf(from.trim()), end };
+	}
+
+	static int pageSize() {
+		return Integer.getInteger("mechanicshop.report.page", 20);
+	}
+
+	public static void ExportReport(MechanicShop esql){//12
+		try{
+			System.out.println("Which report? (6 - 10, as numbered in the main menu)");
+			int report = readChoice();
+			String query;
+			Object[] params = new Object[0];
+			switch (report){
+				case 6: query = BILL_LESS_THAN_100; break;
+				case 7: query = MORE_THAN_20_CARS; break;
+				case 8: query = CARS_BEFORE_1995; break;
+				case 9:
+					query = Boolean.getBoolean("mechanicshop.topk.summary") ? K_CARS_MOST_SERVICES_SUMMARY : K_CARS_MOST_SERVICES;
+					System.out.print("\tHow many cars? ");
+					int k = Integer.parseInt(in.readLine());
+					if (k <= 0) throw new IllegalArgumentException("k must be greater than 0");
+					params = new Object[]{ k };
+					break;
+				case 10: query = TOTAL_BILL_DESC; break;
+				default:
+					System.out.println("No report " + report + ".");
+					return;
+			}
+
+			System.out.print("\tExport to which file? (.csv or .jsonl, add .gz to compress): ");
+			java.nio.file.Path file = Paths.get(in.readLine().trim());
+			long start = System.nanoTime();
+			int rowCount = new ReportExporter(esql).export(query, file, ReportExporter.formatOf(file), params);
+			System.out.printf("%d row(s) written to %s in %.2f s%n%n", rowCount, file, (System.nanoTime() - start) / 1e9);
+		}catch (Exception e){
+			System.err.println (e.getMessage());
+		}
+	}//end ExportReport
+	
 	public static void ListCustomersWithBillLessThan100(MechanicShop esql){//6
 		try{
 			//String query = "SELECT date,comment,bill FROM Closed_Request WHERE bill < 100";		
-			String query = "SELECT customer_id, CR.rid, bill FROM Closed_Request AS CR, Service_Request AS SR WHERE SR.rid = CR.rid and CR.bill < 100";
-
-		int rowCount = esql.executeQueryAndPrintResult(query);
+		java.sql.Date[] window = askWindow();
+		int rowCount = window != null
+			? esql.executeReportAndPrintResult(BILL_LESS_THAN_100_WINDOW, window[0], window[1], window[1])
+			: esql._analytics != null
+			? printResult(new String[]{"customer_id", "fname", "lname", "min_bill"}, esql._analytics.billLessThan100())
+			: askPaging()
+			? new ReportPager(esql, BILL_LESS_THAN_100 + " LIMIT ?", BILL_LESS_THAN_100_AFTER, new int[]{3, 0}, 4, pageSize()).browse()
+			: esql.executeReportAndPrintResult(BILL_LESS_THAN_100);
                 System.out.println ("total row(s): " + rowCount);
                 System.out.printf("%n");
 				
@@ -643,9 +1729,9 @@ public class MechanicShop{
 	
 	public static void ListCustomersWithMoreThan20Cars(MechanicShop esql){//7
 		try{
-			String query = "SELECT DISTINCT Customer.fname, Customer.lname FROM Customer WHERE Customer.id IN (SELECT Owns.customer_id FROM Owns GROUP by Owns.customer_id HAVING COUNT(car_vin) > 20);";
-
-	        int rowCount = esql.executeQueryAndPrintResult(query);
+	        int rowCount = esql._analytics != null
+	        	? printResult(new String[]{"fname", "lname"}, esql._analytics.moreThan20Cars())
+	        	: esql.executeReportAndPrintResult(MORE_THAN_20_CARS);
 	        System.out.println ("total row(s): " + rowCount);
 	        System.out.printf("%n");
 			
@@ -656,9 +1742,14 @@ public class MechanicShop{
 	
 	public static void ListCarsBefore1995With50000Milles(MechanicShop esql){//8
 		try{
-			String query = "SELECT DISTINCT make, model, year, odometer FROM Car AS C, Service_Request AS S WHERE year < 1995 and S.car_vin = C.vin and S.odometer < 50000"; 
-			
-			int rowCount = esql.executeQueryAndPrintResult(query);
+			java.sql.Date[] window = askWindow();
+			int rowCount = window != null
+				? esql.executeReportAndPrintResult(CARS_BEFORE_1995_WINDOW, window[0], window[1])
+				: esql._analytics != null
+				? printResult(new String[]{"make", "model", "year", "odometer"}, esql._analytics.carsBefore1995())
+				: askPaging()
+				? new ReportPager(esql, CARS_BEFORE_1995 + " LIMIT ?", CARS_BEFORE_1995_AFTER, new int[]{0, 1, 2, 0, 1, 2, 3}, 4, pageSize()).browse()
+				: esql.executeReportAndPrintResult(CARS_BEFORE_1995);
 			System.out.println ("total row(s): " + rowCount);
 			System.out.printf("%n");
 
@@ -671,8 +1762,10 @@ public class MechanicShop{
 	public static void ListKCarsWithTheMostServices(MechanicShop esql){//9
 		//
 		try{
-			String query = "SELECT * FROM ( SELECT DISTINCT c.make, c.model, COUNT(s.car_vin) AS count_vin FROM service_request s JOIN car c on s.car_vin = c.vin GROUP BY c.make, c.model) AS count_sr_vin ORDER BY count_vin desc;"; // needs user input to select
-			// need to get selection (list list?)
+			String query = K_CARS_MOST_SERVICES;
+			if (Boolean.getBoolean("mechanicshop.topk.summary")) {
+				query = K_CARS_MOST_SERVICES_SUMMARY;
+			}
 
 			System.out.print("\tHow many cars do you want to see with the highest amount of service requests? ");
 			int k = Integer.parseInt(in.readLine());
@@ -682,15 +1775,21 @@ public class MechanicShop{
 				k = Integer.parseInt(in.readLine());
 			}
 
-			List<List<String>> orderedResult = esql.executeQueryAndReturnResult(query);
+			java.sql.Date[] window = askWindow();
 
-			for(int i = 0; i < k; i++){
-				int n = 1 + i ;
-				System.out.println( n + ". Make and model: " + orderedResult.get(i).get(0) + " " + orderedResult.get(i).get(1)); // make(0), model(1)
-				System.out.println("   Amount of requests: " + orderedResult.get(i).get(2)); // count
+			// k rows of make, model and an integer count, decoded by column
+			TypedResult top = window != null ? esql.report(K_CARS_MOST_SERVICES_WINDOW, window[0], window[1], k)
+				: esql._analytics != null ? esql._analytics.kCarsMostServices(k) : esql.report(query, k);
+			for (int n = 0; n < top.rowCount(); ++n) {
+				System.out.println( (n + 1) + ". Make and model: " + top.getString(n, 0) + " " + top.getString(n, 1)); // make(0), model(1)
+				System.out.println("   Amount of requests: " + top.getLong(n, 2)); // count
 				System.out.println("");
 			}
 
+			if (top.rowCount() < k) {
+				System.out.println("Only " + top.rowCount() + " make(s) and model(s) have service requests.\n");
+			}
+
 		}catch (Exception e){
 			System.err.println (e.getMessage());
 		}
@@ -698,9 +1797,14 @@ public class MechanicShop{
 	
 	public static void ListCustomersInDescendingOrderOfTheirTotalBill(MechanicShop esql){//10
 		try{		
-			String query = "SELECT C.fname , C.lname, Total FROM Customer AS C, (SELECT sr.customer_id, SUM(CR.bill) AS Total FROM Closed_Request AS CR, Service_Request AS SR WHERE CR.rid = SR.rid GROUP BY SR.customer_id) AS A WHERE C.id=A.customer_id ORDER BY A.Total DESC";
-
-			int rowCount = esql.executeQueryAndPrintResult(query);			
+			java.sql.Date[] window = askWindow();
+			int rowCount = window != null
+				? esql.executeReportAndPrintResult(TOTAL_BILL_DESC_WINDOW, window[0], window[1], window[1])
+				: esql._analytics != null
+				? printResult(new String[]{"fname", "lname", "total"}, esql._analytics.totalBillDesc())
+				: askPaging()
+				? new ReportPager(esql, TOTAL_BILL_DESC_PAGE, TOTAL_BILL_DESC_AFTER, new int[]{2, 3}, 3, pageSize()).browse()
+				: esql.executeReportAndPrintResult(TOTAL_BILL_DESC);			
 			System.out.println("total row(s): " + rowCount);
 			System.out.printf("%n");
 		} catch(Exception e) {
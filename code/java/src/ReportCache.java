@@ -0,0 +1,337 @@
+/*
+ * Report cache for the MechanicShop client
+ * ========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * A bounded, least recently used cache of report results (reports 6 to
+ * 10), keyed by the report query and its parameters, such as k of
+ * ListKCarsWithTheMostServices or the date window.
+ *
+ * Every table a report reads has a version number. An entry remembers the
+ * versions of its tables as they were before its query ran, and it is only
+ * served while none of them has moved. The client bumps a table's version
+ * after its own writes. The notify_table_changed triggers in triggers.sql
+ * send the writes of other desks, the bulk loader and the batch mode as
+ * NOTIFY table_changed, and a listener thread bumps the versions from
+ * them. Entries also expire after a time to live, which bounds staleness
+ * while the listener is reconnecting.
+ *
+ * Only small results are kept: a result of more than a set number of rows
+ * is streamed to its viewer from the cursor and never cached, and the rows
+ * of all entries together are bounded, evicting the least recently used.
+ *
+ * Loads are single-flight: viewers asking for a report that is being
+ * loaded wait for that query instead of issuing their own.
+ *
+ */
+
+public class ReportCache{
+	/*
+	 * The tables a report may read. The summaries kept by the triggers in
+	 * triggers.sql change with the tables listed after them.
+	 */
+	static final String[][] TABLES = {
+		{ "customer" }, { "car" }, { "owns" }, { "service_request" }, { "closed_request" },
+		{ "customer_bill_summary", "closed_request", "service_request" },
+		{ "car_service_count", "service_request", "car" }
+	};
+	static final String CHANNEL = "table_changed";
+	private static final Pattern TARGET = Pattern.compile("(?i)\\b(?:INSERT\\s+INTO|UPDATE|DELETE\\s+FROM|TRUNCATE)\\s+(\\w+)");
+
+	/**
+	 * Runs a report query, showing its rows to the viewer as they arrive.
+	 */
+	public interface Loader{
+		/**
+		 * @param limit the most rows worth keeping
+		 * @return the rows, or null when there were more than limit
+		 */
+		TypedResult load(int limit) throws SQLException;
+	}
+
+	private final ConnectionPool _pool;
+	private final int _maxRows;
+	private final int _entryRows;
+	private final long _ttlNanos;
+	private final Map<String, AtomicLong> _versions = new ConcurrentHashMap<String, AtomicLong>();
+	private final Map<String, CompletableFuture<TypedResult>> _loading = new ConcurrentHashMap<String, CompletableFuture<TypedResult>>();
+	private final AtomicLong _hits = new AtomicLong();
+	private final AtomicLong _misses = new AtomicLong();
+	private final AtomicLong _shared = new AtomicLong();
+	private final AtomicLong _uncached = new AtomicLong();
+	private final AtomicLong _notifications = new AtomicLong();
+
+	// least recently used first; _rows is the sum of their row counts
+	private final LinkedHashMap<String, Cached> _entries = new LinkedHashMap<String, Cached>(64, 0.75f, true);
+	private int _rows = 0;
+	private volatile Thread _listener = null;
+	private volatile boolean _closed = false;
+
+	private static class Cached{
+		final TypedResult rows;
+		final String[] tables;
+		final long[] versions;
+		final long expires;
+
+		Cached(TypedResult rows, String[] tables, long[] versions, long expires){
+			this.rows = rows;
+			this.tables = tables;
+			this.versions = versions;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * @param pool the pool the listener opens its own connection from
+	 * @param maxRows the rows kept over all entries before the least recently used are evicted
+	 * @param entryRows the most rows of one result that are kept
+	 * @param ttlMillis how long a result may be served, 0 to keep it until a write or eviction
+	 */
+	public ReportCache(ConnectionPool pool, int maxRows, int entryRows, long ttlMillis){
+		this._pool = pool;
+		this._maxRows = Math.max(1, maxRows);
+		this._entryRows = Math.max(0, Math.min(entryRows, this._maxRows));
+		this._ttlNanos = ttlMillis * 1000000L;
+		for (String[] table : TABLES) _versions.put(table[0], new AtomicLong());
+	}
+
+	/**
+	 * Returns the cached result of a report query, loading it when it is
+	 * missing, expired or one of its tables changed since it was loaded.
+	 *
+	 * @param query the report query, which names the tables it reads
+	 * @param loader runs the query
+	 * @param params the values bound to the placeholders, part of the key
+	 * @return the result, shared between callers and not to be changed, or
+	 *         null when the loader streamed more rows than are kept
+	 * @throws java.sql.SQLException when the query failed
+	 */
+	public TypedResult get(String query, Loader loader, Object... params) throws SQLException {
+		String key = params.length == 0 ? query : query + " " + Arrays.toString(params);
+		TypedResult cached = cached(key);
+		if (cached != null){
+			_hits.incrementAndGet();
+			return cached;
+		}
+		if (_listener == null) listen();
+
+		CompletableFuture<TypedResult> load = new CompletableFuture<TypedResult>();
+		CompletableFuture<TypedResult> running = _loading.putIfAbsent(key, load);
+		if (running != null){
+			_shared.incrementAndGet();
+			TypedResult rows;
+			try{
+				rows = running.get();
+			}catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new SQLException("interrupted while waiting for a report");
+			}catch (ExecutionException e){
+				if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+				throw new SQLException(e.getCause());
+			}
+			if (rows != null) return rows;
+			// too large to share; every viewer streams its own copy
+			_uncached.incrementAndGet();
+			return loader.load(0);
+		}
+
+		try{
+			// a load that finished between the lookup and putIfAbsent already left its result
+			cached = cached(key);
+			if (cached != null){
+				_hits.incrementAndGet();
+				load.complete(cached);
+				return cached;
+			}
+			_misses.incrementAndGet();
+			// versions read before the query, so a write that races with it invalidates the result
+			String[] tables = tables(query);
+			long[] versions = versions(tables);
+			TypedResult rows = loader.load(_entryRows);
+			if (rows != null && rows.rowCount() <= _entryRows) put(key, new Cached(rows, tables, versions, System.nanoTime() + _ttlNanos));
+			else{
+				_uncached.incrementAndGet();
+				rows = null;
+			}
+			load.complete(rows);
+			return rows;
+		}catch (SQLException | RuntimeException e){
+			load.completeExceptionally(e);
+			throw e;
+		}finally{
+			_loading.remove(key, load);
+		}
+	}//end get
+
+	// the entry of a key while it is current, dropping it otherwise
+	private synchronized TypedResult cached(String key){
+		Cached entry = _entries.get(key);
+		if (entry == null) return null;
+		if (_ttlNanos > 0 && System.nanoTime() - entry.expires > 0 || !current(entry)){
+			_rows -= _entries.remove(key).rows.rowCount();
+			return null;
+		}
+		return entry.rows;
+	}
+
+	private synchronized void put(String key, Cached entry){
+		Cached old = _entries.put(key, entry);
+		if (old != null) _rows -= old.rows.rowCount();
+		_rows += entry.rows.rowCount();
+		Iterator<Cached> eldest = _entries.values().iterator();
+		while (_rows > _maxRows && eldest.hasNext()){
+			_rows -= eldest.next().rows.rowCount();
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Marks the table a write statement changes, so the results read from
+	 * it are loaded again. Statements that change no report table are
+	 * ignored.
+	 *
+	 * @param sql an INSERT, UPDATE, DELETE or TRUNCATE statement, or a query containing one
+	 */
+	public void changed(String sql){
+		Matcher m = TARGET.matcher(sql);
+		while (m.find()) bump(m.group(1));
+	}
+
+	/**
+	 * @return the tables of TABLES a query reads, with the tables their summaries follow
+	 */
+	static String[] tables(String query){
+		String lower = query.toLowerCase(Locale.ROOT);
+		List<String> tables = new ArrayList<String>();
+		for (String[] table : TABLES){
+			if (!Pattern.compile("\\b" + table[0] + "\\b").matcher(lower).find()) continue;
+			for (String t : table) if (!tables.contains(t)) tables.add(t);
+		}
+		return tables.toArray(new String[0]);
+	}
+
+	private void bump(String table){
+		AtomicLong version = _versions.get(table.toLowerCase(Locale.ROOT));
+		if (version != null) version.incrementAndGet();
+	}
+
+	// every result is suspect while notifications may have been missed
+	private void bumpAll(){
+		for (AtomicLong version : _versions.values()) version.incrementAndGet();
+	}
+
+	private long[] versions(String[] tables){
+		long[] versions = new long[tables.length];
+		for (int i = 0; i < tables.length; ++i) versions[i] = _versions.get(tables[i]).get();
+		return versions;
+	}
+
+	private boolean current(Cached entry){
+		for (int i = 0; i < entry.tables.length; ++i)
+			if (_versions.get(entry.tables[i]).get() != entry.versions[i]) return false;
+		return true;
+	}
+
+	/*
+	 * Starts the listener on first use, so clients that never run a report
+	 * do not hold the extra connection.
+	 */
+	private synchronized void listen(){
+		if (_listener != null || _closed) return;
+		_listener = new Thread(new Runnable(){
+			public void run(){
+				receive();
+			}
+		}, "report-cache-listen");
+		_listener.setDaemon(true);
+		_listener.start();
+	}
+
+	// keeps a LISTEN session open, reconnecting after a failure
+	private void receive(){
+		while (!_closed){
+			Connection conn = null;
+			try{
+				conn = _pool.openDedicated();
+				Statement stmt = conn.createStatement();
+				stmt.execute("LISTEN " + CHANNEL);
+				stmt.close();
+				bumpAll();
+				PGConnection pg = conn.unwrap(PGConnection.class);
+				while (!_closed){
+					PGNotification[] notes = pg.getNotifications(1000);
+					if (notes == null) continue;
+					for (PGNotification note : notes){
+						bump(note.getParameter());
+						_notifications.incrementAndGet();
+					}
+				}
+			}catch (SQLException e){
+				bumpAll();
+				try{
+					Thread.sleep(1000);
+				}catch (InterruptedException ie){
+					return;
+				}
+			}finally{
+				if (conn != null){
+					try{
+						conn.close();
+					}catch (SQLException e){
+						// ignored.
+					}
+				}
+			}
+		}
+	}//end receive
+
+	/**
+	 * Stops the listener.
+	 */
+	public void close(){
+		_closed = true;
+		Thread listener;
+		synchronized (this){
+			listener = _listener;
+		}
+		if (listener != null) listener.interrupt();
+	}
+
+	public synchronized int size(){
+		return _entries.size();
+	}
+
+	public synchronized int rows(){
+		return _rows;
+	}
+
+	public String toString(){
+		return "report cache: " + size() + " entries, " + rows() + " rows, " + _hits.get() + " hits, " + _misses.get() + " misses, "
+			+ _shared.get() + " shared loads, " + _uncached.get() + " uncached, " + _notifications.get() + " notifications";
+	}
+}
@@ -0,0 +1,233 @@
+/*
+ * Report export for the MechanicShop client
+ * =========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams the rows of a report query into a CSV or JSON Lines file. Rows
+ * come from the server-side cursor of executeQueryAndStreamResult and are
+ * encoded into a fixed-size buffer that is written to a FileChannel (through
+ * gzip when the file name ends in .gz), so the heap used does not depend on
+ * the number of rows. The file is written under a temporary name and
+ * renamed once complete, so a failed export never leaves a truncated file
+ * behind.
+ *
+ */
+
+public class ReportExporter{
+	public enum Format{ CSV, JSONL }
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final MechanicShop _esql;
+
+	public ReportExporter(MechanicShop esql){
+		this._esql = esql;
+	}
+
+	/**
+	 * @param file the file name
+	 * @return JSONL for .jsonl or .json files, optionally followed by .gz, CSV otherwise
+	 */
+	public static Format formatOf(Path file){
+		String name = file.getFileName().toString().toLowerCase();
+		if (name.endsWith(".gz")) name = name.substring(0, name.length() - 3);
+		return name.endsWith(".jsonl") || name.endsWith(".json") ? Format.JSONL : Format.CSV;
+	}
+
+	/**
+	 * Exports the result of a query.
+	 *
+	 * @param query the report query with ? placeholders
+	 * @param file the file to create or replace
+	 * @param format CSV with a header line, or one JSON object per line
+	 * @param params the values bound to the placeholders
+	 * @return the number of rows exported
+	 * @throws java.sql.SQLException when failed to execute the query
+	 * @throws java.io.IOException when the file cannot be written
+	 */
+	public int export(String query, Path file, final Format format, Object... params) throws SQLException, IOException {
+		Path part = file.resolveSibling(file.getFileName() + ".part");
+		final FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		boolean done = false;
+		try{
+			final Sink sink = file.getFileName().toString().endsWith(".gz")
+				? new Sink(channel, new GZIPOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE))
+				: new Sink(channel, null);
+			int rowCount;
+			try{
+				rowCount = _esql.executeQueryAndStreamResult(query, new MechanicShop.RowHandler(){
+					String[] names;
+					boolean[] numeric;
+
+					public void row(ResultSet rs) throws SQLException {
+						if (names == null){
+							ResultSetMetaData rsmd = rs.getMetaData();
+							names = new String[rsmd.getColumnCount()];
+							numeric = new boolean[names.length];
+							for (int i = 0; i < names.length; ++i){
+								names[i] = rsmd.getColumnLabel(i + 1);
+								numeric[i] = isNumeric(rsmd.getColumnType(i + 1));
+							}
+							if (format == Format.CSV) csv(sink, names);
+						}
+						String[] values = new String[names.length];
+						for (int i = 0; i < values.length; ++i) values[i] = rs.getString(i + 1);
+						if (format == Format.CSV) csv(sink, values);
+						else jsonl(sink, names, numeric, values);
+					}
+				}, params);
+				// the header of an empty report, from the statement alone
+				if (rowCount == 0 && format == Format.CSV) csv(sink, columnNames(query, params));
+			}catch (UncheckedIOException e){
+				throw e.getCause();
+			}
+			sink.close();
+			Files.move(part, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			done = true;
+			return rowCount;
+		}finally{
+			if (!done){
+				channel.close();
+				Files.deleteIfExists(part);
+			}
+		}
+	}//end export
+
+	private String[] columnNames(String query, Object[] params) throws SQLException {
+		Connection conn = _esql.acquireConnection();
+		try{
+			PreparedStatement stmt = _esql.prepare(conn, query);
+			MechanicShop.bind(stmt, params);
+			ResultSetMetaData rsmd = stmt.getMetaData();
+			String[] names = new String[rsmd == null ? 0 : rsmd.getColumnCount()];
+			for (int i = 0; i < names.length; ++i) names[i] = rsmd.getColumnLabel(i + 1);
+			return names;
+		}finally{
+			_esql.releaseConnection(conn);
+		}
+	}
+
+	private static void csv(Sink sink, String[] values){
+		for (int i = 0; i < values.length; ++i){
+			if (i > 0) sink.append(',');
+			String value = values[i];
+			if (value == null) continue;
+			boolean quote = false;
+			for (int c = 0; c < value.length() && !quote; ++c){
+				char ch = value.charAt(c);
+				quote = ch == ',' || ch == '"' || ch == '\n' || ch == '\r';
+			}
+			if (!quote){
+				sink.append(value);
+				continue;
+			}
+			sink.append('"');
+			for (int c = 0; c < value.length(); ++c){
+				char ch = value.charAt(c);
+				if (ch == '"') sink.append('"');
+				sink.append(ch);
+			}
+			sink.append('"');
+		}
+		sink.append("\r\n");
+	}
+
+	private static void jsonl(Sink sink, String[] names, boolean[] numeric, String[] values){
+		sink.append('{');
+		for (int i = 0; i < names.length; ++i){
+			if (i > 0) sink.append(',');
+			sink.append(ShopServer.quote(names[i])).append(':');
+			sink.append(numeric[i] && values[i] != null ? values[i] : ShopServer.quote(values[i]));
+		}
+		sink.append("}\n");
+	}
+
+	private static boolean isNumeric(int type){
+		switch (type){
+			case Types.TINYINT: case Types.SMALLINT: case Types.INTEGER: case Types.BIGINT:
+			case Types.REAL: case Types.FLOAT: case Types.DOUBLE: case Types.NUMERIC: case Types.DECIMAL:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Collects characters and writes them out as UTF-8 whenever the buffer
+	 * fills, either straight to the channel or to the gzip stream that
+	 * writes to it.
+	 */
+	private static class Sink{
+		private final StringBuilder _chars = new StringBuilder(BUFFER_SIZE);
+		private final FileChannel _channel;
+		private final GZIPOutputStream _gzip;
+
+		Sink(FileChannel channel, GZIPOutputStream gzip){
+			this._channel = channel;
+			this._gzip = gzip;
+		}
+
+		Sink append(char c){
+			_chars.append(c);
+			return this;
+		}
+
+		Sink append(String s){
+			_chars.append(s);
+			if (_chars.length() >= BUFFER_SIZE) flush();
+			return this;
+		}
+
+		void flush(){
+			if (_chars.length() == 0) return;
+			byte[] bytes = _chars.toString().getBytes(StandardCharsets.UTF_8);
+			_chars.setLength(0);
+			try{
+				if (_gzip != null){
+					_gzip.write(bytes);
+					return;
+				}
+				ByteBuffer buffer = ByteBuffer.wrap(bytes);
+				while (buffer.hasRemaining()) _channel.write(buffer);
+			}catch (IOException e){
+				// RowHandler may only throw SQLException; export() unwraps this
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		void close() throws IOException {
+			try{
+				flush();
+			}catch (UncheckedIOException e){
+				throw e.getCause();
+			}
+			// the gzip trailer goes to the channel before it is synced
+			if (_gzip != null) _gzip.finish();
+			_channel.force(false);
+			_channel.close();
+		}
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * Keyset pagination of reports for the MechanicShop client
+ * ========================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Browses a report a page at a time with keyset (seek) pagination. Every
+ * page is fetched with a LIMIT query that starts right after the ordering
+ * key of the last row shown, so each page is one index range scan no
+ * matter how deep the clerk has paged, and the first page appears without
+ * the rest of the result being computed. The keys each page started at are
+ * kept on a stack to go back.
+ *
+ * A report is described by two SQL templates with the same ORDER BY: the
+ * first page, taking only the page size, and the following pages, taking
+ * the key values of the previous page's last row and then the page size.
+ * The key columns may be selected after the columns that are shown.
+ *
+ */
+
+public class ReportPager{
+	private final MechanicShop _esql;
+	private final String _first;
+	private final String _after;
+	private final int[] _keyColumns;
+	private final int _shownColumns;
+	private final int _pageSize;
+
+	/**
+	 * @param esql the connected client
+	 * @param first the first page query, its only placeholder is the page size
+	 * @param after the next page query, with placeholders for the key values then the page size
+	 * @param keyColumns 0-based result columns bound to the key placeholders of after, in order
+	 * @param shownColumns the number of leading result columns to print
+	 * @param pageSize the number of rows per page
+	 */
+	public ReportPager(MechanicShop esql, String first, String after, int[] keyColumns, int shownColumns, int pageSize){
+		this._esql = esql;
+		this._first = first;
+		this._after = after;
+		this._keyColumns = keyColumns;
+		this._shownColumns = shownColumns;
+		this._pageSize = Math.max(1, pageSize);
+	}
+
+	/**
+	 * A fetched page: the rows to print and the key to continue after.
+	 */
+	static class Page{
+		final List<String> columns = new ArrayList<String>();
+		final List<List<String>> rows = new ArrayList<List<String>>();
+		Object[] lastKey;
+		boolean more;
+	}
+
+	/**
+	 * Fetches the page that starts after the given key.
+	 *
+	 * @param after the key of the last row of the previous page, null for the first page
+	 * @return the page, with more set when at least one row follows it
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	Page fetch(Object[] after) throws SQLException {
+		final Page page = new Page();
+		// one extra row tells whether a next page exists
+		Object[] params = new Object[(after == null ? 0 : after.length) + 1];
+		if (after != null) System.arraycopy(after, 0, params, 0, after.length);
+		params[params.length - 1] = _pageSize + 1;
+
+		_esql.executeQueryAndStreamResult(after == null ? _first : _after, new MechanicShop.RowHandler(){
+			public void row(ResultSet rs) throws SQLException {
+				if (page.rows.size() == _pageSize){
+					page.more = true;
+					return;
+				}
+				if (page.columns.isEmpty()){
+					ResultSetMetaData rsmd = rs.getMetaData();
+					for (int i = 1; i <= _shownColumns; ++i) page.columns.add(rsmd.getColumnName(i));
+				}
+				List<String> record = new ArrayList<String>(_shownColumns);
+				for (int i = 1; i <= _shownColumns; ++i) record.add(rs.getString(i));
+				page.rows.add(record);
+
+				page.lastKey = new Object[_keyColumns.length];
+				for (int k = 0; k < _keyColumns.length; ++k) page.lastKey[k] = rs.getObject(_keyColumns[k] + 1);
+			}
+		}, params);
+		return page;
+	}//end fetch
+
+	/**
+	 * Shows the first page, then reads n (next), p (previous) or q (quit)
+	 * until the clerk quits.
+	 *
+	 * @return the number of rows shown
+	 */
+	public int browse() throws Exception {
+		Deque<Object[]> previous = new ArrayDeque<Object[]>();
+		Object[] start = null;
+		int pageNo = 1, shown = 0;
+		while (true){
+			Page page = fetch(start);
+			if (page.rows.isEmpty()){
+				System.out.println(pageNo == 1 ? "No rows." : "No more rows.");
+				return shown;
+			}
+			System.out.println("Page " + pageNo + ":");
+			shown += MechanicShop.printResult(page.columns.toArray(new String[0]), page.rows);
+
+			while (true){
+				System.out.print("\t" + (page.more ? "n = next page, " : "") + (pageNo > 1 ? "p = previous page, " : "") + "q = quit: ");
+				String answer = MechanicShop.in.readLine();
+				if (answer == null) return shown;
+				answer = answer.trim();
+				if (answer.equalsIgnoreCase("n") && page.more){
+					// Deque does not take nulls, so the first page is an empty key
+					previous.push(start == null ? new Object[0] : start);
+					start = page.lastKey;
+					pageNo++;
+					break;
+				}
+				if (answer.equalsIgnoreCase("p") && pageNo > 1){
+					start = previous.pop();
+					if (start.length == 0) start = null;
+					pageNo--;
+					break;
+				}
+				if (answer.equalsIgnoreCase("q")) return shown;
+			}
+		}
+	}//end browse
+}
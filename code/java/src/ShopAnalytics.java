@@ -0,0 +1,641 @@
+/*
+ * In-memory analytics for the MechanicShop client
+ * ===============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Answers reports 6 to 10 from a columnar copy of Customer, Car, Owns,
+ * Service_Request and Closed_Request kept in the client, so reporting does
+ * not compete with the desks' inserts on the server. Every table is held
+ * as parallel primitive arrays: rows refer to each other by array position,
+ * names, makes/models and VINs are dictionary encoded and dates are stored
+ * as epoch days. The reports run as fork-join scans over those arrays that
+ * aggregate into shared atomic arrays.
+ *
+ * The copy is refreshed incrementally: only rows whose key is above the
+ * highest key already loaded (minus a lag window, for keys allocated by
+ * another client that committed later) are read again, and rows already
+ * held are skipped. Keys come from IdAllocator blocks and the WriteJournal
+ * replays writes long after their keys were reserved, so rows may commit
+ * far below that window. Each refresh therefore compares the rows held
+ * with the row count of every table: a table with rows missing is read
+ * again from its first key, and fewer rows than held, such as after the
+ * Archiver dropped a month, reloads the whole copy. Deletes hidden by as
+ * many inserts are caught by a full reload every so often.
+ *
+ * Enabled with -Dmechanicshop.analytics=true.
+ *
+ */
+
+public class ShopAnalytics{
+	static final String CUSTOMERS_AFTER =
+		"SELECT id, fname, lname FROM Customer WHERE id > ? ORDER BY id";
+	static final String OWNS_AFTER =
+		"SELECT O.ownership_id, O.customer_id, C.vin, C.make, C.model, C.year FROM Owns O, Car C WHERE C.vin = O.car_vin and O.ownership_id > ? ORDER BY O.ownership_id";
+	static final String REQUESTS_AFTER =
+		"SELECT rid, car_vin, date, odometer FROM Service_Request WHERE rid > ? ORDER BY rid";
+	static final String CARS_BY_VIN =
+		"SELECT vin, make, model, year FROM Car WHERE vin = ANY(?)";
+	static final String COUNTS =
+		"SELECT (SELECT COUNT(*) FROM Customer), (SELECT COUNT(*) FROM Owns), (SELECT COUNT(*) FROM Service_Request), (SELECT COUNT(*) FROM Closed_Request)";
+	static final String CLOSED_AFTER =
+		"SELECT C.wid, C.rid, C.mid, C.date, C.bill, S.customer_id FROM Closed_Request C, Service_Request S WHERE S.rid = C.rid and C.wid > ? ORDER BY C.wid";
+
+	private final MechanicShop _esql;
+	private final int _lag;
+	private final long _refreshNanos;
+	private final long _reloadNanos;
+	private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+	private volatile long _refreshed = 0;
+
+	// dictionaries
+	private final Dictionary _names = new Dictionary();
+	private final Dictionary _makeModels = new Dictionary(); // "make\0model"
+	private final Dictionary _vins = new Dictionary();       // code = car row
+
+	// Customer
+	private final IntIndex _customerRow = new IntIndex();
+	private final Ints _customerId = new Ints(), _fname = new Ints(), _lname = new Ints();
+	// Car, indexed by vin code
+	private final Ints _carMakeModel = new Ints(), _carYear = new Ints();
+	// Owns
+	private final BitSet _ownsSeen = new BitSet();
+	private final Ints _ownsCustomer = new Ints();
+	// Service_Request
+	private final BitSet _ridSeen = new BitSet();
+	private final Ints _requestCar = new Ints(), _requestDay = new Ints(), _requestOdometer = new Ints();
+	// Closed_Request, with the customer of the request
+	private final BitSet _widSeen = new BitSet();
+	private final Ints _closedCustomer = new Ints(), _closedMechanic = new Ints(), _closedDay = new Ints(), _closedBill = new Ints();
+
+	private int _maxCustomer = 0, _maxOwns = 0, _maxRid = 0, _maxWid = 0;
+	private long _reloaded = 0;
+	private int _reloads = 0, _rereads = 0;
+
+	/**
+	 * @param esql the connected client
+	 * @param lag how far below the highest loaded key to look again for late commits
+	 * @param refreshMillis how old the copy may get before a report refreshes it
+	 * @param reloadMillis how old the copy may get before it is loaded again from scratch
+	 */
+	public ShopAnalytics(MechanicShop esql, int lag, long refreshMillis, long reloadMillis){
+		this._esql = esql;
+		this._lag = Math.max(0, lag);
+		this._refreshNanos = refreshMillis * 1000000L;
+		this._reloadNanos = reloadMillis * 1000000L;
+	}
+
+	/**
+	 * Loads the rows added since the last refresh, reading a table again
+	 * when rows committed late were missed and the whole copy when rows
+	 * were deleted.
+	 *
+	 * @throws java.sql.SQLException when failed to read a table
+	 */
+	public void refresh() throws SQLException {
+		_lock.writeLock().lock();
+		try{
+			if (_reloaded == 0 || System.nanoTime() - _reloaded > _reloadNanos) clear();
+			// read first: every row counted here is committed, so a refresh holding fewer missed some
+			long[] before = counts();
+			boolean all = _reloaded == 0, late = false;
+			loadCustomers(all);
+			if (!all && _customerId.size < before[0]){
+				loadCustomers(true);
+				late = true;
+			}
+			loadOwns(all);
+			if (!all && _ownsCustomer.size < before[1]){
+				loadOwns(true);
+				late = true;
+			}
+			loadRequests(all);
+			if (!all && _requestCar.size < before[2]){
+				loadRequests(true);
+				late = true;
+			}
+			loadClosed(all);
+			if (!all && _closedBill.size < before[3]){
+				loadClosed(true);
+				late = true;
+			}
+			if (late) _rereads++;
+
+			// read last: holding more than there are now means rows were deleted
+			long[] after = counts();
+			if (_customerId.size > after[0] || _ownsCustomer.size > after[1] || _requestCar.size > after[2] || _closedBill.size > after[3]){
+				clear();
+				loadCustomers(true);
+				loadOwns(true);
+				loadRequests(true);
+				loadClosed(true);
+			}
+			if (_reloaded == 0) _reloaded = System.nanoTime();
+			_refreshed = System.nanoTime();
+		}finally{
+			_lock.writeLock().unlock();
+		}
+	}
+
+	private long[] counts() throws SQLException {
+		List<String> row = _esql.executeQueryAndReturnResult(COUNTS).get(0);
+		long[] counts = new long[row.size()];
+		for (int i = 0; i < counts.length; ++i) counts[i] = Long.parseLong(row.get(i));
+		return counts;
+	}
+
+	// drops the copy, so the next loads start from the first keys
+	private void clear(){
+		_names.clear();
+		_makeModels.clear();
+		_vins.clear();
+		_customerRow.clear();
+		for (Ints ints : new Ints[]{ _customerId, _fname, _lname, _carMakeModel, _carYear, _ownsCustomer, _requestCar, _requestDay,
+				_requestOdometer, _closedCustomer, _closedMechanic, _closedDay, _closedBill })
+			ints.size = 0;
+		_ownsSeen.clear();
+		_ridSeen.clear();
+		_widSeen.clear();
+		_maxCustomer = _maxOwns = _maxRid = _maxWid = 0;
+		if (_reloaded != 0) _reloads++;
+		_reloaded = 0;
+	}
+
+	private void refreshIfStale() throws SQLException {
+		if (System.nanoTime() - _refreshed > _refreshNanos) refresh();
+	}
+
+	// all: from the first key instead of the lag window below the highest
+	private void loadCustomers(boolean all) throws SQLException {
+		_esql.executeQueryAndStreamResult(CUSTOMERS_AFTER, new MechanicShop.RowHandler(){
+			public void row(ResultSet rs) throws SQLException {
+				int id = rs.getInt(1);
+				_maxCustomer = Math.max(_maxCustomer, id);
+				if (_customerRow.get(id) >= 0) return;
+				_customerRow.put(id, _customerId.size);
+				_customerId.add(id);
+				_fname.add(_names.code(rs.getString(2)));
+				_lname.add(_names.code(rs.getString(3)));
+			}
+		}, all ? 0 : Math.max(0, _maxCustomer - _lag));
+	}
+
+	// all: from the first key instead of the lag window below the highest
+	private void loadOwns(boolean all) throws SQLException {
+		// rows of customers committed after loadCustomers ran: added once those are loaded
+		final List<int[]> pending = new ArrayList<int[]>();
+		_esql.executeQueryAndStreamResult(OWNS_AFTER, new MechanicShop.RowHandler(){
+			public void row(ResultSet rs) throws SQLException {
+				int id = rs.getInt(1);
+				_maxOwns = Math.max(_maxOwns, id);
+				car(rs.getString(3), rs.getString(4), rs.getString(5), rs.getInt(6));
+				if (_ownsSeen.get(id)) return;
+				int customer = _customerRow.get(rs.getInt(2));
+				if (customer < 0) pending.add(new int[]{ id, rs.getInt(2) });
+				else addOwns(id, customer);
+			}
+		}, all ? 0 : Math.max(0, _maxOwns - _lag));
+		if (pending.isEmpty()) return;
+		loadCustomers(false);
+		for (int[] p : pending){
+			int customer = _customerRow.get(p[1]);
+			if (customer >= 0) addOwns(p[0], customer);
+		}
+	}
+
+	private void addOwns(int id, int customer){
+		_ownsSeen.set(id);
+		_ownsCustomer.add(customer);
+	}
+
+	// all: from the first key instead of the lag window below the highest
+	private void loadRequests(boolean all) throws SQLException {
+		// requests for cars nobody owns yet: their cars are fetched afterwards in one query
+		final List<Object[]> pending = new ArrayList<Object[]>();
+		_esql.executeQueryAndStreamResult(REQUESTS_AFTER, new MechanicShop.RowHandler(){
+			public void row(ResultSet rs) throws SQLException {
+				int rid = rs.getInt(1);
+				_maxRid = Math.max(_maxRid, rid);
+				if (_ridSeen.get(rid)) return;
+				int car = _vins.find(rs.getString(2));
+				int day = (int) rs.getDate(3).toLocalDate().toEpochDay();
+				if (car < 0){
+					pending.add(new Object[]{ rid, rs.getString(2), day, rs.getInt(4) });
+					return;
+				}
+				addRequest(rid, car, day, rs.getInt(4));
+			}
+		}, all ? 0 : Math.max(0, _maxRid - _lag));
+		if (pending.isEmpty()) return;
+
+		String[] vins = new String[pending.size()];
+		for (int i = 0; i < vins.length; ++i) vins[i] = (String) pending.get(i)[1];
+		java.sql.Connection conn = _esql.acquireConnection();
+		try{
+			java.sql.PreparedStatement stmt = _esql.prepare(conn, CARS_BY_VIN);
+			stmt.setArray(1, conn.createArrayOf("varchar", vins));
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()) car(rs.getString(1), rs.getString(2), rs.getString(3), rs.getInt(4));
+			rs.close();
+		}finally{
+			_esql.releaseConnection(conn);
+		}
+		for (Object[] p : pending){
+			int car = _vins.find((String) p[1]);
+			if (car >= 0) addRequest((Integer) p[0], car, (Integer) p[2], (Integer) p[3]);
+		}
+	}
+
+	private void addRequest(int rid, int car, int day, int odometer){
+		_ridSeen.set(rid);
+		_requestCar.add(car);
+		_requestDay.add(day);
+		_requestOdometer.add(odometer);
+	}
+
+	// all: from the first key instead of the lag window below the highest
+	private void loadClosed(boolean all) throws SQLException {
+		// rows of customers committed after loadCustomers ran: added once those are loaded
+		final List<int[]> pending = new ArrayList<int[]>();
+		_esql.executeQueryAndStreamResult(CLOSED_AFTER, new MechanicShop.RowHandler(){
+			public void row(ResultSet rs) throws SQLException {
+				int wid = rs.getInt(1);
+				_maxWid = Math.max(_maxWid, wid);
+				if (_widSeen.get(wid)) return;
+				int[] closed = { wid, rs.getInt(3), (int) rs.getDate(4).toLocalDate().toEpochDay(), rs.getInt(5), rs.getInt(6) };
+				int customer = _customerRow.get(closed[4]);
+				if (customer < 0) pending.add(closed);
+				else addClosed(closed, customer);
+			}
+		}, all ? 0 : Math.max(0, _maxWid - _lag));
+		if (pending.isEmpty()) return;
+		loadCustomers(false);
+		for (int[] closed : pending){
+			int customer = _customerRow.get(closed[4]);
+			if (customer >= 0) addClosed(closed, customer);
+		}
+	}
+
+	// closed = wid, mid, epoch day, bill, customer id
+	private void addClosed(int[] closed, int customer){
+		_widSeen.set(closed[0]);
+		_closedMechanic.add(closed[1]);
+		_closedDay.add(closed[2]);
+		_closedBill.add(closed[3]);
+		_closedCustomer.add(customer);
+	}
+
+	// the car row of a vin, added on first sight
+	private int car(String vin, String make, String model, int year){
+		int row = _vins.find(vin);
+		if (row >= 0) return row;
+		row = _vins.code(vin);
+		_carMakeModel.add(_makeModels.code(make + '\0' + model));
+		_carYear.add(year);
+		return row;
+	}
+
+	/*
+	 * Reports 6 to 10, with the columns and row order of their SQL versions.
+	 */
+
+	/**
+	 * @return customer_id, fname, lname, min_bill for minimum bills under 100
+	 */
+	public List<List<String>> billLessThan100() throws SQLException {
+		refreshIfStale();
+		_lock.readLock().lock();
+		try{
+			final AtomicIntegerArray min = minBills();
+			List<Integer> rows = new ArrayList<Integer>();
+			for (int c = 0; c < min.length(); ++c)
+				if (min.get(c) < 100) rows.add(c);
+			rows.sort(new Comparator<Integer>(){
+				public int compare(Integer a, Integer b){
+					int cmp = Integer.compare(min.get(a), min.get(b));
+					return cmp != 0 ? cmp : Integer.compare(_customerId.a[a], _customerId.a[b]);
+				}
+			});
+			List<List<String>> result = new ArrayList<List<String>>(rows.size());
+			for (int c : rows)
+				result.add(Arrays.asList(String.valueOf(_customerId.a[c]), _names.value(_fname.a[c]), _names.value(_lname.a[c]), String.valueOf(min.get(c))));
+			return result;
+		}finally{
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return fname, lname of the customers owning more than 20 cars
+	 */
+	public List<List<String>> moreThan20Cars() throws SQLException {
+		refreshIfStale();
+		_lock.readLock().lock();
+		try{
+			final AtomicIntegerArray cars = new AtomicIntegerArray(_customerId.size);
+			final int[] owner = _ownsCustomer.a;
+			parallel(_ownsCustomer.size, new Range(){
+				public void run(int from, int to){
+					for (int i = from; i < to; ++i) cars.incrementAndGet(owner[i]);
+				}
+			});
+			// DISTINCT fname, lname
+			Set<Long> names = new java.util.TreeSet<Long>();
+			for (int c = 0; c < cars.length(); ++c)
+				if (cars.get(c) > 20) names.add((long) _fname.a[c] << 32 | _lname.a[c]);
+			List<List<String>> result = new ArrayList<List<String>>(names.size());
+			for (long n : names) result.add(Arrays.asList(_names.value((int) (n >>> 32)), _names.value((int) n)));
+			return result;
+		}finally{
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return make, model, year, odometer of requests under 50000 miles for cars before 1995
+	 */
+	public List<List<String>> carsBefore1995() throws SQLException {
+		refreshIfStale();
+		_lock.readLock().lock();
+		try{
+			// make/model code, year and odometer packed into one key; the odometer is below 2^16
+			final Set<Long> keys = ConcurrentHashMap.newKeySet();
+			final int[] car = _requestCar.a, odometer = _requestOdometer.a, year = _carYear.a, makeModel = _carMakeModel.a;
+			parallel(_requestCar.size, new Range(){
+				public void run(int from, int to){
+					for (int i = from; i < to; ++i){
+						int c = car[i];
+						if (year[c] < 1995 && odometer[i] < 50000)
+							keys.add((long) makeModel[c] << 32 | (long) year[c] << 16 | odometer[i]);
+					}
+				}
+			});
+			List<List<String>> result = new ArrayList<List<String>>(keys.size());
+			for (long key : keys){
+				String[] mm = _makeModels.value((int) (key >>> 32)).split("\0", 2);
+				result.add(Arrays.asList(mm[0], mm[1], String.valueOf((key >>> 16) & 0xFFFF), String.valueOf(key & 0xFFFF)));
+			}
+			result.sort(new Comparator<List<String>>(){
+				public int compare(List<String> a, List<String> b){
+					int cmp = a.get(0).compareTo(b.get(0));
+					if (cmp == 0) cmp = a.get(1).compareTo(b.get(1));
+					if (cmp == 0) cmp = Integer.compare(Integer.parseInt(a.get(2)), Integer.parseInt(b.get(2)));
+					if (cmp == 0) cmp = Integer.compare(Integer.parseInt(a.get(3)), Integer.parseInt(b.get(3)));
+					return cmp;
+				}
+			});
+			return result;
+		}finally{
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return make, model, count_vin of the k make/models with the most requests
+	 */
+	public TypedResult kCarsMostServices(int k) throws SQLException {
+		refreshIfStale();
+		_lock.readLock().lock();
+		try{
+			final AtomicIntegerArray counts = new AtomicIntegerArray(_makeModels.size());
+			final int[] car = _requestCar.a, makeModel = _carMakeModel.a;
+			parallel(_requestCar.size, new Range(){
+				public void run(int from, int to){
+					for (int i = from; i < to; ++i) counts.incrementAndGet(makeModel[car[i]]);
+				}
+			});
+			List<Integer> groups = new ArrayList<Integer>();
+			for (int g = 0; g < counts.length(); ++g)
+				if (counts.get(g) > 0) groups.add(g);
+			groups.sort(new Comparator<Integer>(){
+				public int compare(Integer a, Integer b){
+					int cmp = Integer.compare(counts.get(b), counts.get(a));
+					return cmp != 0 ? cmp : _makeModels.value(a).compareTo(_makeModels.value(b));
+				}
+			});
+			TypedResult result = new TypedResult(new String[]{ "make", "model", "count_vin" }, new int[]{ Types.VARCHAR, Types.VARCHAR, Types.BIGINT });
+			for (int g : groups.subList(0, Math.min(k, groups.size()))){
+				String[] mm = _makeModels.value(g).split("\0", 2);
+				result.add(mm[0], mm[1], (long) counts.get(g));
+			}
+			return result;
+		}finally{
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return fname, lname, total of every billed customer, highest total first
+	 */
+	public List<List<String>> totalBillDesc() throws SQLException {
+		refreshIfStale();
+		_lock.readLock().lock();
+		try{
+			final AtomicLongArray total = new AtomicLongArray(_customerId.size);
+			final AtomicIntegerArray billed = new AtomicIntegerArray(_customerId.size);
+			final int[] customer = _closedCustomer.a, bill = _closedBill.a;
+			parallel(_closedCustomer.size, new Range(){
+				public void run(int from, int to){
+					for (int i = from; i < to; ++i){
+						total.addAndGet(customer[i], bill[i]);
+						billed.lazySet(customer[i], 1);
+					}
+				}
+			});
+			List<Integer> rows = new ArrayList<Integer>();
+			for (int c = 0; c < billed.length(); ++c)
+				if (billed.get(c) != 0) rows.add(c);
+			rows.sort(new Comparator<Integer>(){
+				public int compare(Integer a, Integer b){
+					int cmp = Long.compare(total.get(b), total.get(a));
+					return cmp != 0 ? cmp : Integer.compare(_customerId.a[b], _customerId.a[a]);
+				}
+			});
+			List<List<String>> result = new ArrayList<List<String>>(rows.size());
+			for (int c : rows)
+				result.add(Arrays.asList(_names.value(_fname.a[c]), _names.value(_lname.a[c]), String.valueOf(total.get(c))));
+			return result;
+		}finally{
+			_lock.readLock().unlock();
+		}
+	}
+
+	// the smallest bill of every customer, Integer.MAX_VALUE when none
+	private AtomicIntegerArray minBills(){
+		final AtomicIntegerArray min = new AtomicIntegerArray(_customerId.size);
+		for (int c = 0; c < min.length(); ++c) min.set(c, Integer.MAX_VALUE);
+		final int[] customer = _closedCustomer.a, bill = _closedBill.a;
+		parallel(_closedCustomer.size, new Range(){
+			public void run(int from, int to){
+				for (int i = from; i < to; ++i){
+					int c = customer[i], b = bill[i], m;
+					while (b < (m = min.get(c)) && !min.compareAndSet(c, m, b)){
+						// retry
+					}
+				}
+			}
+		});
+		return min;
+	}
+
+	public String toString(){
+		return "analytics: " + _customerId.size + " customers, " + _carYear.size + " cars, " + _ownsCustomer.size + " owns, " +
+			_requestCar.size + " requests, " + _closedBill.size + " closed, " + _rereads + " late reads, " + _reloads + " reloads";
+	}
+
+	/*
+	 * Fork-join scans over [0, n), split until a range is small enough to
+	 * run on one worker.
+	 */
+
+	interface Range{
+		void run(int from, int to);
+	}
+
+	static void parallel(int n, Range range){
+		int leaf = Math.max(1 << 14, n / (ForkJoinPool.getCommonPoolParallelism() * 4 + 1));
+		ForkJoinPool.commonPool().invoke(new Split(0, n, leaf, range));
+	}
+
+	private static class Split extends RecursiveAction{
+		private static final long serialVersionUID = 1L;
+		final int from, to, leaf;
+		final Range range;
+
+		Split(int from, int to, int leaf, Range range){
+			this.from = from;
+			this.to = to;
+			this.leaf = leaf;
+			this.range = range;
+		}
+
+		protected void compute(){
+			if (to - from <= leaf){
+				range.run(from, to);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new Split(from, mid, leaf, range), new Split(mid, to, leaf, range));
+		}
+	}
+
+	/**
+	 * A growable int column.
+	 */
+	static class Ints{
+		int[] a = new int[1024];
+		int size = 0;
+
+		void add(int value){
+			if (size == a.length) a = Arrays.copyOf(a, a.length * 2);
+			a[size++] = value;
+		}
+	}
+
+	/**
+	 * Assigns consecutive codes to distinct strings.
+	 */
+	static class Dictionary{
+		private final Map<String, Integer> _codes = new HashMap<String, Integer>();
+		private final List<String> _values = new ArrayList<String>();
+
+		int code(String value){
+			Integer code = _codes.get(value);
+			if (code == null){
+				code = _values.size();
+				_codes.put(value, code);
+				_values.add(value);
+			}
+			return code;
+		}
+
+		int find(String value){
+			Integer code = _codes.get(value);
+			return code == null ? -1 : code;
+		}
+
+		String value(int code){
+			return _values.get(code);
+		}
+
+		int size(){
+			return _values.size();
+		}
+
+		void clear(){
+			_codes.clear();
+			_values.clear();
+		}
+	}
+
+	/**
+	 * Open addressing map from int keys to non-negative int values.
+	 */
+	static class IntIndex{
+		private int[] _keys = new int[1024];
+		private int[] _values = new int[1024];
+		private boolean[] _used = new boolean[1024];
+		private int _size = 0;
+
+		int get(int key){
+			int mask = _keys.length - 1;
+			for (int i = mix(key) & mask; _used[i]; i = (i + 1) & mask)
+				if (_keys[i] == key) return _values[i];
+			return -1;
+		}
+
+		void put(int key, int value){
+			if ((_size + 1) * 2 > _keys.length) grow();
+			int mask = _keys.length - 1;
+			int i = mix(key) & mask;
+			while (_used[i] && _keys[i] != key) i = (i + 1) & mask;
+			if (!_used[i]) _size++;
+			_used[i] = true;
+			_keys[i] = key;
+			_values[i] = value;
+		}
+
+		private void grow(){
+			int[] keys = _keys, values = _values;
+			boolean[] used = _used;
+			_keys = new int[keys.length * 2];
+			_values = new int[keys.length * 2];
+			_used = new boolean[keys.length * 2];
+			_size = 0;
+			for (int i = 0; i < keys.length; ++i)
+				if (used[i]) put(keys[i], values[i]);
+		}
+
+		void clear(){
+			Arrays.fill(_used, false);
+			_size = 0;
+		}
+
+		private static int mix(int key){
+			int h = key * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+	}
+}
@@ -0,0 +1,296 @@
+/*
+ * Latency and query instrumentation for the MechanicShop client
+ * =============================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Per-operation and per-SQL-template statistics: latency histograms, round
+ * trips per menu action, rows fetched and bytes transferred. Every
+ * operation and template is exposed as an MBean under the MechanicShop JMX
+ * domain, and the whole table can be dumped to a log file periodically
+ * with -Dmechanicshop.metrics.log=<seconds>.
+ *
+ * Recording only touches LongAdders and atomic arrays, so the query path
+ * never takes a lock; an MBean is registered once, the first time a name
+ * is seen.
+ *
+ */
+
+public class ShopMetrics{
+	private static final ShopMetrics INSTANCE = new ShopMetrics();
+
+	private final Map<String, Stats> _operations = new ConcurrentHashMap<String, Stats>();
+	private final Map<String, Stats> _templates = new ConcurrentHashMap<String, Stats>();
+	// round trips and statement nanos of the menu action on this thread, null outside one
+	private final ThreadLocal<long[]> _action = new ThreadLocal<long[]>();
+
+	public static ShopMetrics get(){
+		return INSTANCE;
+	}
+
+	private ShopMetrics(){
+		long period = Long.getLong("mechanicshop.metrics.log", 0L);
+		if (period > 0){
+			final String file = System.getProperty("mechanicshop.metrics.file", "mechanicshop-metrics.log");
+			ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread t = new Thread(r, "metrics-log");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			timer.scheduleAtFixedRate(new Runnable(){
+				public void run(){ dump(file); }
+			}, period, period, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Marks the start of a menu action on this thread.
+	 */
+	public void beginOperation(){
+		_action.set(new long[2]);
+	}
+
+	/**
+	 * Records a finished menu action. Its latency is the time spent in the
+	 * statements it issued, so a clerk sitting at a prompt does not count.
+	 *
+	 * @param operation the operation name, or null to discard the action
+	 */
+	public void endOperation(String operation){
+		long[] action = _action.get();
+		_action.remove();
+		if (action == null || operation == null) return;
+		Stats stats = stats(_operations, "Operation", operation);
+		stats.latency.record(action[1]);
+		stats.calls.increment();
+		stats.roundTrips.add(action[0]);
+		stats.roundTripsPerCall.record(action[0]);
+	}
+
+	/**
+	 * Records one statement sent to the DBMS.
+	 *
+	 * @param sql the SQL template
+	 * @param nanos time from sending the statement until its result was read
+	 * @param rows rows fetched or affected
+	 * @param bytes characters of result values read, 0 when unknown
+	 */
+	public void query(String sql, long nanos, long rows, long bytes){
+		Stats stats = stats(_templates, "Query", sql);
+		stats.latency.record(nanos);
+		stats.calls.increment();
+		stats.rows.add(rows);
+		stats.bytes.add(bytes);
+		stats.roundTrips.increment();
+
+		long[] action = _action.get();
+		if (action != null){
+			action[0]++;
+			action[1] += nanos;
+		}
+	}
+
+	/**
+	 * Adds result bytes that were only known after query() was recorded.
+	 */
+	public void bytes(String sql, long bytes){
+		stats(_templates, "Query", sql).bytes.add(bytes);
+	}
+
+	public void reset(){
+		for (Stats stats : _operations.values()) stats.reset();
+		for (Stats stats : _templates.values()) stats.reset();
+	}
+
+	/**
+	 * @return one line per operation and per template
+	 */
+	public String report(){
+		StringBuilder out = new StringBuilder();
+		out.append(String.format("%-48s %8s %9s %9s %9s %9s %8s %10s %12s%n",
+			"operation / query", "calls", "mean ms", "p50 ms", "p99 ms", "max ms", "trips", "rows", "bytes"));
+		for (Map.Entry<String, Stats> e : new TreeMap<String, Stats>(_operations).entrySet()) line(out, e.getKey(), e.getValue());
+		for (Map.Entry<String, Stats> e : new TreeMap<String, Stats>(_templates).entrySet()) line(out, e.getKey(), e.getValue());
+		return out.toString();
+	}
+
+	void dump(String file){
+		try{
+			PrintWriter out = new PrintWriter(new FileWriter(file, true));
+			out.println("---- " + new Date());
+			out.print(report());
+			out.close();
+		}catch (IOException e){
+			// ignored.
+		}
+	}
+
+	private static void line(StringBuilder out, String name, Stats s){
+		String label = name.length() > 48 ? name.substring(0, 45) + "..." : name;
+		out.append(String.format("%-48s %8d %9.3f %9.3f %9.3f %9.3f %8.1f %10d %12d%n",
+			label, s.getCalls(), s.getMeanMillis(), s.getP50Millis(), s.getP99Millis(), s.getMaxMillis(),
+			s.getRoundTripsPerCall(), s.getRows(), s.getBytes()));
+	}
+
+	private static Stats stats(Map<String, Stats> map, String type, String name){
+		Stats stats = map.get(name);
+		if (stats != null) return stats;
+
+		Stats created = new Stats();
+		stats = ((ConcurrentHashMap<String, Stats>) map).putIfAbsent(name, created);
+		if (stats != null) return stats;
+		register(type, name, created);
+		return created;
+	}
+
+	private static void register(String type, String name, Stats stats){
+		try{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName("MechanicShop:type=" + type + ",name=" + ObjectName.quote(name));
+			if (!server.isRegistered(objectName)){
+				server.registerMBean(new StandardMBean(stats, StatsMBean.class), objectName);
+			}
+		}catch (Exception e){
+			// metrics stay available through report() without JMX
+		}
+	}
+
+	/**
+	 * The attributes published for an operation or a SQL template.
+	 */
+	public interface StatsMBean{
+		long getCalls();
+		double getMeanMillis();
+		double getP50Millis();
+		double getP99Millis();
+		double getMaxMillis();
+		double getRoundTripsPerCall();
+		long getRows();
+		long getBytes();
+		void reset();
+	}
+
+	static class Stats implements StatsMBean{
+		final Histogram latency = new Histogram();
+		final Histogram roundTripsPerCall = new Histogram();
+		final LongAdder calls = new LongAdder();
+		final LongAdder roundTrips = new LongAdder();
+		final LongAdder rows = new LongAdder();
+		final LongAdder bytes = new LongAdder();
+
+		public long getCalls(){ return calls.sum(); }
+		public double getMeanMillis(){ return latency.mean() / 1e6; }
+		public double getP50Millis(){ return latency.percentile(0.50) / 1e6; }
+		public double getP99Millis(){ return latency.percentile(0.99) / 1e6; }
+		public double getMaxMillis(){ return latency.max() / 1e6; }
+		public double getRoundTripsPerCall(){
+			long n = calls.sum();
+			return n == 0 ? 0 : (double) roundTrips.sum() / n;
+		}
+		public long getRows(){ return rows.sum(); }
+		public long getBytes(){ return bytes.sum(); }
+
+		public void reset(){
+			latency.reset();
+			roundTripsPerCall.reset();
+			calls.reset();
+			roundTrips.reset();
+			rows.reset();
+			bytes.reset();
+		}
+	}
+
+	/**
+	 * Log-linear histogram: every power of two is split into 8 buckets, so
+	 * a reported percentile is within 12.5% of the true value.
+	 */
+	static class Histogram{
+		private static final int SUB = 8;
+		private final AtomicLongArray _buckets = new AtomicLongArray(64 * SUB);
+		private final LongAdder _count = new LongAdder();
+		private final LongAdder _sum = new LongAdder();
+		private final AtomicLong _max = new AtomicLong();
+
+		void record(long value){
+			if (value < 0) value = 0;
+			_buckets.incrementAndGet(bucket(value));
+			_count.increment();
+			_sum.add(value);
+			long max;
+			while (value > (max = _max.get()) && !_max.compareAndSet(max, value)){
+				// retry
+			}
+		}
+
+		long count(){
+			return _count.sum();
+		}
+
+		double mean(){
+			long n = _count.sum();
+			return n == 0 ? 0 : (double) _sum.sum() / n;
+		}
+
+		long max(){
+			return _max.get();
+		}
+
+		// upper bound of the bucket holding the requested rank
+		long percentile(double p){
+			long n = _count.sum();
+			if (n == 0) return 0;
+			long rank = (long) Math.ceil(p * n), seen = 0;
+			for (int b = 0; b < _buckets.length(); ++b){
+				seen += _buckets.get(b);
+				if (seen >= rank) return Math.min(upper(b), _max.get());
+			}
+			return _max.get();
+		}
+
+		void reset(){
+			for (int b = 0; b < _buckets.length(); ++b) _buckets.set(b, 0);
+			_count.reset();
+			_sum.reset();
+			_max.set(0);
+		}
+
+		static int bucket(long value){
+			if (value < SUB) return (int) value;
+			int exp = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) ((value >>> (exp - 3)) & (SUB - 1));
+			return (exp - 2) * SUB + sub;
+		}
+
+		static long upper(int bucket){
+			if (bucket < SUB) return bucket;
+			int exp = bucket / SUB + 2;
+			int sub = bucket % SUB;
+			return ((long) (SUB + sub + 1) << (exp - 3)) - 1;
+		}
+	}
+}
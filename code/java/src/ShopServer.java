@@ -0,0 +1,582 @@
+/*
+ * Server mode for the MechanicShop client
+ * =======================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the ten menu operations as a small HTTP/JSON API, so one process
+ * can replace a console per desk. Every request runs on its own virtual
+ * thread when the JVM has them (a cached thread pool otherwise) and borrows
+ * a connection from the client's pool only for the statements it issues,
+ * so hundreds of open requests share a handful of Postgres backends.
+ *
+ *   POST /customers    {"fname", "lname", "phone", "address"}      -> {"id"}
+ *   POST /mechanics    {"fname", "lname", "experience"}            -> {"id"}
+ *   POST /cars         {"customer_id", "vin", "make", "model", "year"} -> {"id"}
+ *   POST /requests     {"customer_id", "vin", "odometer", "complain"} -> {"rid"}
+ *   POST /closed       {"rid", "mechanic_id", "comment", "bill"}   -> the closed record
+ *   POST /claims       {"mechanic_id"}                             -> the oldest unclaimed open request
+ *   POST /claims/release {"rid", "mechanic_id"}                    -> {}
+ *   GET  /requests[?customer_id=n | ?limit=n]                      -> open requests, oldest first
+ *   GET  /customers?q=<name or phone>[&limit=n][&offset=n]
+ *   GET  /reports/bill-less-than-100
+ *   GET  /reports/more-than-20-cars
+ *   GET  /reports/cars-before-1995
+ *   GET  /reports/top-cars?k=n
+ *   GET  /reports/total-bill
+ *
+ * Every report but more-than-20-cars also takes &from=yyyy-mm-dd[&to=yyyy-mm-dd]
+ * to count only the service requests and closes of that window. Reports
+ * go through the client's ReportCache, so desks asking for the same report
+ * at once share one query, and a small report is sent from the cache until
+ * a table it reads changes.
+ *
+ * Lists are returned as {"rows": [{column: value, ...}, ...], "count": n}
+ * and streamed while the query runs, unless served from the cache. Errors
+ * are {"error": message} with status 400 for bad input, 409 for a row that
+ * already exists and 500 for a database failure. A query that fails after
+ * the first rows were sent ends the list with "error": message in place of
+ * the count.
+ *
+ */
+
+public class ShopServer{
+	private final MechanicShop _esql;
+	private final int _port;
+	private final ShopMetrics _metrics = ShopMetrics.get();
+
+	/**
+	 * @param esql the connected client whose pool the requests share
+	 * @param port the HTTP port to listen on
+	 */
+	public ShopServer(MechanicShop esql, int port){
+		this._esql = esql;
+		this._port = port;
+	}
+
+	/**
+	 * Starts serving and blocks until the process is asked to stop.
+	 */
+	public void run() throws IOException, InterruptedException {
+		final HttpServer server = HttpServer.create(new InetSocketAddress(_port), Integer.getInteger("mechanicshop.http.backlog", 1024));
+		final ExecutorService executor = newRequestExecutor();
+		server.setExecutor(executor);
+
+		server.createContext("/customers", new Route(){
+			void post(HttpExchange ex, Map<String, String> body) throws Exception {
+				int id = _esql.addCustomer(text(body, "fname"), text(body, "lname"), text(body, "phone"), text(body, "address"));
+				created(ex, "id", id);
+			}
+
+			void get(HttpExchange ex, Map<String, String> query) throws Exception {
+				int limit = number(query, "limit", 10), offset = number(query, "offset", 0);
+				List<List<String>> rows = _esql.searchCustomers(text(query, "q"), limit, offset);
+				sendRows(ex, new String[]{ "id", "fname", "lname", "phone", "address" }, rows);
+			}
+		});
+		server.createContext("/mechanics", new Route(){
+			void post(HttpExchange ex, Map<String, String> body) throws Exception {
+				created(ex, "id", _esql.addMechanic(text(body, "fname"), text(body, "lname"), number(body, "experience", -1)));
+			}
+		});
+		server.createContext("/cars", new Route(){
+			void post(HttpExchange ex, Map<String, String> body) throws Exception {
+				created(ex, "id", _esql.addCar(number(body, "customer_id", -1), text(body, "vin"), text(body, "make"),
+					text(body, "model"), number(body, "year", -1)));
+			}
+		});
+		server.createContext("/requests", new Route(){
+			void post(HttpExchange ex, Map<String, String> body) throws Exception {
+				created(ex, "rid", _esql.insertServiceRequest(number(body, "customer_id", -1), text(body, "vin"),
+					number(body, "odometer", -1), text(body, "complain")));
+			}
+
+			// the open requests, of one customer or oldest first
+			void get(HttpExchange ex, Map<String, String> query) throws Exception {
+				if (query.containsKey("customer_id")) streamRows(ex, MechanicShop.OPEN_BY_CUSTOMER, number(query, "customer_id", -1));
+				else streamRows(ex, MechanicShop.OPEN_BY_AGE, Math.max(1, number(query, "limit", 100)));
+			}
+		});
+		server.createContext("/claims", new Route(){
+			void post(HttpExchange ex, Map<String, String> body) throws Exception {
+				int mechanicId = number(body, "mechanic_id", -1);
+				if (ex.getRequestURI().getPath().equals("/claims/release")){
+					if (!_esql.releaseClaim(number(body, "rid", -1), mechanicId))
+						throw new IllegalStateException("request is not claimed by mechanic " + mechanicId);
+					send(ex, 200, "{}");
+					return;
+				}
+				List<String> job = _esql.claimNextServiceRequest(mechanicId);
+				if (job == null) send(ex, 404, "{\"error\":\"no unclaimed service requests\"}");
+				else send(ex, 201, record(MechanicShop.JOB_COLUMNS, job));
+			}
+		});
+		server.createContext("/closed", new Route(){
+			void post(HttpExchange ex, Map<String, String> body) throws Exception {
+				List<String> closed = _esql.closeServiceRequest(number(body, "rid", -1), number(body, "mechanic_id", -1),
+					text(body, "comment"), number(body, "bill", -1));
+				send(ex, 201, record(MechanicShop.CLOSED_COLUMNS, closed));
+			}
+		});
+		server.createContext("/reports/", new Route(){
+			String operation(HttpExchange ex){
+				String path = ex.getRequestURI().getPath();
+				return REPORTS.contains(path.substring("/reports/".length())) ? "GET " + path : "GET /reports/";
+			}
+
+			void get(HttpExchange ex, Map<String, String> query) throws Exception {
+				String name = ex.getRequestURI().getPath().substring("/reports/".length());
+				// ?from=yyyy-mm-dd[&to=yyyy-mm-dd] reads only the partitions of that window
+				java.sql.Date[] w = window(query);
+				if (name.equals("bill-less-than-100")){
+					if (w != null) sendReport(ex, MechanicShop.BILL_LESS_THAN_100_WINDOW, w[0], w[1], w[1]);
+					else sendReport(ex, MechanicShop.BILL_LESS_THAN_100);
+				}
+				else if (name.equals("more-than-20-cars")) sendReport(ex, MechanicShop.MORE_THAN_20_CARS);
+				else if (name.equals("cars-before-1995")){
+					if (w != null) sendReport(ex, MechanicShop.CARS_BEFORE_1995_WINDOW, w[0], w[1]);
+					else sendReport(ex, MechanicShop.CARS_BEFORE_1995);
+				}
+				else if (name.equals("total-bill")){
+					if (w != null) sendReport(ex, MechanicShop.TOTAL_BILL_DESC_WINDOW, w[0], w[1], w[1]);
+					else sendReport(ex, MechanicShop.TOTAL_BILL_DESC);
+				}
+				else if (name.equals("top-cars")){
+					int k = number(query, "k", 10);
+					if (k <= 0) throw new IllegalArgumentException("k must be greater than 0");
+					if (w != null) sendReport(ex, MechanicShop.K_CARS_MOST_SERVICES_WINDOW, w[0], w[1], k);
+					else sendReport(ex, Boolean.getBoolean("mechanicshop.topk.summary")
+						? MechanicShop.K_CARS_MOST_SERVICES_SUMMARY : MechanicShop.K_CARS_MOST_SERVICES, k);
+				}
+				else send(ex, 404, "{\"error\":" + quote("no report " + name) + "}");
+			}
+		});
+
+		final CountDownLatch stopped = new CountDownLatch(1);
+		Runtime.getRuntime().addShutdownHook(new Thread(){
+			public void run(){
+				server.stop(1);
+				executor.shutdown();
+				stopped.countDown();
+			}
+		});
+
+		server.start();
+		System.out.println("Serving on port " + _port + " (" + (VIRTUAL_THREADS ? "virtual threads" : "thread pool") + ")");
+		stopped.await();
+	}//end run
+
+	static final List<String> REPORTS = java.util.Arrays.asList(
+		"bill-less-than-100", "more-than-20-cars", "cars-before-1995", "top-cars", "total-bill");
+
+	/*
+	 * Virtual threads are only looked up reflectively, so the client still
+	 * builds and runs on the Java 11 release it targets.
+	 */
+	static final boolean VIRTUAL_THREADS = virtualThreadFactory() != null;
+
+	private static java.lang.reflect.Method virtualThreadFactory(){
+		try{
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		}catch (NoSuchMethodException e){
+			return null;
+		}
+	}
+
+	/**
+	 * @return an executor running every task on a new virtual thread, or a
+	 *         cached pool of platform threads before Java 21
+	 */
+	static ExecutorService newRequestExecutor(){
+		java.lang.reflect.Method factory = virtualThreadFactory();
+		if (factory != null){
+			try{
+				return (ExecutorService) factory.invoke(null);
+			}catch (Exception e){
+				// falls back to platform threads
+			}
+		}
+		return Executors.newCachedThreadPool();
+	}
+
+	/**
+	 * Dispatches an exchange by method, records it in the metrics under the
+	 * path, and turns exceptions into JSON errors.
+	 */
+	private abstract class Route implements HttpHandler{
+		// the name the exchange is recorded under in the metrics
+		String operation(HttpExchange ex){
+			return ex.getRequestMethod() + " " + ex.getHttpContext().getPath();
+		}
+
+		void post(HttpExchange ex, Map<String, String> body) throws Exception {
+			send(ex, 405, "{\"error\":\"method not allowed\"}");
+		}
+
+		void get(HttpExchange ex, Map<String, String> query) throws Exception {
+			send(ex, 405, "{\"error\":\"method not allowed\"}");
+		}
+
+		public void handle(HttpExchange ex) throws IOException {
+			String method = ex.getRequestMethod();
+			_metrics.beginOperation();
+			try{
+				if (method.equals("POST")) post(ex, parseObject(readBody(ex)));
+				else if (method.equals("GET")) get(ex, parseQuery(ex.getRequestURI().getRawQuery()));
+				else send(ex, 405, "{\"error\":\"method not allowed\"}");
+			}catch (IllegalStateException e){
+				send(ex, 409, "{\"error\":" + quote(e.getMessage()) + "}");
+			}catch (IllegalArgumentException e){
+				send(ex, 400, "{\"error\":" + quote(e.getMessage()) + "}");
+			}catch (SQLException e){
+				send(ex, 500, "{\"error\":" + quote(e.getMessage()) + "}");
+			}catch (Exception e){
+				send(ex, 500, "{\"error\":" + quote(String.valueOf(e)) + "}");
+			}finally{
+				_metrics.endOperation(operation(ex));
+				ex.close();
+			}
+		}
+	}
+
+	// one row as a JSON object of strings
+	static String record(String[] columns, List<String> values){
+		StringBuilder json = new StringBuilder("{");
+		for (int i = 0; i < values.size(); ++i){
+			if (i > 0) json.append(',');
+			json.append(quote(columns[i])).append(':').append(quote(values.get(i)));
+		}
+		return json.append('}').toString();
+	}
+
+	private void created(HttpExchange ex, String key, int id) throws IOException {
+		send(ex, 201, "{\"" + key + "\":" + id + "}");
+	}
+
+	// a report through the client's report cache, streamed unless it is served from the cache
+	private void sendReport(HttpExchange ex, String query, Object... params) throws Exception {
+		JsonRows rows = new JsonRows(ex);
+		try{
+			rows.end(_esql.executeReport(query, rows, params));
+		}catch (Exception e){
+			if (!rows.fail(e)) throw e;
+		}finally{
+			rows.close();
+		}
+	}
+
+	// writes the rows of a query as they arrive instead of collecting them first
+	private void streamRows(HttpExchange ex, String query, Object... params) throws Exception {
+		JsonRows rows = new JsonRows(ex);
+		try{
+			rows.end(_esql.executeQueryAndStreamResult(query, rows, params));
+		}catch (Exception e){
+			if (!rows.fail(e)) throw e;
+		}finally{
+			rows.close();
+		}
+	}
+
+	/*
+	 * Writes rows as a {"rows": [...], "count": n} response, from the
+	 * cursor or from a cached report. The status is only sent with the
+	 * first row, so a query that fails before it still gets an error
+	 * status from handle(); a failure after it ends the rows with an
+	 * "error" member instead of a count.
+	 */
+	private static class JsonRows implements MechanicShop.ReportHandler{
+		final HttpExchange ex;
+		Writer out;
+		String[] names;
+		int n = 0;
+
+		JsonRows(HttpExchange ex){
+			this.ex = ex;
+		}
+
+		private void begin() throws IOException {
+			if (out != null) return;
+			ex.getResponseHeaders().set("Content-Type", "application/json");
+			ex.sendResponseHeaders(200, 0);
+			out = new BufferedWriter(new OutputStreamWriter(ex.getResponseBody(), StandardCharsets.UTF_8), 1 << 16);
+			out.write("{\"rows\":[");
+		}
+
+		public void row(ResultSet rs) throws SQLException {
+			if (names == null){
+				ResultSetMetaData rsmd = rs.getMetaData();
+				names = new String[rsmd.getColumnCount()];
+				for (int i = 0; i < names.length; ++i) names[i] = quote(rsmd.getColumnLabel(i + 1));
+			}
+			try{
+				begin();
+				out.write(n++ > 0 ? ",{" : "{");
+				for (int i = 0; i < names.length; ++i){
+					if (i > 0) out.write(',');
+					out.write(names[i]);
+					out.write(':');
+					out.write(quote(rs.getString(i + 1)));
+				}
+				out.write('}');
+			}catch (IOException e){
+				// the client went away; the pool rolls the cursor back
+				throw new SQLException("client disconnected", e);
+			}
+		}
+
+		public void result(TypedResult result) throws SQLException {
+			String[] columns = result.columnNames();
+			for (int i = 0; i < columns.length; ++i) columns[i] = quote(columns[i]);
+			try{
+				begin();
+				for (int r = 0; r < result.rowCount(); ++r){
+					out.write(n++ > 0 ? ",{" : "{");
+					for (int i = 0; i < columns.length; ++i){
+						if (i > 0) out.write(',');
+						out.write(columns[i]);
+						out.write(':');
+						out.write(quote(result.getString(r, i)));
+					}
+					out.write('}');
+				}
+			}catch (IOException e){
+				throw new SQLException("client disconnected", e);
+			}
+		}
+
+		void end(int count) throws IOException {
+			begin();
+			out.write("],\"count\":" + count + "}");
+		}
+
+		/*
+		 * Ends a response whose status was already sent with the error.
+		 * @return false when nothing was sent yet and the caller reports it
+		 */
+		boolean fail(Exception e){
+			if (out == null) return false;
+			try{
+				out.write("],\"error\":" + quote(e instanceof SQLException ? e.getMessage() : String.valueOf(e)) + "}");
+			}catch (IOException ignored){
+				// the client is gone
+			}
+			return true;
+		}
+
+		void close(){
+			if (out == null) return;
+			try{
+				out.close();
+			}catch (IOException e){
+				// the client is gone
+			}
+		}
+	}
+
+	private void sendRows(HttpExchange ex, String[] columns, List<List<String>> rows) throws IOException {
+		StringBuilder json = new StringBuilder("{\"rows\":[");
+		for (int r = 0; r < rows.size(); ++r){
+			if (r > 0) json.append(',');
+			json.append('{');
+			for (int i = 0; i < columns.length; ++i){
+				if (i > 0) json.append(',');
+				json.append(quote(columns[i])).append(':').append(quote(rows.get(r).get(i)));
+			}
+			json.append('}');
+		}
+		json.append("],\"count\":").append(rows.size()).append('}');
+		send(ex, 200, json.toString());
+	}
+
+	static void send(HttpExchange ex, int status, String json) throws IOException {
+		byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+		ex.getResponseHeaders().set("Content-Type", "application/json");
+		ex.sendResponseHeaders(status, bytes.length);
+		OutputStream out = ex.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	static String readBody(HttpExchange ex) throws IOException {
+		InputStream in = ex.getRequestBody();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) > 0) body.write(buffer, 0, n);
+		return new String(body.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	static String text(Map<String, String> fields, String name){
+		String value = fields.get(name);
+		if (value == null) throw new IllegalArgumentException("missing " + name);
+		return value;
+	}
+
+	static int number(Map<String, String> fields, String name, int missing){
+		String value = fields.get(name);
+		if (value == null) return missing;
+		try{
+			return Integer.parseInt(value.trim());
+		}catch (NumberFormatException e){
+			throw new IllegalArgumentException(name + " must be a number");
+		}
+	}
+
+	// from and to (default today) of a report window, null when from is missing
+	static java.sql.Date[] window(Map<String, String> fields){
+		String from = fields.get("from"), to = fields.get("to");
+		if (from == null) return null;
+		try{
+			return new java.sql.Date[]{ java.sql.Date.valueOf(from.trim()),
+				to == null ? new java.sql.Date(System.currentTimeMillis()) : java.sql.Date.valueOf(to.trim()) };
+		}catch (IllegalArgumentException e){
+			throw new IllegalArgumentException("from and to must be dates as yyyy-mm-dd");
+		}
+	}
+
+	static Map<String, String> parseQuery(String query){
+		Map<String, String> fields = new LinkedHashMap<String, String>();
+		if (query == null || query.isEmpty()) return fields;
+		for (String pair : query.split("&")){
+			int eq = pair.indexOf('=');
+			String key = eq < 0 ? pair : pair.substring(0, eq);
+			String value = eq < 0 ? "" : pair.substring(eq + 1);
+			try{
+				fields.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+			}catch (java.io.UnsupportedEncodingException e){
+				throw new IllegalStateException(e);
+			}
+		}
+		return fields;
+	}
+
+	/**
+	 * Parses a flat JSON object. Every value is returned as its text, null
+	 * values are left out; nested objects and arrays are rejected.
+	 *
+	 * @param json the request body
+	 * @return the fields in document order
+	 */
+	static Map<String, String> parseObject(String json){
+		Map<String, String> fields = new LinkedHashMap<String, String>();
+		int[] pos = { skip(json, 0) };
+		expect(json, pos, '{');
+		if (peek(json, pos) == '}') return fields;
+		while (true){
+			String key = string(json, pos);
+			expect(json, pos, ':');
+			char c = peek(json, pos);
+			String value;
+			if (c == '"') value = string(json, pos);
+			else{
+				int start = pos[0];
+				while (pos[0] < json.length() && ",} \t\r\n".indexOf(json.charAt(pos[0])) < 0) pos[0]++;
+				value = json.substring(start, pos[0]);
+				if (value.isEmpty() || c == '{' || c == '[') throw new IllegalArgumentException("unsupported value for " + key);
+				if (value.equals("null")) value = null;
+			}
+			if (value != null) fields.put(key, value);
+			if (peek(json, pos) == ','){
+				pos[0]++;
+				continue;
+			}
+			expect(json, pos, '}');
+			return fields;
+		}
+	}
+
+	private static int skip(String json, int i){
+		while (i < json.length() && Character.isWhitespace(json.charAt(i))) i++;
+		return i;
+	}
+
+	private static char peek(String json, int[] pos){
+		pos[0] = skip(json, pos[0]);
+		if (pos[0] >= json.length()) throw new IllegalArgumentException("unexpected end of JSON");
+		return json.charAt(pos[0]);
+	}
+
+	private static void expect(String json, int[] pos, char c){
+		if (peek(json, pos) != c) throw new IllegalArgumentException("expected '" + c + "' at " + pos[0]);
+		pos[0]++;
+	}
+
+	private static String string(String json, int[] pos){
+		expect(json, pos, '"');
+		StringBuilder out = new StringBuilder();
+		while (true){
+			if (pos[0] >= json.length()) throw new IllegalArgumentException("unterminated string");
+			char c = json.charAt(pos[0]++);
+			if (c == '"') return out.toString();
+			if (c != '\\'){
+				out.append(c);
+				continue;
+			}
+			if (pos[0] >= json.length()) throw new IllegalArgumentException("unterminated string");
+			char e = json.charAt(pos[0]++);
+			switch (e){
+				case 'b': out.append('\b'); break;
+				case 'f': out.append('\f'); break;
+				case 'n': out.append('\n'); break;
+				case 'r': out.append('\r'); break;
+				case 't': out.append('\t'); break;
+				case 'u':
+					if (pos[0] + 4 > json.length()) throw new IllegalArgumentException("bad escape");
+					out.append((char) Integer.parseInt(json.substring(pos[0], pos[0] + 4), 16));
+					pos[0] += 4;
+					break;
+				default: out.append(e);
+			}
+		}
+	}
+
+	/**
+	 * @return the value as a JSON string literal, or null
+	 */
+	static String quote(String value){
+		if (value == null) return "null";
+		StringBuilder out = new StringBuilder(value.length() + 2).append('"');
+		for (int i = 0; i < value.length(); ++i){
+			char c = value.charAt(i);
+			switch (c){
+				case '"': out.append("\\\""); break;
+				case '\\': out.append("\\\\"); break;
+				case '\n': out.append("\\n"); break;
+				case '\r': out.append("\\r"); break;
+				case '\t': out.append("\\t"); break;
+				default:
+					if (c < 0x20) out.append(String.format("\\u%04x", (int) c));
+					else out.append(c);
+			}
+		}
+		return out.append('"').toString();
+	}
+}
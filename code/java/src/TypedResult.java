@@ -0,0 +1,365 @@
+/*
+ * Typed query results for the MechanicShop client
+ * ===============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A query result stored by column in primitive arrays instead of a list of
+ * string lists. Each column is decoded once according to its SQL type:
+ * integers into int[] or long[], dates into int[] epoch days, other numbers
+ * into double[], and text into int[] codes over a dictionary of the
+ * distinct values, so a make repeated on every row is stored once. Text
+ * columns whose values are mostly distinct fall back to a String[]. A
+ * report-sized result is then a handful of arrays rather than an object per
+ * cell.
+ *
+ */
+
+public class TypedResult{
+	// text columns stop dictionary encoding past this many distinct values when most values are distinct
+	private static final int DICTIONARY_LIMIT = Integer.getInteger("mechanicshop.typed.dictionary", 4096);
+
+	private final String[] _names;
+	private final Column[] _columns;
+	private int _rows = 0;
+
+	/**
+	 * @param names the column names
+	 * @param types the java.sql.Types of the columns
+	 */
+	TypedResult(String[] names, int[] types){
+		this._names = names;
+		this._columns = new Column[names.length];
+		for (int c = 0; c < names.length; ++c) _columns[c] = column(types[c]);
+	}
+
+	/**
+	 * Decodes the remaining rows of a result set.
+	 *
+	 * @return the rows, with column names and types taken from the metadata
+	 * @throws java.sql.SQLException when failed to read the result set
+	 */
+	public static TypedResult read(ResultSet rs) throws SQLException {
+		TypedResult result = empty(rs.getMetaData());
+		while (rs.next()) result.addRow(rs);
+		return result;
+	}
+
+	/**
+	 * @return a result without rows, with column names and types taken from the metadata
+	 */
+	static TypedResult empty(ResultSetMetaData rsmd) throws SQLException {
+		String[] names = new String[rsmd.getColumnCount()];
+		int[] types = new int[names.length];
+		for (int c = 0; c < names.length; ++c){
+			names[c] = rsmd.getColumnLabel(c + 1);
+			types[c] = rsmd.getColumnType(c + 1);
+		}
+		return new TypedResult(names, types);
+	}
+
+	/**
+	 * Adds the row the result set is positioned on, without advancing it.
+	 */
+	void addRow(ResultSet rs) throws SQLException {
+		for (int c = 0; c < _columns.length; ++c) _columns[c].read(rs, c + 1, _rows);
+		_rows++;
+	}
+
+	/**
+	 * Adds a row built in memory; the values must match the column types.
+	 */
+	void add(Object... values){
+		for (int c = 0; c < _columns.length; ++c) _columns[c].set(_rows, values[c]);
+		_rows++;
+	}
+
+	public int rowCount(){
+		return _rows;
+	}
+
+	public int columnCount(){
+		return _names.length;
+	}
+
+	public String[] columnNames(){
+		return _names.clone();
+	}
+
+	public boolean isNull(int row, int column){
+		return _columns[column].nulls.get(row);
+	}
+
+	public int getInt(int row, int column){
+		Column col = _columns[column];
+		if (col instanceof IntColumn) return ((IntColumn) col).a[row];
+		if (col instanceof LongColumn) return Math.toIntExact(((LongColumn) col).a[row]);
+		throw new IllegalStateException("column " + _names[column] + " is not an integer");
+	}
+
+	public long getLong(int row, int column){
+		Column col = _columns[column];
+		if (col instanceof LongColumn) return ((LongColumn) col).a[row];
+		if (col instanceof IntColumn) return ((IntColumn) col).a[row];
+		throw new IllegalStateException("column " + _names[column] + " is not an integer");
+	}
+
+	public double getDouble(int row, int column){
+		Column col = _columns[column];
+		if (col instanceof DoubleColumn) return ((DoubleColumn) col).a[row];
+		return getLong(row, column);
+	}
+
+	/**
+	 * @return the date, or null when the value is null
+	 */
+	public LocalDate getDate(int row, int column){
+		Column col = _columns[column];
+		if (!(col instanceof IntColumn) || !((IntColumn) col).date)
+			throw new IllegalStateException("column " + _names[column] + " is not a date");
+		return col.nulls.get(row) ? null : LocalDate.ofEpochDay(((IntColumn) col).a[row]);
+	}
+
+	/**
+	 * @return the value as text, as rs.getString would return it, or null
+	 */
+	public String getString(int row, int column){
+		Column col = _columns[column];
+		return col.nulls.get(row) ? null : col.string(row);
+	}
+
+	/**
+	 * @return the backing int[] of an integer or date column; only the first rowCount() entries are rows
+	 */
+	public int[] ints(int column){
+		return ((IntColumn) _columns[column]).a;
+	}
+
+	/**
+	 * @return the backing long[] of a bigint column; only the first rowCount() entries are rows
+	 */
+	public long[] longs(int column){
+		return ((LongColumn) _columns[column]).a;
+	}
+
+	/**
+	 * @return the rows as text, for printing and for callers of the list API
+	 */
+	public List<List<String>> rows(){
+		List<List<String>> rows = new ArrayList<List<String>>(_rows);
+		for (int r = 0; r < _rows; ++r){
+			String[] record = new String[_columns.length];
+			for (int c = 0; c < record.length; ++c) record[c] = getString(r, c);
+			rows.add(Arrays.asList(record));
+		}
+		return rows;
+	}
+
+	/**
+	 * @return the approximate number of bytes the decoded values take, as reported in the metrics
+	 */
+	long bytes(){
+		long bytes = 0;
+		for (Column col : _columns) bytes += col.bytes(_rows);
+		return bytes;
+	}
+
+	private static Column column(int type){
+		switch (type){
+			case Types.TINYINT: case Types.SMALLINT: case Types.INTEGER:
+				return new IntColumn(false);
+			case Types.DATE:
+				return new IntColumn(true);
+			case Types.BIGINT:
+				return new LongColumn();
+			case Types.REAL: case Types.FLOAT: case Types.DOUBLE: case Types.NUMERIC: case Types.DECIMAL:
+				return new DoubleColumn();
+			default:
+				return new StringColumn();
+		}
+	}
+
+	/**
+	 * One column: its values in a growable primitive array and a null mask.
+	 */
+	private static abstract class Column{
+		final BitSet nulls = new BitSet();
+
+		abstract void read(ResultSet rs, int index, int row) throws SQLException;
+		abstract void set(int row, Object value);
+		abstract String string(int row);
+		abstract long bytes(int rows);
+	}
+
+	private static class IntColumn extends Column{
+		final boolean date;
+		int[] a = new int[16];
+
+		IntColumn(boolean date){
+			this.date = date;
+		}
+
+		void read(ResultSet rs, int index, int row) throws SQLException {
+			if (row == a.length) a = Arrays.copyOf(a, 2 * row);
+			if (date){
+				java.sql.Date value = rs.getDate(index);
+				if (value == null) nulls.set(row);
+				else a[row] = (int) value.toLocalDate().toEpochDay();
+				return;
+			}
+			a[row] = rs.getInt(index);
+			if (rs.wasNull()) nulls.set(row);
+		}
+
+		void set(int row, Object value){
+			if (row == a.length) a = Arrays.copyOf(a, 2 * row);
+			if (value == null) nulls.set(row);
+			else a[row] = date ? (int) ((LocalDate) value).toEpochDay() : ((Number) value).intValue();
+		}
+
+		String string(int row){
+			return date ? LocalDate.ofEpochDay(a[row]).toString() : Integer.toString(a[row]);
+		}
+
+		long bytes(int rows){
+			return 4L * rows;
+		}
+	}
+
+	private static class LongColumn extends Column{
+		long[] a = new long[16];
+
+		void read(ResultSet rs, int index, int row) throws SQLException {
+			if (row == a.length) a = Arrays.copyOf(a, 2 * row);
+			a[row] = rs.getLong(index);
+			if (rs.wasNull()) nulls.set(row);
+		}
+
+		void set(int row, Object value){
+			if (row == a.length) a = Arrays.copyOf(a, 2 * row);
+			if (value == null) nulls.set(row);
+			else a[row] = ((Number) value).longValue();
+		}
+
+		String string(int row){
+			return Long.toString(a[row]);
+		}
+
+		long bytes(int rows){
+			return 8L * rows;
+		}
+	}
+
+	private static class DoubleColumn extends Column{
+		double[] a = new double[16];
+		// numeric values keep their text so printing matches the server's scale
+		String[] text = new String[16];
+
+		void read(ResultSet rs, int index, int row) throws SQLException {
+			if (row == a.length) a = Arrays.copyOf(a, 2 * row);
+			if (row == text.length) text = Arrays.copyOf(text, 2 * row);
+			String value = rs.getString(index);
+			if (value == null){
+				nulls.set(row);
+				return;
+			}
+			text[row] = value;
+			a[row] = Double.parseDouble(value);
+		}
+
+		void set(int row, Object value){
+			if (row == a.length) a = Arrays.copyOf(a, 2 * row);
+			if (row == text.length) text = Arrays.copyOf(text, 2 * row);
+			if (value == null){
+				nulls.set(row);
+				return;
+			}
+			text[row] = value.toString();
+			a[row] = ((Number) value).doubleValue();
+		}
+
+		String string(int row){
+			return text[row];
+		}
+
+		long bytes(int rows){
+			long bytes = 8L * rows;
+			for (int r = 0; r < rows; ++r) if (text[r] != null) bytes += text[r].length();
+			return bytes;
+		}
+	}
+
+	private static class StringColumn extends Column{
+		// dictionary encoding until the column turns out to be mostly distinct values
+		int[] codes = new int[16];
+		List<String> dictionary = new ArrayList<String>();
+		HashMap<String, Integer> lookup = new HashMap<String, Integer>();
+		String[] plain = null;
+
+		void read(ResultSet rs, int index, int row) throws SQLException {
+			set(row, rs.getString(index));
+		}
+
+		void set(int row, Object value){
+			if (value == null) nulls.set(row);
+			String s = (String) value;
+			if (plain != null){
+				if (row == plain.length) plain = Arrays.copyOf(plain, 2 * row);
+				plain[row] = s;
+				return;
+			}
+			if (row == codes.length) codes = Arrays.copyOf(codes, 2 * row);
+			if (s == null) return;
+			Integer code = lookup.get(s);
+			if (code == null){
+				if (dictionary.size() >= DICTIONARY_LIMIT && dictionary.size() >= row / 2){
+					decode(row);
+					plain[row] = s;
+					return;
+				}
+				code = dictionary.size();
+				dictionary.add(s);
+				lookup.put(s, code);
+			}
+			codes[row] = code;
+		}
+
+		// switches to one String per row, keeping the rows read so far
+		private void decode(int rows){
+			plain = new String[codes.length];
+			for (int r = 0; r < rows; ++r) if (!nulls.get(r)) plain[r] = dictionary.get(codes[r]);
+			codes = null;
+			dictionary = null;
+			lookup = null;
+		}
+
+		String string(int row){
+			return plain != null ? plain[row] : dictionary.get(codes[row]);
+		}
+
+		long bytes(int rows){
+			long bytes = 0;
+			if (plain != null){
+				for (int r = 0; r < rows; ++r) if (plain[r] != null) bytes += plain[r].length();
+				return bytes;
+			}
+			for (String s : dictionary) bytes += s.length();
+			return bytes + 4L * rows;
+		}
+	}
+}
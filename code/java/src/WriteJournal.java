@@ -0,0 +1,605 @@
+/*
+ * Write journal for the MechanicShop client
+ * =========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * A local, append-only journal of the desk's writes, used while the
+ * database is unreachable or slower than the latency threshold. A write is
+ * appended as one record to a memory-mapped segment file and acknowledged
+ * once the segment is forced to disk. Writers arriving while a force runs
+ * share the next one (group commit), so the desk waits on the local disk
+ * and not on the server.
+ *
+ * A record is its length, the CRC32 of its body, and the body: sequence
+ * number, time taken, SQL template and parameters. On open every segment
+ * is scanned and the log ends at the first record whose checksum does not
+ * match, which drops a write torn by a crash.
+ *
+ * A background replayer applies the records to the database in order, many
+ * per transaction. The key of each record (journal id, sequence number) is
+ * inserted into Journal_Applied (triggers.sql) in the same transaction as
+ * the write, so a batch replayed again after a crash or a lost commit is
+ * skipped instead of applied twice. A record the database rejects, such as
+ * the close of a request that does not exist, is written to rejected.log,
+ * marked with its error, and replay goes on. Fully replayed segments are
+ * deleted.
+ *
+ * One process at a time may use a journal directory.
+ *
+ */
+
+public class WriteJournal{
+	private static final int HEADER = 8; // length, crc32
+	private static final String APPLIED =
+		"INSERT INTO Journal_Applied (journal_id, seq) VALUES (?, ?) ON CONFLICT DO NOTHING";
+	private static final String REJECTED =
+		"INSERT INTO Journal_Applied (journal_id, seq, error) VALUES (?, ?, ?) ON CONFLICT DO NOTHING";
+	// replay waits this long after a failure, doubling up to a minute while the database stays down
+	private static final long RETRY = Long.getLong("mechanicshop.journal.retry", 1000L);
+
+	private final MechanicShop _esql;
+	private final Path _dir;
+	private final int _segmentSize;
+	private final int _batchSize;
+	private final long _journalId;
+	private final FileChannel _lockFile;
+	private final FileLock _lock;
+
+	// oldest first; records are appended to the last one
+	private final List<Segment> _segments = new ArrayList<Segment>();
+	private long _next;     // sequence number of the next record
+	private long _durable;  // every record up to this one is on disk
+	private long _replayed; // every record up to this one is in the database
+	private boolean _closed = false;
+	private long _appends = 0, _syncs = 0, _batches = 0, _applied = 0, _rejected = 0;
+
+	// replay position, only used by the replayer thread
+	private Segment _readSegment;
+	private int _readPos = 0;
+	private long _readNext; // sequence number of the record at the replay position
+
+	private final Thread _flusher;
+	private final Thread _replayer;
+
+	/**
+	 * Opens the journal in a directory, recovering the records left by an
+	 * earlier run, and starts the flusher and replayer threads.
+	 *
+	 * @param esql the client whose pool the replayer uses
+	 * @param dir the journal directory, created if needed
+	 * @param segmentSize the size of a segment file in bytes
+	 * @param batchSize the most records replayed per transaction
+	 * @throws java.io.IOException when the journal cannot be read or is in use
+	 */
+	public WriteJournal(MechanicShop esql, Path dir, int segmentSize, int batchSize) throws IOException {
+		this._esql = esql;
+		this._dir = dir;
+		this._segmentSize = Math.max(1 << 12, segmentSize);
+		this._batchSize = Math.max(1, batchSize);
+
+		Files.createDirectories(dir);
+		this._lockFile = FileChannel.open(dir.resolve("journal.lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		this._lock = _lockFile.tryLock();
+		if (_lock == null){
+			_lockFile.close();
+			throw new IOException("journal " + dir + " is used by another process");
+		}
+
+		Path id = dir.resolve("journal.id");
+		if (!Files.exists(id)) replace(id, Long.toString(UUID.randomUUID().getMostSignificantBits()));
+		this._journalId = Long.parseLong(new String(Files.readAllBytes(id), StandardCharsets.UTF_8).trim());
+		Path cursor = dir.resolve("replayed");
+		this._replayed = Files.exists(cursor) ? Long.parseLong(new String(Files.readAllBytes(cursor), StandardCharsets.UTF_8).trim()) : 0;
+
+		recover();
+		this._readSegment = _segments.get(0);
+		this._readNext = _readSegment.first;
+
+		this._flusher = new Thread(new Runnable(){
+			public void run(){
+				flush();
+			}
+		}, "journal-flush");
+		this._replayer = new Thread(new Runnable(){
+			public void run(){
+				replay();
+			}
+		}, "journal-replay");
+		_flusher.setDaemon(true);
+		_replayer.setDaemon(true);
+		_flusher.start();
+		_replayer.start();
+	}
+
+	/**
+	 * Decides whether a failed statement may be retried later from the
+	 * journal: the server could not be reached, was shutting down or out of
+	 * resources, or cancelled the statement at the latency threshold.
+	 * Constraint violations and other errors in the statement are not.
+	 */
+	static boolean isTransient(SQLException e){
+		String state = e.getSQLState();
+		return state == null || state.startsWith("08") || state.startsWith("40")
+			|| state.startsWith("53") || state.startsWith("57");
+	}
+
+	/**
+	 * Appends a write and waits until it is on disk.
+	 *
+	 * @param sql the SQL template with ? placeholders
+	 * @param params Integer, Long, String or java.sql.Date values, or null
+	 * @return the sequence number of the record
+	 * @throws java.io.IOException when the record cannot be written
+	 */
+	public long append(String sql, Object... params) throws IOException {
+		long seq;
+		synchronized (this){
+			if (_closed) throw new IOException("journal is closed");
+			seq = _next;
+			byte[] body = encode(seq, sql, params);
+			if (HEADER + body.length > _segmentSize)
+				throw new IOException("a record of " + body.length + " bytes does not fit a journal segment");
+			Segment seg = _segments.get(_segments.size() - 1);
+			if (seg.buffer.remaining() < HEADER + body.length) seg = roll(seg);
+
+			CRC32 crc = new CRC32();
+			crc.update(body);
+			seg.buffer.putInt(body.length);
+			seg.buffer.putInt((int) crc.getValue());
+			seg.buffer.put(body);
+			seg.last = seq;
+			_next++;
+			_appends++;
+			notifyAll();
+
+			// group commit: the flusher forces everything appended so far at once
+			try{
+				while (_durable < seq){
+					if (_closed && !_flusher.isAlive()) throw new IOException("journal closed before the write was synced");
+					wait();
+				}
+			}catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while syncing the journal");
+			}
+		}
+		return seq;
+	}//end append
+
+	/**
+	 * @return the number of records not yet in the database
+	 */
+	public synchronized long backlog(){
+		return _next - 1 - _replayed;
+	}
+
+	/**
+	 * Stops the threads once the appended records are on disk. Records not
+	 * replayed yet stay in the directory for the next run.
+	 */
+	public void close(){
+		synchronized (this){
+			_closed = true;
+			notifyAll();
+		}
+		try{
+			_flusher.join();
+			_replayer.join(10000);
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		try{
+			_lock.release();
+			_lockFile.close();
+		}catch (IOException e){
+			// released when the process exits anyway
+		}
+	}//end close
+
+	/*
+	 * Scans the segments on disk: finds the last intact record, cuts off a
+	 * torn one and deletes the segments that are fully replayed.
+	 */
+	private void recover() throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		try (DirectoryStream<Path> dir = Files.newDirectoryStream(_dir, "*.seg")){
+			for (Path file : dir) files.add(file);
+		}
+		files.sort(null); // the names are zero padded first sequence numbers
+
+		long last = _replayed;
+		for (int i = 0; i < files.size(); ++i){
+			Path file = files.get(i);
+			String name = file.getFileName().toString();
+			Segment seg = new Segment(file, map(file, (int) Files.size(file)), Long.parseLong(name.substring(0, name.length() - 4)));
+			if (!_segments.isEmpty() && seg.first != last + 1)
+				throw new IOException("journal segment " + file + " does not follow the one before it");
+			int pos = 0;
+			while (true){
+				long seq = recordAt(seg.buffer, pos);
+				if (seq != seg.last + 1) break;
+				seg.last = seq;
+				pos += HEADER + seg.buffer.getInt(pos);
+			}
+			if (pos + HEADER <= seg.buffer.capacity() && seg.buffer.getInt(pos) != 0){
+				if (i < files.size() - 1) throw new IOException("journal segment " + file + " is corrupt at offset " + pos);
+				System.err.println("journal: dropped a torn record at the end of " + file);
+				for (int p = pos; p < seg.buffer.capacity(); ++p) seg.buffer.put(p, (byte) 0);
+				seg.buffer.force();
+			}
+			seg.buffer.position(pos);
+			if (seg.last >= seg.first) last = seg.last;
+			_segments.add(seg);
+		}
+		_next = Math.max(last, _replayed) + 1;
+		_durable = _next - 1;
+		dropReplayed();
+		if (_segments.isEmpty()) create(_next);
+	}//end recover
+
+	// starts a new segment once the current one is full
+	private Segment roll(Segment full) throws IOException {
+		full.buffer.force();
+		return create(_next);
+	}
+
+	private Segment create(long first) throws IOException {
+		Path file = _dir.resolve(String.format("%020d.seg", first));
+		Segment seg = new Segment(file, map(file, _segmentSize), first);
+		_segments.add(seg);
+		// makes the new file's directory entry durable
+		try (FileChannel dir = FileChannel.open(_dir, StandardOpenOption.READ)){
+			dir.force(true);
+		}
+		return seg;
+	}
+
+	private static MappedByteBuffer map(Path file, int size) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+
+	/*
+	 * The sequence number of the intact record at an offset, or -1 at the
+	 * end of the segment or at a record whose checksum does not match.
+	 */
+	private static long recordAt(ByteBuffer buffer, int pos){
+		if (pos + HEADER > buffer.capacity()) return -1;
+		int length = buffer.getInt(pos);
+		if (length < 16 || pos + HEADER + length > buffer.capacity()) return -1;
+		ByteBuffer body = buffer.duplicate();
+		body.limit(pos + HEADER + length).position(pos + HEADER);
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		if ((int) crc.getValue() != buffer.getInt(pos + 4)) return -1;
+		return buffer.getLong(pos + HEADER);
+	}
+
+	/*
+	 * Forces the last segment whenever records were appended since the
+	 * previous force, then wakes the writers waiting for them.
+	 */
+	private void flush(){
+		while (true){
+			Segment seg;
+			long target;
+			synchronized (this){
+				while (_durable == _next - 1 && !_closed){
+					try{
+						wait();
+					}catch (InterruptedException e){
+						return;
+					}
+				}
+				if (_durable == _next - 1) return;
+				seg = _segments.get(_segments.size() - 1);
+				target = _next - 1;
+			}
+			seg.buffer.force();
+			synchronized (this){
+				_durable = target;
+				_syncs++;
+				notifyAll();
+			}
+		}
+	}//end flush
+
+	/*
+	 * Applies the synced records a batch at a time, waiting with a growing
+	 * delay while the database is unavailable.
+	 */
+	private void replay(){
+		long delay = RETRY;
+		List<Record> batch = new ArrayList<Record>();
+		while (true){
+			synchronized (this){
+				try{
+					while (batch.isEmpty() && _replayed == _durable && !_closed) wait();
+				}catch (InterruptedException e){
+					return;
+				}
+				if (_closed) return;
+			}
+			if (batch.isEmpty()) read(batch);
+			if (batch.isEmpty()) continue;
+			try{
+				apply(batch);
+			}catch (SQLException e){
+				if (!isTransient(e)) System.err.println("journal: replay failed, retrying: " + e.getMessage());
+				synchronized (this){
+					try{
+						wait(delay);
+					}catch (InterruptedException ie){
+						return;
+					}
+				}
+				delay = Math.min(2 * delay, 60000L);
+				continue;
+			}
+			delay = RETRY;
+			synchronized (this){
+				_replayed = batch.get(batch.size() - 1).seq;
+				_batches++;
+				notifyAll();
+			}
+			batch.clear();
+			try{
+				replace(_dir.resolve("replayed"), Long.toString(_replayed));
+				synchronized (this){
+					dropReplayed();
+				}
+			}catch (IOException e){
+				// the cursor only saves rescanning; Journal_Applied skips what is replayed again
+				System.err.println("journal: " + e.getMessage());
+			}
+		}
+	}//end replay
+
+	// reads up to a batch of the synced records after the replay position
+	private void read(List<Record> batch){
+		long durable;
+		synchronized (this){
+			durable = _durable;
+		}
+		while (batch.size() < _batchSize){
+			long seq = recordAt(_readSegment.buffer, _readPos);
+			if (seq < 0){
+				Segment next = null;
+				synchronized (this){
+					// a record still being written is not the end of its segment
+					if (_readSegment.last >= _readNext) return;
+					for (Segment seg : _segments) if (seg.first > _readSegment.first){ next = seg; break; }
+				}
+				if (next == null) return;
+				_readSegment = next;
+				_readPos = 0;
+				continue;
+			}
+			if (seq > durable) return;
+			if (seq > _replayed) batch.add(decode(_readSegment.buffer, _readPos + HEADER));
+			_readPos += HEADER + _readSegment.buffer.getInt(_readPos);
+			_readNext = seq + 1;
+		}
+	}//end read
+
+	/*
+	 * Applies a batch in one transaction. When the database rejects one of
+	 * the records the batch is applied again one record per transaction, so
+	 * only that record is set aside.
+	 */
+	private void apply(List<Record> batch) throws SQLException {
+		Connection conn = _esql.acquireConnection();
+		try{
+			conn.setAutoCommit(false);
+			try{
+				for (Record record : batch) apply(conn, record);
+				conn.commit();
+				return;
+			}catch (SQLException e){
+				rollback(conn);
+				if (isTransient(e)) throw e;
+			}
+			for (Record record : batch){
+				try{
+					apply(conn, record);
+					conn.commit();
+				}catch (SQLException e){
+					rollback(conn);
+					if (isTransient(e)) throw e;
+					reject(conn, record, e);
+				}
+			}
+		}finally{
+			_esql.releaseConnection(conn);
+		}
+	}//end apply
+
+	private void apply(Connection conn, Record record) throws SQLException {
+		PreparedStatement mark = _esql.prepare(conn, APPLIED);
+		mark.setLong(1, _journalId);
+		mark.setLong(2, record.seq);
+		if (mark.executeUpdate() == 0) return; // applied by an earlier run
+		PreparedStatement stmt = _esql.prepare(conn, record.sql);
+		stmt.clearParameters();
+		for (int i = 0; i < record.params.length; ++i) stmt.setObject(i + 1, record.params[i]);
+		stmt.execute();
+		synchronized (this){
+			_applied++;
+		}
+	}
+
+	private void reject(Connection conn, Record record, SQLException error) throws SQLException {
+		StringBuilder line = new StringBuilder();
+		line.append(record.seq).append('\t').append(new java.sql.Timestamp(record.time)).append('\t').append(record.sql);
+		for (Object param : record.params) line.append('\t').append(param);
+		line.append('\t').append(error.getMessage()).append('\n');
+		try{
+			Files.write(_dir.resolve("rejected.log"), line.toString().getBytes(StandardCharsets.UTF_8),
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		}catch (IOException e){
+			System.err.println("journal: " + e.getMessage());
+		}
+		System.err.println("journal: write " + record.seq + " rejected: " + error.getMessage());
+
+		PreparedStatement mark = _esql.prepare(conn, REJECTED);
+		mark.setLong(1, _journalId);
+		mark.setLong(2, record.seq);
+		mark.setString(3, error.getMessage());
+		mark.executeUpdate();
+		conn.commit();
+		synchronized (this){
+			_rejected++;
+		}
+	}
+
+	private static void rollback(Connection conn){
+		try{
+			conn.rollback();
+		}catch (SQLException e){
+			// the connection is broken; the pool discards it on release
+		}
+	}
+
+	// deletes the segments, except the last, whose records are all replayed
+	private void dropReplayed(){
+		while (_segments.size() > 1 && _segments.get(0).last <= _replayed){
+			Segment seg = _segments.remove(0);
+			try{
+				Files.deleteIfExists(seg.file);
+			}catch (IOException e){
+				System.err.println("journal: " + e.getMessage());
+			}
+		}
+	}
+
+	// writes a small file through a temporary file, so it is never seen half written
+	private static void replace(Path file, String content) throws IOException {
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		Files.write(tmp, content.getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static byte[] encode(long seq, String sql, Object[] params) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + sql.length());
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeLong(seq);
+		out.writeLong(System.currentTimeMillis());
+		writeString(out, sql);
+		out.writeShort(params.length);
+		for (Object param : params){
+			if (param == null){
+				out.writeByte('N');
+			}else if (param instanceof Integer){
+				out.writeByte('I');
+				out.writeInt((Integer) param);
+			}else if (param instanceof Long){
+				out.writeByte('L');
+				out.writeLong((Long) param);
+			}else if (param instanceof String){
+				out.writeByte('S');
+				writeString(out, (String) param);
+			}else if (param instanceof java.sql.Date){
+				out.writeByte('D');
+				out.writeLong(((java.sql.Date) param).toLocalDate().toEpochDay());
+			}else{
+				throw new IllegalArgumentException("cannot journal a " + param.getClass().getName());
+			}
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(utf8.length);
+		out.write(utf8);
+	}
+
+	private static Record decode(ByteBuffer buffer, int pos){
+		ByteBuffer in = buffer.duplicate();
+		in.position(pos);
+		long seq = in.getLong();
+		long time = in.getLong();
+		String sql = readString(in);
+		Object[] params = new Object[in.getShort()];
+		for (int i = 0; i < params.length; ++i){
+			switch (in.get()){
+				case 'I': params[i] = in.getInt(); break;
+				case 'L': params[i] = in.getLong(); break;
+				case 'S': params[i] = readString(in); break;
+				case 'D': params[i] = java.sql.Date.valueOf(LocalDate.ofEpochDay(in.getLong())); break;
+				default: params[i] = null;
+			}
+		}
+		return new Record(seq, time, sql, params);
+	}
+
+	private static String readString(ByteBuffer in){
+		byte[] utf8 = new byte[in.getInt()];
+		in.get(utf8);
+		return new String(utf8, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public synchronized String toString(){
+		return String.format("Write journal %s: %d appended in %d syncs, %d applied in %d batches, %d rejected, %d waiting",
+			_dir, _appends, _syncs, _applied, _batches, _rejected, _next - 1 - _replayed);
+	}
+
+	private static class Segment{
+		final Path file;
+		final MappedByteBuffer buffer;
+		final long first; // sequence number of the first record, also the file name
+		long last;        // sequence number of the last record, first - 1 while empty
+
+		Segment(Path file, MappedByteBuffer buffer, long first){
+			this.file = file;
+			this.buffer = buffer;
+			this.first = first;
+			this.last = first - 1;
+		}
+	}
+
+	private static class Record{
+		final long seq;
+		final long time;
+		final String sql;
+		final Object[] params;
+
+		Record(long seq, long time, String sql, Object[] params){
+			this.seq = seq;
+			this.time = time;
+			this.sql = sql;
+			this.params = params;
+		}
+	}
+}
@@ -14,4 +14,6 @@ sleep 1
 # to run multiple .sql files
 # cat file1.sql file2.sql | psql -h localhost -p $PGPORT $USER"_DB" -1 -f -
 
+# append ../sql/partition.sql to partition Service_Request and Closed_Request by month
+
 cat ../sql/create.sql ../sql/triggers.sql ../sql/create_index.sql | psql -h localhost -p $PGPORT $USER"_DB"
@@ -3,3 +3,34 @@
 
 CREATE INDEX make_model_index ON Car USING BTREE (make, model);
 CREATE INDEX cust_car_index ON Service_Request USING BTREE (customer_id, car_vin);
+CREATE INDEX service_count_index ON Car_Service_Count USING BTREE (service_count DESC, make, model);
+-- scanned backward for total_bill DESC, customer_id DESC, which keeps the keyset (total_bill, customer_id) < (?, ?) a range
+CREATE INDEX total_bill_index ON Customer_Bill_Summary USING BTREE (total_bill, customer_id);
+CREATE INDEX min_bill_index ON Customer_Bill_Summary USING BTREE (min_bill, customer_id);
+CREATE INDEX customer_lname_index ON Customer USING BTREE (lname);
+
+-- customer search (trigram matching needs the pg_trgm extension)
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+CREATE INDEX customer_lname_prefix_index ON Customer USING BTREE (lower(rtrim(lname)) text_pattern_ops);
+CREATE INDEX customer_lname_trgm_index ON Customer USING GIN (lower(rtrim(lname)) gin_trgm_ops);
+CREATE INDEX customer_fname_trgm_index ON Customer USING GIN (lower(rtrim(fname)) gin_trgm_ops);
+CREATE INDEX customer_phone_index ON Customer USING BTREE (regexp_replace(phone, '[^0-9]', '', 'g') text_pattern_ops);
+
+-- a service request can be closed only once; closes rely on it for ON CONFLICT DO NOTHING (Closed_Rid in partition.sql once partitioned)
+CREATE UNIQUE INDEX closed_request_rid_index ON Closed_Request USING BTREE (rid);
+-- bulk close of the open requests older than a number of days
+CREATE INDEX service_request_date_index ON Service_Request USING BTREE (date, rid);
+
+-- report 8 and its pages: old cars in report order, then their low-mileage requests
+CREATE INDEX car_before_1995_index ON Car USING BTREE (make, model, year, vin) WHERE year < 1995;
+CREATE INDEX service_request_vin_odometer_index ON Service_Request USING BTREE (car_vin, odometer);
+
+-- cars by owner and report 7, which groups Owns by customer without reading the heap
+CREATE INDEX owns_customer_index ON Owns USING BTREE (customer_id, car_vin);
+-- year filters outside report 8's partial index
+CREATE INDEX car_year_index ON Car USING BTREE (year);
+
+-- the open-work queue: the next unclaimed job, and open requests by age or by customer
+CREATE INDEX open_request_unclaimed_index ON Open_Request USING BTREE (date, rid) WHERE claimed_by IS NULL;
+CREATE INDEX open_request_date_index ON Open_Request USING BTREE (date, rid);
+CREATE INDEX open_request_customer_index ON Open_Request USING BTREE (customer_id, date, rid);
@@ -0,0 +1,160 @@
+-- Monthly range partitions of Service_Request and Closed_Request on date.
+-- Run after create.sql, triggers.sql and create_index.sql (PostgreSQL 11 or later):
+--   cat create.sql triggers.sql create_index.sql partition.sql | psql ...
+-- Reports that take a date window then only read the partitions of the window,
+-- and old months are detached to files by the Archiver instead of being vacuumed.
+
+---------------------------
+---PARTITION MAINTENANCE---
+---------------------------
+-- creates the missing monthly partitions of parent covering from_date .. to_date; rows of
+-- those months already in the DEFAULT partition are moved into the new partition first.
+-- The move is no change to the parent, so the row triggers cloned onto the DEFAULT partition
+-- (summaries, Open_Request, Closed_Rid) are switched off for it. ALTER TABLE is transactional:
+-- they are back on at commit or rollback, and its lock holds off other writers meanwhile.
+CREATE OR REPLACE FUNCTION create_month_partitions(parent TEXT, from_date DATE, to_date DATE) RETURNS INTEGER AS $$
+DECLARE
+	month DATE := date_trunc('month', from_date);
+	part TEXT;
+	dflt TEXT := lower(parent) || '_default';
+	created INTEGER := 0;
+BEGIN
+	WHILE month <= to_date LOOP
+		part := lower(parent) || '_' || to_char(month, 'YYYY_MM');
+		IF to_regclass(part) IS NULL THEN
+			EXECUTE format('CREATE TABLE %I (LIKE %I INCLUDING DEFAULTS INCLUDING CONSTRAINTS)', part, parent);
+			EXECUTE format('ALTER TABLE %I DISABLE TRIGGER USER', dflt);
+			EXECUTE format('WITH moved AS (DELETE FROM %I WHERE date >= %L AND date < %L RETURNING *) INSERT INTO %I SELECT * FROM moved',
+				dflt, month, month + interval '1 month', part);
+			EXECUTE format('ALTER TABLE %I ENABLE TRIGGER USER', dflt);
+			EXECUTE format('ALTER TABLE %I ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+				parent, part, month, (month + interval '1 month')::date);
+			created := created + 1;
+		END IF;
+		month := month + interval '1 month';
+	END LOOP;
+	RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+------------------------
+---PARTITIONED TABLES---
+------------------------
+-- the sequences must outlive the heap tables they are owned by
+ALTER SEQUENCE rid_seq OWNED BY NONE;
+ALTER SEQUENCE wid_seq OWNED BY NONE;
+
+ALTER TABLE Closed_Request RENAME TO Closed_Request_Heap;
+ALTER TABLE Service_Request RENAME TO Service_Request_Heap;
+
+-- unique keys of a partitioned table must contain the partition key
+CREATE TABLE Service_Request
+(
+	rid INTEGER NOT NULL,
+	customer_id INTEGER NOT NULL,
+	car_vin VARCHAR(16) NOT NULL,
+	date DATE NOT NULL,
+	odometer _PINTEGER NOT NULL,
+	complain TEXT,
+	PRIMARY KEY (rid, date),
+	FOREIGN KEY (customer_id) REFERENCES Customer(id),
+	FOREIGN KEY (car_vin) REFERENCES Car(vin)
+) PARTITION BY RANGE (date);
+
+-- rid can no longer be a foreign key or unique on its own; Closed_Rid below checks both
+CREATE TABLE Closed_Request
+(
+	wid INTEGER NOT NULL,
+	rid INTEGER NOT NULL, -- service request id
+	mid INTEGER NOT NULL, -- mechanic id
+	date DATE NOT NULL,
+	comment TEXT,
+	bill _PINTEGER NOT NULL,
+	PRIMARY KEY (wid, date),
+	FOREIGN KEY (mid) REFERENCES Mechanic(id)
+) PARTITION BY RANGE (date);
+
+CREATE TABLE service_request_default PARTITION OF Service_Request DEFAULT;
+CREATE TABLE closed_request_default PARTITION OF Closed_Request DEFAULT;
+
+SELECT create_month_partitions('Service_Request', LEAST(MIN(date), CURRENT_DATE), CURRENT_DATE + 92) FROM Service_Request_Heap;
+SELECT create_month_partitions('Closed_Request', LEAST(MIN(date), CURRENT_DATE), CURRENT_DATE + 92) FROM Closed_Request_Heap;
+
+INSERT INTO Service_Request SELECT * FROM Service_Request_Heap;
+INSERT INTO Closed_Request SELECT * FROM Closed_Request_Heap;
+
+DROP TABLE Closed_Request_Heap CASCADE;
+DROP TABLE Service_Request_Heap CASCADE;
+
+ALTER SEQUENCE rid_seq OWNED BY Service_Request.rid;
+ALTER SEQUENCE wid_seq OWNED BY Closed_Request.wid;
+
+--------------------------
+---CLOSED REQUEST GUARD---
+--------------------------
+-- one row per closed request: keeps a request from being closed twice across partitions
+-- and stays behind when a month of Closed_Request is archived
+DROP TABLE IF EXISTS Closed_Rid CASCADE;--OK
+CREATE TABLE Closed_Rid
+(
+	rid INTEGER NOT NULL,
+	wid INTEGER NOT NULL,
+	PRIMARY KEY (rid)
+);
+
+INSERT INTO Closed_Rid (rid, wid) SELECT rid, wid FROM Closed_Request;
+
+CREATE OR REPLACE FUNCTION guard_closed_rid() RETURNS TRIGGER AS $$
+BEGIN
+	IF TG_OP IN ('DELETE', 'UPDATE') THEN
+		DELETE FROM Closed_Rid WHERE rid = OLD.rid AND wid = OLD.wid;
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		IF NOT EXISTS (SELECT 1 FROM Service_Request WHERE rid = NEW.rid) THEN
+			RAISE foreign_key_violation USING MESSAGE = 'service request ' || NEW.rid || ' does not exist';
+		END IF;
+		-- a second close of the same request fails with unique_violation
+		INSERT INTO Closed_Rid (rid, wid) VALUES (NEW.rid, NEW.wid);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER closed_rid_trigger
+AFTER INSERT OR DELETE OR UPDATE OF rid ON Closed_Request
+FOR EACH ROW EXECUTE PROCEDURE guard_closed_rid();
+
+-----------------------------------------
+---SUMMARY TRIGGERS AND INDEXES, AGAIN---
+-----------------------------------------
+-- dropped with the heap tables; the functions are those of triggers.sql
+CREATE TRIGGER car_service_count_trigger
+AFTER INSERT OR DELETE OR UPDATE OF car_vin ON Service_Request
+FOR EACH ROW EXECUTE PROCEDURE count_car_service();
+
+CREATE TRIGGER customer_bill_summary_trigger
+AFTER INSERT OR DELETE OR UPDATE OF rid, bill ON Closed_Request
+FOR EACH ROW EXECUTE PROCEDURE sum_customer_bill();
+
+CREATE TRIGGER open_request_trigger
+AFTER INSERT OR DELETE OR UPDATE OF rid, customer_id, car_vin, date ON Service_Request
+FOR EACH ROW EXECUTE PROCEDURE open_service_request();
+
+CREATE TRIGGER open_request_close_trigger
+AFTER INSERT OR DELETE OR UPDATE OF rid ON Closed_Request
+FOR EACH ROW EXECUTE PROCEDURE close_open_request();
+
+-- statement triggers on the parent also see the rows routed to the partitions
+CREATE TRIGGER service_request_changed_trigger
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Service_Request
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_table_changed();
+
+CREATE TRIGGER closed_request_changed_trigger
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Closed_Request
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_table_changed();
+
+CREATE INDEX cust_car_index ON Service_Request USING BTREE (customer_id, car_vin);
+CREATE INDEX service_request_date_index ON Service_Request USING BTREE (date, rid);
+CREATE INDEX service_request_vin_odometer_index ON Service_Request USING BTREE (car_vin, odometer);
+CREATE INDEX closed_request_rid_index ON Closed_Request USING BTREE (rid);
+CREATE INDEX closed_request_date_index ON Closed_Request USING BTREE (date);
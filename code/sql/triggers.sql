@@ -4,3 +4,210 @@ CREATE SEQUENCE owns_id_seq OWNED BY Owns.ownership_id;
 CREATE SEQUENCE rid_seq OWNED BY Service_Request.rid;
 CREATE SEQUENCE wid_seq OWNED BY Closed_Request.wid;
 
+-- start past the keys loaded by create.sql; the BulkLoader and the clients move them again (IdAllocator.resync)
+SELECT setval('customer_id_seq', COALESCE(MAX(id), 0) + 1, false) FROM Customer;
+SELECT setval('mechanic_id_seq', COALESCE(MAX(id), 0) + 1, false) FROM Mechanic;
+SELECT setval('owns_id_seq', COALESCE(MAX(ownership_id), 0) + 1, false) FROM Owns;
+SELECT setval('rid_seq', COALESCE(MAX(rid), 0) + 1, false) FROM Service_Request;
+SELECT setval('wid_seq', COALESCE(MAX(wid), 0) + 1, false) FROM Closed_Request;
+
+DROP TABLE IF EXISTS Car_Service_Count CASCADE;--OK
+
+-----------------------------
+---SERVICE COUNT PER MODEL---
+-----------------------------
+-- pre-aggregated counts read by ListKCarsWithTheMostServices
+CREATE TABLE Car_Service_Count
+(
+	make VARCHAR(32) NOT NULL,
+	model VARCHAR(32) NOT NULL,
+	service_count _PZEROINTEGER NOT NULL,
+	PRIMARY KEY (make, model)
+);
+
+INSERT INTO Car_Service_Count (make, model, service_count)
+SELECT C.make, C.model, COUNT(*)
+FROM Service_Request AS S, Car AS C
+WHERE S.car_vin = C.vin
+GROUP BY C.make, C.model;
+
+CREATE OR REPLACE FUNCTION count_car_service() RETURNS TRIGGER AS $$
+BEGIN
+	IF TG_OP IN ('DELETE', 'UPDATE') THEN
+		UPDATE Car_Service_Count AS SC
+		SET service_count = SC.service_count - 1
+		FROM Car AS C
+		WHERE C.vin = OLD.car_vin AND SC.make = C.make AND SC.model = C.model;
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		INSERT INTO Car_Service_Count (make, model, service_count)
+		SELECT make, model, 1 FROM Car WHERE vin = NEW.car_vin
+		ON CONFLICT (make, model) DO UPDATE SET service_count = Car_Service_Count.service_count + 1;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER car_service_count_trigger
+AFTER INSERT OR DELETE OR UPDATE OF car_vin ON Service_Request
+FOR EACH ROW EXECUTE PROCEDURE count_car_service();
+
+DROP TABLE IF EXISTS Customer_Bill_Summary CASCADE;--OK
+
+-------------------------------
+---BILL SUMMARY PER CUSTOMER---
+-------------------------------
+-- read by ListCustomersWithBillLessThan100 and ListCustomersInDescendingOrderOfTheirTotalBill
+CREATE TABLE Customer_Bill_Summary
+(
+	customer_id INTEGER NOT NULL,
+	total_bill BIGINT NOT NULL,
+	bill_count _PINTEGER NOT NULL,
+	min_bill _PINTEGER NOT NULL,
+	PRIMARY KEY (customer_id),
+	FOREIGN KEY (customer_id) REFERENCES Customer(id)
+);
+
+INSERT INTO Customer_Bill_Summary (customer_id, total_bill, bill_count, min_bill)
+SELECT SR.customer_id, SUM(CR.bill), COUNT(*), MIN(CR.bill)
+FROM Closed_Request AS CR, Service_Request AS SR
+WHERE CR.rid = SR.rid
+GROUP BY SR.customer_id;
+
+CREATE OR REPLACE FUNCTION sum_customer_bill() RETURNS TRIGGER AS $$
+DECLARE
+	cust INTEGER;
+BEGIN
+	IF TG_OP IN ('DELETE', 'UPDATE') THEN
+		SELECT customer_id INTO cust FROM Service_Request WHERE rid = OLD.rid;
+		UPDATE Customer_Bill_Summary
+		SET total_bill = total_bill - OLD.bill,
+			bill_count = bill_count - 1,
+			min_bill = COALESCE((SELECT MIN(CR.bill) FROM Closed_Request AS CR, Service_Request AS SR
+				WHERE CR.rid = SR.rid AND SR.customer_id = cust), min_bill)
+		WHERE customer_id = cust;
+		DELETE FROM Customer_Bill_Summary WHERE customer_id = cust AND bill_count = 0;
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		INSERT INTO Customer_Bill_Summary (customer_id, total_bill, bill_count, min_bill)
+		SELECT customer_id, NEW.bill, 1, NEW.bill FROM Service_Request WHERE rid = NEW.rid
+		ON CONFLICT (customer_id) DO UPDATE
+		SET total_bill = Customer_Bill_Summary.total_bill + EXCLUDED.total_bill,
+			bill_count = Customer_Bill_Summary.bill_count + 1,
+			min_bill = LEAST(Customer_Bill_Summary.min_bill, EXCLUDED.min_bill);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER customer_bill_summary_trigger
+AFTER INSERT OR DELETE OR UPDATE OF rid, bill ON Closed_Request
+FOR EACH ROW EXECUTE PROCEDURE sum_customer_bill();
+
+DROP TABLE IF EXISTS Open_Request CASCADE;--OK
+
+---------------------------
+---OPEN SERVICE REQUESTS---
+---------------------------
+-- the requests not closed yet, read by the open-work queue (ClaimNextServiceRequest, ListOpenServiceRequests)
+CREATE TABLE Open_Request
+(
+	rid INTEGER NOT NULL,
+	customer_id INTEGER NOT NULL,
+	car_vin VARCHAR(16) NOT NULL,
+	date DATE NOT NULL,
+	claimed_by INTEGER, -- mechanic id
+	claimed_at TIMESTAMP,
+	PRIMARY KEY (rid)
+);
+
+INSERT INTO Open_Request (rid, customer_id, car_vin, date)
+SELECT S.rid, S.customer_id, S.car_vin, S.date
+FROM Service_Request AS S
+WHERE NOT EXISTS (SELECT 1 FROM Closed_Request AS C WHERE C.rid = S.rid);
+
+CREATE OR REPLACE FUNCTION open_service_request() RETURNS TRIGGER AS $$
+BEGIN
+	IF TG_OP = 'DELETE' THEN
+		DELETE FROM Open_Request WHERE rid = OLD.rid;
+	ELSIF TG_OP = 'UPDATE' THEN
+		UPDATE Open_Request
+		SET rid = NEW.rid, customer_id = NEW.customer_id, car_vin = NEW.car_vin, date = NEW.date
+		WHERE rid = OLD.rid;
+	ELSIF NOT EXISTS (SELECT 1 FROM Closed_Request WHERE rid = NEW.rid) THEN
+		INSERT INTO Open_Request (rid, customer_id, car_vin, date)
+		VALUES (NEW.rid, NEW.customer_id, NEW.car_vin, NEW.date);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER open_request_trigger
+AFTER INSERT OR DELETE OR UPDATE OF rid, customer_id, car_vin, date ON Service_Request
+FOR EACH ROW EXECUTE PROCEDURE open_service_request();
+
+CREATE OR REPLACE FUNCTION close_open_request() RETURNS TRIGGER AS $$
+BEGIN
+	IF TG_OP IN ('DELETE', 'UPDATE') THEN
+		INSERT INTO Open_Request (rid, customer_id, car_vin, date)
+		SELECT rid, customer_id, car_vin, date FROM Service_Request WHERE rid = OLD.rid
+		ON CONFLICT (rid) DO NOTHING;
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		DELETE FROM Open_Request WHERE rid = NEW.rid;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER open_request_close_trigger
+AFTER INSERT OR DELETE OR UPDATE OF rid ON Closed_Request
+FOR EACH ROW EXECUTE PROCEDURE close_open_request();
+
+DROP TABLE IF EXISTS Journal_Applied CASCADE;--OK
+
+-----------------------------
+---REPLAYED JOURNAL WRITES---
+-----------------------------
+-- one row per write replayed from a client's WriteJournal, inserted in the same transaction,
+-- so a write replayed again after a crash is skipped
+CREATE TABLE Journal_Applied
+(
+	journal_id BIGINT NOT NULL, -- one per journal directory
+	seq BIGINT NOT NULL,
+	applied_at TIMESTAMP NOT NULL DEFAULT now(),
+	error TEXT, -- why the write was rejected, null when it was applied
+	PRIMARY KEY (journal_id, seq)
+);
+
+---------------------------
+---REPORT CACHE NOTIFIES---
+---------------------------
+-- tells the clients' ReportCache which table a statement changed; the server sends one
+-- notification per table and transaction however many rows or statements it had
+CREATE OR REPLACE FUNCTION notify_table_changed() RETURNS TRIGGER AS $$
+BEGIN
+	PERFORM pg_notify('table_changed', lower(TG_TABLE_NAME));
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER customer_changed_trigger
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Customer
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_table_changed();
+
+CREATE TRIGGER car_changed_trigger
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Car
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_table_changed();
+
+CREATE TRIGGER owns_changed_trigger
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Owns
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_table_changed();
+
+CREATE TRIGGER service_request_changed_trigger
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Service_Request
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_table_changed();
+
+CREATE TRIGGER closed_request_changed_trigger
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Closed_Request
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_table_changed();